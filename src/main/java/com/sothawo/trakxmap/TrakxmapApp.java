@@ -17,14 +17,25 @@ package com.sothawo.trakxmap;
 
 import com.sothawo.mapjfx.Coordinate;
 import com.sothawo.mapjfx.CoordinateLine;
+import com.sothawo.mapjfx.MapLabel;
 import com.sothawo.mapjfx.MapType;
 import com.sothawo.mapjfx.MapView;
 import com.sothawo.mapjfx.Marker;
+import com.sothawo.mapjfx.event.MapViewEvent;
 import com.sothawo.mapjfx.offline.OfflineCache;
+import com.sothawo.trakxmap.control.ProfileView;
 import com.sothawo.trakxmap.control.TrackListCell;
 import com.sothawo.trakxmap.db.DB;
+import com.sothawo.trakxmap.db.DatabaseMaintenance;
+import com.sothawo.trakxmap.db.DuplicateDetector;
+import com.sothawo.trakxmap.db.JdbcTrackRepository;
+import com.sothawo.trakxmap.db.SchemaUpdate;
+import com.sothawo.trakxmap.db.SpatialQueryService;
 import com.sothawo.trakxmap.db.Track;
 import com.sothawo.trakxmap.db.TrackPoint;
+import com.sothawo.trakxmap.db.TrackMemoryManager;
+import com.sothawo.trakxmap.db.TrackRepository;
+import com.sothawo.trakxmap.db.TrackSnapshot;
 import com.sothawo.trakxmap.loader.TrackLoader;
 import com.sothawo.trakxmap.loader.TrackLoaderGPX;
 import com.sothawo.trakxmap.util.*;
@@ -39,23 +50,15 @@ import javafx.collections.ObservableList;
 import javafx.geometry.Orientation;
 import javafx.scene.Node;
 import javafx.scene.Scene;
-import javafx.scene.chart.AreaChart;
-import javafx.scene.chart.NumberAxis;
-import javafx.scene.chart.XYChart;
 import javafx.scene.control.*;
 import javafx.scene.input.TransferMode;
 import javafx.scene.layout.AnchorPane;
 import javafx.scene.layout.BorderPane;
 import javafx.scene.layout.HBox;
+import javafx.scene.paint.Color;
 import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 import javafx.util.StringConverter;
-import liquibase.Contexts;
-import liquibase.Liquibase;
-import liquibase.database.DatabaseConnection;
-import liquibase.database.jvm.JdbcConnection;
-import liquibase.exception.LiquibaseException;
-import liquibase.resource.ClassLoaderResourceAccessor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.bridge.SLF4JBridgeHandler;
@@ -64,13 +67,16 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.sql.DriverManager;
-import java.sql.SQLException;
 import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.FormatStyle;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.function.Supplier;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+import java.util.function.IntToDoubleFunction;
 import java.util.stream.Collectors;
 
 /**
@@ -92,6 +98,10 @@ public class TrakxmapApp extends Application {
     private static final String JAVA_UTIL_CONCURRENT_FORK_JOIN_POOL_COMMON_PARALLELISM =
             "java.util.concurrent.ForkJoinPool.common.parallelism";
     private static final String CONFIG_BING_MAPS_API_KEY = "bingMaps.apiKey";
+    private static final String CONFIG_REPOSITORY = "repository";
+    private static final String REPOSITORY_JDBC = "jdbc";
+    private static final String CONFIG_OFF_HEAP_POINTS = "offHeapPoints";
+    private static final String CONFIG_NEARBY_RADIUS = "nearbyRadius";
 
 
     /** application configuration */
@@ -112,10 +122,35 @@ public class TrakxmapApp extends Application {
     private AtomicBoolean dbUpdateFinished = new AtomicBoolean(false);
 
     /** the database connector object */
-    private Optional<DB> db = Optional.empty();
-
-    /** elevation chart object */
-    private AreaChart<Number, Number> elevationChart;
+    private Optional<TrackRepository> db = Optional.empty();
+
+    /** the store for the trackpoint columns outside of the heap */
+    private Optional<OffHeapPointStore> pointStore = Optional.empty();
+    /** the manager for the memory of the derived track data */
+    private final TrackMemoryManager memoryManager = new TrackMemoryManager();
+
+    /** the database maintenance, available after the database update */
+    private Optional<DatabaseMaintenance> dbMaintenance = Optional.empty();
+
+    /** the track line currently shown on the map, depends on the zoom level */
+    private Optional<CoordinateLine> shownTrackLine = Optional.empty();
+    /** the track lines of the selected track that were shown, one for each level of detail */
+    private final Map<Integer, CoordinateLine> trackLines = new HashMap<>();
+    /** the route line of the selected track */
+    private Optional<CoordinateLine> shownRouteLine = Optional.empty();
+    /** the waypoint markers of the selected track */
+    private final List<Marker> wayPointMarkers = new ArrayList<>();
+    /** the currently selected track */
+    private Optional<Track> selectedTrack = Optional.empty();
+    /** the snapshot of the currently selected track, set when the overlays are shown */
+    private Optional<TrackSnapshot> selectedSnapshot = Optional.empty();
+    /** incremented on each selection change, a preparation for an older value is cancelled */
+    private final AtomicLong selectionGeneration = new AtomicLong();
+    /** marker for the trackpoint clicked on the map */
+    private final Marker trackPointMarker = Marker.createProvided(Marker.Provided.BLUE);
+
+    /** the elevation and speed profile of the selected track */
+    private ProfileView profileView;
 
 // -------------------------- STATIC METHODS --------------------------
 
@@ -138,6 +173,8 @@ public class TrakxmapApp extends Application {
         initLanguage();
         trackLoaders.add(new TrackLoaderGPX());
 //        trackLoaders.add(new TrackLoaderFail());
+        // start the database initialization as early as possible, it runs concurrently to the setup of the ui
+        initializeDatabase();
     }
 
     /**
@@ -167,8 +204,9 @@ public class TrakxmapApp extends Application {
     }
 
     /**
-     * Tries to load the given track files. First the track file is loaded, then the distances in the track are
-     * calculated. After that step, the data is persisted in the database and added to the trackList.
+     * Tries to load the given track files. First the track file is loaded, then the distances in the track and the
+     * geohash cells are calculated. After that step, the data is persisted in the database and added to the trackList.
+     * A track that cannot be stored is not added to the trackList, as it would be lost after a restart.
      *
      * @param files
      *         file names
@@ -187,8 +225,18 @@ public class TrakxmapApp extends Application {
             if (optionalTrack.isPresent()) {
                 Track track = optionalTrack.get();
                 Geo.updateTrackDistances(track);
-                // store in db and trackList
-                db.ifPresent(d -> d.store(track));
+                Geo.updateTrackCells(track);
+                track.updateStatistics();
+                // store in db and trackList, the display data is prepared when the track is selected; the files are
+                // stored in parallel, a store that failed because of a concurrent transaction is tried once more
+                Optional<Failure> failure = db.flatMap(d -> d.store(track)).flatMap(f -> db.get().store(track));
+                if (failure.isPresent()) {
+                    logger.error(I18N.get(I18N.ERROR_STORING_TRACK, file.toString()),
+                            failure.get().getCause().orElse(null));
+                    Platform.runLater(() -> new Alert(Alert.AlertType.ERROR,
+                            I18N.get(I18N.ERROR_STORING_TRACK, file.toString())).show());
+                    return;
+                }
                 Platform.runLater(() -> {
                     trackList.add(track);
                     sortTrackList();
@@ -204,8 +252,6 @@ public class TrakxmapApp extends Application {
         this.primaryStage = primaryStage;
 
         logger.info(I18N.get(I18N.LOG_START_PROGRAM));
-        initializeDatabase();
-
 
         primaryStage.setTitle(config.getString(CONF_WINDOW_TITLE));
         primaryStage.setScene(setupPrimaryScene());
@@ -218,44 +264,50 @@ public class TrakxmapApp extends Application {
 
     /**
      * initializes the database by firing off the update in a different thread and creating the DB object when the
-     * update is finished. After that the stored Tracks are loaded.
+     * update is finished. After that the stored Tracks are loaded. The schema update is skipped when the schema is
+     * current, so that the Hibernate bootstrap and the loading of the tracks run while the MapView initializes.
      */
     private void initializeDatabase() {
-        // create an update task
-        Supplier<Optional<Failure>> dbUpdate = () -> {
-            logger.info(I18N.get(I18N.LOG_DB_UPDATE_NECESSARY));
-            try {
-                DatabaseConnection dbConnection =
-                        new JdbcConnection(DriverManager.getConnection(PathTools.getJdbcUrl()));
-                Liquibase liquibase =
-                        new Liquibase("db/db-changelog.xml", new ClassLoaderResourceAccessor(), dbConnection);
-                liquibase.update(new Contexts());
-                return Optional.empty();
-            } catch (SQLException | LiquibaseException e) {
-                logger.error(I18N.get(I18N.LOG_DB_UPDATE_ERROR), e);
-                return Optional.of(new Failure(I18N.get(I18N.LOG_DB_UPDATE_ERROR), e));
-            }
-        };
-
-        CompletableFuture.supplyAsync(dbUpdate).thenAcceptAsync(failure -> {
+        final long startMillis = System.currentTimeMillis();
+        CompletableFuture.supplyAsync(SchemaUpdate::updateIfNecessary).thenAcceptAsync(failure -> {
             dbUpdateFinished.set(true);
             logger.info(I18N.get(I18N.LOG_DB_INIT_FINISHED));
             if (!failure.isPresent()) {
-                db = Optional.of(new DB());
+                if (config.getBoolean(CONFIG_OFF_HEAP_POINTS)) {
+                    pointStore = Optional.of(new OffHeapPointStore());
+                    Track.setPointStore(pointStore.get());
+                }
+                Track.setMemoryManager(memoryManager);
+                db = Optional.of(createTrackRepository());
+                Track.setTrackColumnsLoader(db.get()::loadTrackColumns);
+                DatabaseMaintenance maintenance = new DatabaseMaintenance();
+                maintenance.schedule();
+                dbMaintenance = Optional.of(maintenance);
+                logger.debug("database ready after {} ms", System.currentTimeMillis() - startMillis);
                 db.get()
                         .loadTrackIds()
                         .parallelStream()
                         .forEach(id -> db.get()
                                 .loadTrackWithId(id)
-                                .ifPresent(
-                                        t -> Platform.runLater(() -> {
-                                            trackList.add(t);
-                                            sortTrackList();
-                                        })));
+                                .ifPresent(t -> Platform.runLater(() -> {
+                                    trackList.add(t);
+                                    sortTrackList();
+                                })));
             }
         });
     }
 
+    /**
+     * creates the TrackRepository that is configured in the application configuration.
+     *
+     * @return TrackRepository
+     */
+    private TrackRepository createTrackRepository() {
+        String repository = config.getString(CONFIG_REPOSITORY);
+        logger.info("using {} track repository", repository);
+        return REPOSITORY_JDBC.equals(repository) ? new JdbcTrackRepository() : new DB();
+    }
+
     /**
      * sorts the track list. default is the latest track first.
      */
@@ -354,23 +406,15 @@ public class TrakxmapApp extends Application {
     }
 
     /**
-     * creates the Node that contans the elevation data.
+     * creates the Node that contains the elevation and speed profile of the selected track. A click into the profile
+     * shows the trackpoint at that distance on the map.
      *
-     * @return
+     * @return the Node
      */
     private Node createElevationViewNode() {
-        // in front of the label is the chart
-        NumberAxis xAxis = new NumberAxis();
-        xAxis.setForceZeroInRange(false);
-        xAxis.setAnimated(false);
-        NumberAxis yAxis = new NumberAxis();
-        yAxis.setForceZeroInRange(false);
-        yAxis.setAnimated(false);
-        elevationChart = new AreaChart<>(xAxis, yAxis);
-        elevationChart.setCreateSymbols(false);
-        // if the chart is set to animated, we get error message son the console when adding data
-        elevationChart.setAnimated(false);
-        return elevationChart;
+        profileView = new ProfileView();
+        profileView.setOnDistanceSelected(distance -> showTrackPoint(track -> track.trackPointAtDistance(distance)));
+        return profileView;
     }
 
     /**
@@ -391,6 +435,19 @@ public class TrakxmapApp extends Application {
             }
         });
 
+        // show the level of detail of the selected track that fits the zoom
+        mapView.zoomProperty().addListener((observable, oldValue, newValue) ->
+                selectedSnapshot.ifPresent(snapshot -> showTrackLineForZoom(snapshot, newValue.doubleValue())));
+
+        // show the info of the trackpoint nearest to a click on the map
+        mapView.addEventHandler(MapViewEvent.MAP_CLICKED, event -> {
+            Coordinate coordinate = event.getCoordinate();
+            showTrackPoint(track -> track.nearestTrackPoint(coordinate));
+        });
+
+        // show the tracks that passed near a right click on the map
+        mapView.addEventHandler(MapViewEvent.MAP_RIGHTCLICKED, event -> findTracksNear(event.getCoordinate()));
+
         // init MapView-Cache
         final OfflineCache offlineCache = mapView.getOfflineCache();
         final String cacheDir = System.getProperty("java.io.tmpdir") + "/trakxmap/mapjfx-cache";
@@ -451,7 +508,121 @@ public class TrakxmapApp extends Application {
         languageComboBox.getSelectionModel().select(I18N.getLocale());
         I18N.localeProperty().bindBidirectional(languageComboBox.valueProperty());
 
-        return new ToolBar(labelMapType, mapTypeComboBox, labelLanguages, languageComboBox);
+        // button for running the database maintenance on demand
+        Button buttonMaintenance = new Button();
+        buttonMaintenance.textProperty().bind(I18N.getStringBinding(I18N.LABEL_DB_MAINTENANCE));
+        buttonMaintenance.setTooltip(I18N.tooltipForKey(I18N.TOOLTIP_DB_MAINTENANCE));
+        buttonMaintenance.setOnAction(evt -> runDatabaseMaintenance(buttonMaintenance));
+
+        // button for finding duplicate tracks
+        Button buttonDuplicates = new Button();
+        buttonDuplicates.textProperty().bind(I18N.getStringBinding(I18N.LABEL_FIND_DUPLICATES));
+        buttonDuplicates.setTooltip(I18N.tooltipForKey(I18N.TOOLTIP_FIND_DUPLICATES));
+        buttonDuplicates.setOnAction(evt -> findDuplicates(buttonDuplicates));
+
+        return new ToolBar(labelMapType, mapTypeComboBox, labelLanguages, languageComboBox, buttonMaintenance,
+                buttonDuplicates);
+    }
+
+    /**
+     * runs the database maintenance in the background and shows the report when it is finished. The button is
+     * disabled while the maintenance is running, also when it fails.
+     *
+     * @param button
+     *         the button that started the maintenance
+     */
+    private void runDatabaseMaintenance(Button button) {
+        dbMaintenance.ifPresent(maintenance -> {
+            button.setDisable(true);
+            maintenance.runAsync().whenComplete((report, e) -> {
+                if (null != e) {
+                    logger.warn("database maintenance", e);
+                }
+                Platform.runLater(() -> button.setDisable(false));
+            }).thenAccept(report -> Platform.runLater(() -> {
+                new Alert(Alert.AlertType.INFORMATION, I18N.get(I18N.INFO_DB_MAINTENANCE, report.getFileSizeBefore(),
+                        report.getFileSizeAfter(), report.getFragmentationBefore(), report.getFragmentationAfter(),
+                        report.getProblems().isEmpty() ? "-" : String.join(", ", report.getProblems()),
+                        report.getDurationMillis(), report.isCompactionOnExit() ? 1 : 0)).show();
+            }));
+        });
+    }
+
+    /**
+     * runs the duplicate detection in the background and shows the clusters of duplicate tracks when it is finished.
+     * The tracks are taken from the track list, so only the cells are read from the database. The button is disabled
+     * while the detection is running, also when it fails.
+     *
+     * @param button
+     *         the button that started the detection
+     */
+    private void findDuplicates(Button button) {
+        db.ifPresent(repository -> {
+            button.setDisable(true);
+            Map<Long, Track> tracks = tracksById();
+            DuplicateDetector detector = new DuplicateDetector(repository, id -> Optional.ofNullable(tracks.get(id)));
+            CompletableFuture.supplyAsync(detector::detect).whenComplete((report, e) -> {
+                if (null != e) {
+                    logger.warn("finding duplicate tracks", e);
+                }
+                Platform.runLater(() -> button.setDisable(false));
+            }).thenAccept(report -> Platform.runLater(() -> {
+                String clusters = report.getClusters().stream()
+                        .map(cluster -> cluster.stream()
+                                .map(id -> Optional.ofNullable(tracks.get(id)).map(Track::getName)
+                                        .orElse(String.valueOf(id)))
+                                .collect(Collectors.joining(" = ")))
+                        .collect(Collectors.joining("\n"));
+                new Alert(Alert.AlertType.INFORMATION, I18N.get(I18N.INFO_DUPLICATES, report.getTrackCount(),
+                        report.getCandidatePairs(), report.getVerifiedPairs(), report.getDurationMillis(),
+                        clusters.isEmpty() ? "-" : clusters)).show();
+            }));
+        });
+    }
+
+    /**
+     * finds the tracks that passed within the configured radius of a position in the background and shows them sorted
+     * by their distance. The tracks are taken from the track list, so only the cell index is read from the database.
+     *
+     * @param coordinate
+     *         the position
+     */
+    private void findTracksNear(Coordinate coordinate) {
+        db.ifPresent(repository -> {
+            Map<Long, Track> tracks = tracksById();
+            SpatialQueryService service =
+                    new SpatialQueryService(repository, id -> Optional.ofNullable(tracks.get(id)));
+            double radius = config.getDouble(CONFIG_NEARBY_RADIUS);
+            CompletableFuture.supplyAsync(() -> service.tracksNear(coordinate, radius)
+                    .sorted(Comparator.comparingDouble(SpatialQueryService.Approach::getDistance))
+                    .collect(Collectors.toList()))
+                    .thenAccept(approaches -> Platform.runLater(() -> {
+                        String found = approaches.stream()
+                                .map(approach -> String.format("%s: %.0f m%s",
+                                        Optional.ofNullable(tracks.get(approach.getTrackId())).map(Track::getName)
+                                                .orElse(String.valueOf(approach.getTrackId())),
+                                        approach.getDistance(), approach.getTime()
+                                                .map(t -> ", " + t.format(
+                                                        DateTimeFormatter.ofLocalizedDateTime(FormatStyle.MEDIUM)))
+                                                .orElse("")))
+                                .collect(Collectors.joining("\n"));
+                        new Alert(Alert.AlertType.INFORMATION, I18N.get(I18N.INFO_TRACKS_NEAR, approaches.size(),
+                                radius, found.isEmpty() ? "-" : found)).show();
+                    }))
+                    .exceptionally(e -> {
+                        logger.warn("finding the tracks near {}", coordinate, e);
+                        return null;
+                    });
+        });
+    }
+
+    /**
+     * @return the stored tracks of the track list by their id
+     */
+    private Map<Long, Track> tracksById() {
+        return trackList.stream()
+                .filter(track -> null != track.getId())
+                .collect(Collectors.toMap(Track::getId, Function.identity()));
     }
 
     /**
@@ -533,7 +704,7 @@ public class TrakxmapApp extends Application {
         trackListView.getSelectionModel().setSelectionMode(SelectionMode.SINGLE);
 
         trackListView.getSelectionModel().selectedItemProperty().addListener((observable, oldValue, newValue) -> {
-            trackSelectionChanged(oldValue, newValue);
+            trackSelectionChanged(newValue);
         });
 
         AnchorPane anchorPane = new AnchorPane(trackListView);
@@ -559,8 +730,11 @@ public class TrakxmapApp extends Application {
                 .filter(response -> response == ButtonType.OK).ifPresent(response -> {
             logger.info(I18N.get(I18N.LOG_DELETE_TRACK, track));
             db.ifPresent(d -> {
+                // the id is needed to remove the columns from the point store, a repository may reset it on delete
+                track.resetTrackColumns();
                 Optional<Failure> optFailure = d.deleteTrack(track);
                 if (!optFailure.isPresent()) {
+                    memoryManager.remove(track);
                     trackList.remove(track);
                 }
             });
@@ -568,59 +742,160 @@ public class TrakxmapApp extends Application {
     }
 
     /**
-     * hides the old track from the map, show the new track and zooms to the new track's extent, update the elevation
-     * chart.
+     * hides the old track from the map and starts the preparation of the overlays for the new track in a background
+     * thread. When they are ready, they are shown on the map, the map is zoomed to the new track's extent and the
+     * elevation chart is updated. A preparation that is still running when the selection changes again is cancelled.
      *
-     * @param oldTrack
-     *         the old track if any
      * @param newTrack
-     *         the new track
+     *         the new track, may be null
      */
-    private void trackSelectionChanged(Track oldTrack, Track newTrack) {
-        if (null != oldTrack) {
-            mapView.removeCoordinateLine(oldTrack.getTrackLine());
-            mapView.removeCoordinateLine(oldTrack.getRouteLine());
+    private void trackSelectionChanged(Track newTrack) {
+        long generation = selectionGeneration.incrementAndGet();
+        selectedTrack = Optional.ofNullable(newTrack);
+        // the index and the level of detail of the selected track must not be released while it is shown
+        memoryManager.setPinned(newTrack);
+        selectedSnapshot = Optional.empty();
+        mapView.removeMarker(trackPointMarker);
+        shownTrackLine.ifPresent(mapView::removeCoordinateLine);
+        shownTrackLine = Optional.empty();
+        trackLines.clear();
+        shownRouteLine.ifPresent(mapView::removeCoordinateLine);
+        shownRouteLine = Optional.empty();
+        wayPointMarkers.forEach(mapView::removeMarker);
+        wayPointMarkers.clear();
+        profileView.clear();
 
-            oldTrack.wayPointMarkers().forEach(wpm -> mapView.removeMarker(wpm));
+        if (null != newTrack) {
+            BooleanSupplier cancelled = () -> generation != selectionGeneration.get();
+            double zoom = mapView.getZoom();
+            CompletableFuture.supplyAsync(() -> SelectionOverlays.prepare(newTrack, zoom, cancelled))
+                    .thenAcceptAsync(optOverlays -> optOverlays.filter(overlays -> !cancelled.getAsBoolean())
+                            .ifPresent(overlays -> {
+                                showOverlays(overlays);
+                                // build the index for the trackpoint lookups while the user looks at the track
+                                CompletableFuture.runAsync(newTrack::getTrackPointIndex);
+                            }), Platform::runLater)
+                    .exceptionally(e -> {
+                        logger.warn("preparing the display of {}", newTrack, e);
+                        return null;
+                    });
         }
+    }
 
-        if (null != newTrack) {
-            CoordinateLine trackLine = newTrack.getTrackLine();
-            mapView.addCoordinateLine(trackLine);
-            trackLine.setVisible(true);
+    /**
+     * shows the prepared overlays of the selected track, this only adds the objects to the map and the chart.
+     *
+     * @param overlays
+     *         the overlays
+     */
+    private void showOverlays(SelectionOverlays overlays) {
+        TrackSnapshot snapshot = overlays.snapshot;
+        selectedSnapshot = Optional.of(snapshot);
+        trackLines.put(overlays.level, overlays.trackLine);
+        showTrackLine(overlays.trackLine);
+
+        mapView.addCoordinateLine(overlays.routeLine);
+        overlays.routeLine.setVisible(true);
+        shownRouteLine = Optional.of(overlays.routeLine);
+
+        overlays.wayPointMarkers.forEach(marker -> {
+            mapView.addMarker(marker);
+            marker.setVisible(true);
+        });
+        wayPointMarkers.addAll(overlays.wayPointMarkers);
+
+        snapshot.getExtent().ifPresent(mapView::setExtent);
+        profileView.setProfile(overlays.profileSize, overlays.profileDistances, overlays.profileSeries);
+        logger.debug("changed to {}", snapshot);
+        logger.debug("with {}", snapshot.getStatistics());
+        // the zoom may have changed during the preparation
+        showTrackLineForZoom(snapshot, mapView.getZoom());
+    }
 
-            CoordinateLine routeLine = newTrack.getRouteLine();
-            mapView.addCoordinateLine(routeLine);
-            routeLine.setVisible(true);
+    /**
+     * shows the line of the selected track for a zoom level. A line that was not shown before is created in a
+     * background thread; zoom values that map to the same level of detail use the same line.
+     *
+     * @param snapshot
+     *         the snapshot of the selected track
+     * @param zoom
+     *         the zoom of the map
+     */
+    private void showTrackLineForZoom(TrackSnapshot snapshot, double zoom) {
+        int level = snapshot.getLevelOfDetail().levelForZoom(zoom);
+        CoordinateLine trackLine = trackLines.get(level);
+        if (null != trackLine) {
+            if (!shownTrackLine.filter(line -> line == trackLine).isPresent()) {
+                showTrackLine(trackLine);
+            }
+        } else {
+            long generation = selectionGeneration.get();
+            CompletableFuture.supplyAsync(() -> SelectionOverlays.createTrackLine(snapshot, level))
+                    .thenAcceptAsync(line -> {
+                        if (generation == selectionGeneration.get()) {
+                            trackLines.putIfAbsent(level, line);
+                            // only show it if the zoom was not changed to a different level in the meantime
+                            showTrackLineForZoom(snapshot, mapView.getZoom());
+                        }
+                    }, Platform::runLater);
+        }
+    }
 
-            newTrack.wayPointMarkers().forEach(wpm -> mapView.addMarker(wpm));
+    /**
+     * shows a track line on the map and removes the one shown before.
+     *
+     * @param trackLine
+     *         the line to show
+     */
+    private void showTrackLine(CoordinateLine trackLine) {
+        shownTrackLine.ifPresent(mapView::removeCoordinateLine);
+        mapView.addCoordinateLine(trackLine);
+        trackLine.setVisible(true);
+        shownTrackLine = Optional.of(trackLine);
+    }
 
-            newTrack.getExtent().ifPresent(mapView::setExtent);
-            logger.debug("changed to {}", newTrack.toString());
-            logger.debug("with {}", newTrack.getStatistics().toString());
-        }
-        updateElevationChartWithTrack(newTrack);
+    /**
+     * looks up a trackpoint of the selected track in a background thread and shows it on the map, if the selection has
+     * not changed in the meantime. The lookup may have to build the trackpoint index or to load the columns of the
+     * track, so it is not done on the JavaFX application thread.
+     *
+     * @param lookup
+     *         the function finding the trackpoint in the track
+     */
+    private void showTrackPoint(Function<Track, Optional<TrackPoint>> lookup) {
+        selectedTrack.ifPresent(track -> {
+            long generation = selectionGeneration.get();
+            CompletableFuture.supplyAsync(() -> lookup.apply(track))
+                    .thenAcceptAsync(optTrackPoint -> optTrackPoint
+                            .filter(trackPoint -> generation == selectionGeneration.get())
+                            .ifPresent(this::showTrackPointMarker), Platform::runLater)
+                    .exceptionally(e -> {
+                        logger.warn("looking up a trackpoint of {}", track, e);
+                        return null;
+                    });
+        });
     }
 
     /**
-     * updates the elevation chart with the data from the given track.
+     * shows the marker for a trackpoint with time, elevation and distance of the point.
      *
-     * @param track
-     *         the track containing the new data
+     * @param trackPoint
+     *         the trackpoint
      */
-    private void updateElevationChartWithTrack(Track track) {
-        // clear the old data from the chart
-        elevationChart.getData().clear();
-
-        if (null != track) {
-            XYChart.Series<Number, Number> series = new XYChart.Series<>();
-            series.setName("distance (meters)");
-            elevationChart.getData().add(series);
-            ObservableList<XYChart.Data<Number, Number>> dataList = series.getData();
-            for (TrackPoint trackPoint : track.getTrackPoints()) {
-                dataList.add(new XYChart.Data<>(trackPoint.getDistance(), trackPoint.getElevation()));
-            }
-        }
+    private void showTrackPointMarker(TrackPoint trackPoint) {
+        mapView.removeMarker(trackPointMarker);
+        String time = Optional.ofNullable(trackPoint.getTimestamp())
+                .map(t -> t.format(DateTimeFormatter.ofLocalizedTime(FormatStyle.MEDIUM))).orElse("--:--");
+        String elevation = Optional.ofNullable(trackPoint.getElevation())
+                .map(e -> String.format("%.0f m", e)).orElse("--");
+        String distance = Optional.ofNullable(trackPoint.getDistance())
+                .map(d -> String.format("%.2f km", d / 1000.0)).orElse("--");
+        trackPointMarker.detachLabel();
+        trackPointMarker.attachLabel(
+                new MapLabel(I18N.get(I18N.LABEL_TRACKPOINT_INFO, time, elevation, distance), 10, -10));
+        trackPointMarker.setPosition(trackPoint.getCoordinate());
+        mapView.addMarker(trackPointMarker);
+        trackPointMarker.setVisible(true);
     }
 
 // --------------------------- main() method ---------------------------
@@ -628,7 +903,139 @@ public class TrakxmapApp extends Application {
     @Override
     public void stop() throws Exception {
         super.stop();
-        db.ifPresent(DB::close);
+        dbMaintenance.ifPresent(DatabaseMaintenance::close);
+        db.ifPresent(TrackRepository::close);
+        Track.setPointStore(null);
+        Track.setMemoryManager(null);
+        Track.setTrackColumnsLoader(null);
+        memoryManager.close();
+        pointStore.ifPresent(OffHeapPointStore::close);
+        // the full compaction needs exclusive access, so it can only be done after the repository is closed
+        dbMaintenance.ifPresent(DatabaseMaintenance::compactOnExit);
         logger.info(I18N.get(I18N.LOG_STOP_PROGRAM));
     }
+
+// -------------------------- INNER CLASSES --------------------------
+
+    /**
+     * The map objects and the chart data for the selected track. They are created in a background thread and are not
+     * attached to the scene until they are handed to the JavaFX application thread.
+     */
+    private static final class SelectionOverlays {
+        /** number of trackpoints over which the speed is calculated */
+        private static final int SPEED_WINDOW = 5;
+        /** the snapshot of the track */
+        private final TrackSnapshot snapshot;
+        /** the level of detail of the track line */
+        private final int level;
+        /** the track line for the zoom at the time of the selection */
+        private final CoordinateLine trackLine;
+        /** the route line */
+        private final CoordinateLine routeLine;
+        /** the waypoint markers */
+        private final List<Marker> wayPointMarkers;
+        /** the number of trackpoints */
+        private final int profileSize;
+        /** the distances of the trackpoints by index, ascending */
+        private final IntToDoubleFunction profileDistances;
+        /** the elevation and speed profile */
+        private final List<ProfileView.Series> profileSeries;
+
+        private SelectionOverlays(TrackSnapshot snapshot, int level, CoordinateLine trackLine,
+                                  CoordinateLine routeLine, List<Marker> wayPointMarkers, int profileSize,
+                                  IntToDoubleFunction profileDistances, List<ProfileView.Series> profileSeries) {
+            this.snapshot = snapshot;
+            this.level = level;
+            this.trackLine = trackLine;
+            this.routeLine = routeLine;
+            this.wayPointMarkers = wayPointMarkers;
+            this.profileSize = profileSize;
+            this.profileDistances = profileDistances;
+            this.profileSeries = profileSeries;
+        }
+
+        /**
+         * prepares the overlays of a track. The cancellation is checked between the steps.
+         *
+         * @param track
+         *         the track
+         * @param zoom
+         *         the zoom of the map
+         * @param cancelled
+         *         returns true when the selection has changed
+         * @return the overlays, empty if the preparation was cancelled
+         */
+        private static Optional<SelectionOverlays> prepare(Track track, double zoom, BooleanSupplier cancelled) {
+            // the snapshot is built on the first selection of the track or when it was released since
+            TrackSnapshot snapshot = track.snapshot();
+            if (cancelled.getAsBoolean()) {
+                return Optional.empty();
+            }
+            int level = snapshot.getLevelOfDetail().levelForZoom(zoom);
+            CoordinateLine trackLine = createTrackLine(snapshot, level);
+            CoordinateLine routeLine =
+                    new CoordinateLine(snapshot.getRouteCoordinates()).setColor(Color.GREEN).setWidth(3);
+
+            List<Marker> markers = new ArrayList<>();
+            List<String> names = snapshot.getWayPointNames();
+            List<Coordinate> coordinates = snapshot.getWayPointCoordinates();
+            for (int i = 0; i < coordinates.size(); i++) {
+                Marker marker = Marker.createProvided(Marker.Provided.RED).setPosition(coordinates.get(i));
+                Optional.ofNullable(names.get(i))
+                        .ifPresent(name -> marker.attachLabel(new MapLabel(name, 10, -10).setCssClass("red-label")));
+                markers.add(marker);
+            }
+            if (cancelled.getAsBoolean()) {
+                return Optional.empty();
+            }
+
+            // the profile view reads the columns on the JavaFX application thread, with readers of its own
+            TrackColumns columns = snapshot.getTrackColumns();
+            TrackColumns.Reader reader = columns.reader();
+            List<ProfileView.Series> profile = new ArrayList<>();
+            profile.add(new ProfileView.Series(I18N.get(I18N.LABEL_PROFILE_ELEVATION), Color.STEELBLUE,
+                    Color.STEELBLUE.deriveColor(0, 1, 1, 0.3), "%.0f m", reader::elevation));
+            profile.add(new ProfileView.Series(I18N.get(I18N.LABEL_PROFILE_SPEED), Color.DARKORANGE, null,
+                    "%.1f km/h", speeds(columns)));
+            return Optional.of(new SelectionOverlays(snapshot, level, trackLine, routeLine, markers, columns.size(),
+                    reader::distance, profile));
+        }
+
+        /**
+         * creates the function for the speed at a trackpoint over the SPEED_WINDOW points around it, which evens out
+         * the jitter of the single positions. The speed is calculated when it is read, the start and the end of the
+         * window have a reader each, so that both move forward when the points are read in ascending order.
+         *
+         * @param columns
+         *         the trackpoint columns
+         * @return the function for the speeds in km/h, NaN where the times are missing
+         */
+        private static IntToDoubleFunction speeds(TrackColumns columns) {
+            int size = columns.size();
+            TrackColumns.Reader fromReader = columns.reader();
+            TrackColumns.Reader toReader = columns.reader();
+            return i -> {
+                int from = Math.max(0, i - SPEED_WINDOW / 2);
+                int to = Math.min(size - 1, i + SPEED_WINDOW / 2);
+                long fromTime = fromReader.time(from);
+                long toTime = toReader.time(to);
+                return TrackStatistics.NO_TIME == fromTime || TrackStatistics.NO_TIME == toTime ||
+                        toTime <= fromTime ? Double.NaN :
+                        (toReader.distance(to) - fromReader.distance(from)) / (toTime - fromTime) * 3600.0;
+            };
+        }
+
+        /**
+         * creates the line of a track for a level of detail.
+         *
+         * @param snapshot
+         *         the snapshot of the track
+         * @param level
+         *         the level of detail
+         * @return CoordinateLine
+         */
+        private static CoordinateLine createTrackLine(TrackSnapshot snapshot, int level) {
+            return new CoordinateLine(snapshot.trackCoordinates(level)).setColor(Color.RED).setWidth(5);
+        }
+    }
 }
@@ -0,0 +1,606 @@
+/*
+ Copyright 2015 Peter-Josef Meisch (pj.meisch@sothawo.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.sothawo.trakxmap.control;
+
+import com.sothawo.trakxmap.util.SeriesSearch;
+import javafx.geometry.VPos;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.input.MouseButton;
+import javafx.scene.input.MouseEvent;
+import javafx.scene.input.ScrollEvent;
+import javafx.scene.layout.Region;
+import javafx.scene.paint.Color;
+import javafx.scene.text.Font;
+import javafx.scene.text.Text;
+import javafx.scene.text.TextAlignment;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.DoubleConsumer;
+import java.util.function.IntToDoubleFunction;
+
+/**
+ * Shows profiles of a track like elevation and speed over the distance. The values are drawn on a Canvas directly from
+ * functions of the point index, so there is no Node per value as in the JavaFX charts and the values need not be
+ * copied into arrays; the functions are only called on the JavaFX application thread. For each pixel column of the plot the first, last,
+ * minimum and maximum value of the points in that column are collected, the drawn line then has at most four points
+ * per pixel column and still shows every peak, independent of the number of points of the track. The columns are only
+ * collected again when the data, the size or the shown distance range change; moving the crosshair just redraws them.
+ *
+ * The mouse wheel zooms into the distance around the mouse position, dragging moves the shown distance range and a
+ * double click shows the whole track again. Every series has its own value axis, the one of the first series is drawn
+ * on the left side, the one of the second on the right side.
+ *
+ * @author P.J. Meisch (pj.meisch@sothawo.com).
+ */
+public class ProfileView extends Region {
+// ------------------------------ FIELDS ------------------------------
+
+    /** factor of the shown distance range for one mouse wheel step */
+    private static final double ZOOM_FACTOR = 0.8;
+    /** the smallest shown distance range in meters */
+    private static final double MIN_RANGE = 10;
+    /** space around the plot for the axis labels */
+    private static final double MARGIN_LEFT = 50;
+    private static final double MARGIN_RIGHT = 50;
+    private static final double MARGIN_TOP = 20;
+    private static final double MARGIN_BOTTOM = 20;
+    /** the approximate number of ticks per axis */
+    private static final int TICKS = 8;
+    /** mouse movement in pixels up to which a press and release is a click and not a drag */
+    private static final double CLICK_TOLERANCE = 3;
+
+    private static final Color BACKGROUND = Color.WHITE;
+    private static final Color GRID = Color.gray(0.9);
+    private static final Color TEXT = Color.gray(0.3);
+    private static final Color CROSSHAIR = Color.gray(0.2);
+    private static final Font FONT = Font.font(10);
+
+    /** the canvas for the drawing */
+    private final Canvas canvas = new Canvas();
+    /** the number of points */
+    private int size = 0;
+    /** the distances of the points by index, ascending */
+    private IntToDoubleFunction distances = index -> Double.NaN;
+    /** the shown series */
+    private List<Series> series = Collections.emptyList();
+    /** the shown distance range, NaN to show all */
+    private double lower = Double.NaN;
+    private double upper = Double.NaN;
+    /** the collected values per series and pixel column, null when they must be collected again */
+    private Columns[] columns;
+    /** the x position of the crosshair, NaN if none is shown */
+    private double crosshairX = Double.NaN;
+    /** the x position and the distance range when the mouse was pressed */
+    private double pressedX;
+    private double pressedLower;
+    private double pressedUpper;
+    /** called with the distance of a clicked position */
+    private DoubleConsumer onDistanceSelected = distance -> {
+    };
+
+// --------------------------- CONSTRUCTORS ---------------------------
+
+    public ProfileView() {
+        getChildren().add(canvas);
+        setMinSize(0, 0);
+        canvas.addEventHandler(ScrollEvent.SCROLL, this::handleScroll);
+        canvas.addEventHandler(MouseEvent.MOUSE_MOVED, event -> showCrosshair(event.getX()));
+        canvas.addEventHandler(MouseEvent.MOUSE_EXITED, event -> showCrosshair(Double.NaN));
+        canvas.addEventHandler(MouseEvent.MOUSE_PRESSED, event -> {
+            if (size > 1) {
+                pressedX = event.getX();
+                pressedLower = shownLower();
+                pressedUpper = shownUpper();
+            }
+        });
+        canvas.addEventHandler(MouseEvent.MOUSE_DRAGGED, this::handleDrag);
+        canvas.addEventHandler(MouseEvent.MOUSE_CLICKED, this::handleClick);
+    }
+
+// --------------------- GETTER / SETTER METHODS ---------------------
+
+    /**
+     * sets the function that is called with the distance of a position that is clicked in the plot.
+     *
+     * @param onDistanceSelected
+     *         the function
+     */
+    public void setOnDistanceSelected(DoubleConsumer onDistanceSelected) {
+        this.onDistanceSelected = null == onDistanceSelected ? distance -> {
+        } : onDistanceSelected;
+    }
+
+// -------------------------- OTHER METHODS --------------------------
+
+    /**
+     * removes the shown profile.
+     */
+    public void clear() {
+        setProfile(0, index -> Double.NaN, Collections.emptyList());
+    }
+
+    @Override
+    protected void layoutChildren() {
+        double width = snapSize(getWidth());
+        double height = snapSize(getHeight());
+        if (width != canvas.getWidth() || height != canvas.getHeight()) {
+            canvas.setWidth(width);
+            canvas.setHeight(height);
+            columns = null;
+            draw();
+        }
+    }
+
+    /**
+     * shows the whole distance range.
+     */
+    public void resetZoom() {
+        setRange(Double.NaN, Double.NaN);
+    }
+
+    /**
+     * sets the profile to show and shows the whole distance range. The functions must return the same values for an
+     * index as long as the profile is shown.
+     *
+     * @param size
+     *         the number of points
+     * @param distances
+     *         the distances of the points by index, ascending
+     * @param series
+     *         the series with one value per point
+     */
+    public void setProfile(int size, IntToDoubleFunction distances, List<Series> series) {
+        this.size = size;
+        this.distances = distances;
+        this.series = new ArrayList<>(series);
+        lower = Double.NaN;
+        upper = Double.NaN;
+        columns = null;
+        draw();
+    }
+
+    /**
+     * collects for each series the values of the points per pixel column in the shown distance range. The points just
+     * outside the range go to an additional column on each side with their exact position, so that the line reaches
+     * the borders of the plot in the right direction.
+     */
+    private void collectColumns(double plotWidth) {
+        int count = (int) Math.ceil(plotWidth);
+        double shownLower = shownLower();
+        double shownUpper = shownUpper();
+        double scale = plotWidth / (shownUpper - shownLower);
+        int[] range = SeriesSearch.range(distances, size, shownLower, shownUpper);
+        columns = new Columns[series.size()];
+        for (int s = 0; s < columns.length; s++) {
+            IntToDoubleFunction values = series.get(s).values;
+            Columns c = new Columns(count + 2);
+            for (int i = range[0]; i < range[1]; i++) {
+                double x = (distances.applyAsDouble(i) - shownLower) * scale;
+                // column 0 and count + 1 are outside of the plot
+                int column = x < 0 ? 0 : x >= count ? count + 1 : (int) x + 1;
+                if (column == 0 || column == count + 1) {
+                    c.xs[column] = x;
+                }
+                c.add(column, values.applyAsDouble(i));
+            }
+            columns[s] = c;
+        }
+    }
+
+    /**
+     * draws the profile.
+     */
+    private void draw() {
+        GraphicsContext gc = canvas.getGraphicsContext2D();
+        double width = canvas.getWidth();
+        double height = canvas.getHeight();
+        gc.setFill(BACKGROUND);
+        gc.fillRect(0, 0, width, height);
+        double plotWidth = width - MARGIN_LEFT - MARGIN_RIGHT;
+        double plotHeight = height - MARGIN_TOP - MARGIN_BOTTOM;
+        if (size < 2 || !(shownUpper() > shownLower()) || series.isEmpty() || plotWidth < 1 ||
+                plotHeight < 1) {
+            return;
+        }
+        if (null == columns) {
+            collectColumns(plotWidth);
+        }
+
+        double shownLower = shownLower();
+        double shownUpper = shownUpper();
+        gc.setFont(FONT);
+        gc.setLineWidth(1);
+        drawDistanceAxis(gc, shownLower, shownUpper, plotWidth, plotHeight);
+
+        double[][] valueRanges = new double[series.size()][];
+        for (int s = 0; s < series.size(); s++) {
+            valueRanges[s] = columns[s].valueRange();
+            if (s < 2) {
+                drawValueAxis(gc, series.get(s), valueRanges[s], s == 0, plotWidth, plotHeight);
+            }
+        }
+
+        gc.save();
+        gc.beginPath();
+        gc.rect(MARGIN_LEFT, MARGIN_TOP, plotWidth, plotHeight);
+        gc.clip();
+        for (int s = 0; s < series.size(); s++) {
+            drawSeries(gc, series.get(s), columns[s], valueRanges[s], plotHeight);
+        }
+        gc.restore();
+
+        // legend
+        gc.setTextAlign(TextAlignment.LEFT);
+        gc.setTextBaseline(VPos.CENTER);
+        double legendX = MARGIN_LEFT;
+        Text text = new Text();
+        text.setFont(FONT);
+        for (Series s : series) {
+            gc.setFill(s.color);
+            gc.fillText(s.name, legendX, MARGIN_TOP / 2);
+            text.setText(s.name);
+            legendX += 10 + text.getLayoutBounds().getWidth();
+        }
+
+        if (!Double.isNaN(crosshairX)) {
+            drawCrosshair(gc, shownLower, shownUpper, plotWidth, plotHeight);
+        }
+    }
+
+    /**
+     * draws the crosshair with the distance and the values of the point nearest to the mouse position.
+     */
+    private void drawCrosshair(GraphicsContext gc, double shownLower, double shownUpper, double plotWidth,
+                               double plotHeight) {
+        double distance = shownLower + (crosshairX - MARGIN_LEFT) * (shownUpper - shownLower) / plotWidth;
+        int index = nearestIndex(distance);
+        gc.setStroke(CROSSHAIR);
+        gc.strokeLine(crosshairX + 0.5, MARGIN_TOP, crosshairX + 0.5, MARGIN_TOP + plotHeight);
+
+        List<String> lines = new ArrayList<>();
+        lines.add(String.format("%.2f km", distances.applyAsDouble(index) / 1000.0));
+        for (Series s : series) {
+            double value = s.values.applyAsDouble(index);
+            lines.add(Double.isNaN(value) ? "--" : String.format(s.format, value));
+        }
+        double boxWidth = 80;
+        double boxHeight = 14 * lines.size() + 4;
+        double boxX = crosshairX + 6 + boxWidth < MARGIN_LEFT + plotWidth ? crosshairX + 6 : crosshairX - 6 - boxWidth;
+        gc.setFill(BACKGROUND.deriveColor(0, 1, 1, 0.85));
+        gc.fillRect(boxX, MARGIN_TOP + 4, boxWidth, boxHeight);
+        gc.setTextAlign(TextAlignment.LEFT);
+        gc.setTextBaseline(VPos.TOP);
+        for (int i = 0; i < lines.size(); i++) {
+            gc.setFill(i == 0 ? TEXT : series.get(i - 1).color);
+            gc.fillText(lines.get(i), boxX + 4, MARGIN_TOP + 6 + 14 * i);
+        }
+    }
+
+    /**
+     * draws the grid lines and the labels of the distance axis.
+     */
+    private void drawDistanceAxis(GraphicsContext gc, double shownLower, double shownUpper, double plotWidth,
+                                  double plotHeight) {
+        double unit = tickUnit(shownUpper - shownLower);
+        String format = unit >= 1000 ? "%.0f km" : unit >= 100 ? "%.1f km" : unit >= 10 ? "%.2f km" : "%.3f km";
+        gc.setTextAlign(TextAlignment.CENTER);
+        gc.setTextBaseline(VPos.TOP);
+        for (double tick = Math.ceil(shownLower / unit) * unit; tick <= shownUpper; tick += unit) {
+            double x = Math.floor(MARGIN_LEFT + (tick - shownLower) * plotWidth / (shownUpper - shownLower)) + 0.5;
+            gc.setStroke(GRID);
+            gc.strokeLine(x, MARGIN_TOP, x, MARGIN_TOP + plotHeight);
+            gc.setFill(TEXT);
+            gc.fillText(String.format(format, tick / 1000.0), x, MARGIN_TOP + plotHeight + 4);
+        }
+    }
+
+    /**
+     * draws the line of a series from the collected columns. A value that is NaN interrupts the line; if the series
+     * has a fill color, the area between the line and the bottom of the plot is filled.
+     */
+    private void drawSeries(GraphicsContext gc, Series s, Columns c, double[] valueRange, double plotHeight) {
+        if (null == valueRange) {
+            return;
+        }
+        if (null != s.fill) {
+            gc.setFill(s.fill);
+            gc.beginPath();
+            tracePath(gc, c, valueRange, plotHeight, true);
+            gc.fill();
+        }
+        gc.setStroke(s.color);
+        gc.beginPath();
+        tracePath(gc, c, valueRange, plotHeight, false);
+        gc.stroke();
+    }
+
+    /**
+     * adds the line through the collected columns to the current path, each part between missing values is a sub path.
+     *
+     * @param toBottom
+     *         if true, each sub path is closed along the bottom of the plot
+     */
+    private void tracePath(GraphicsContext gc, Columns c, double[] valueRange, double plotHeight, boolean toBottom) {
+        double bottom = MARGIN_TOP + plotHeight;
+        double scale = plotHeight / (valueRange[1] - valueRange[0]);
+        boolean connected = false;
+        double lastX = 0;
+        for (int column = 0; column < c.xs.length; column++) {
+            if (c.hasValues(column)) {
+                double x = MARGIN_LEFT + c.xs[column];
+                double first = bottom - (c.firsts[column] - valueRange[0]) * scale;
+                if (connected) {
+                    gc.lineTo(x, first);
+                } else if (toBottom) {
+                    gc.moveTo(x, bottom);
+                    gc.lineTo(x, first);
+                } else {
+                    gc.moveTo(x, first);
+                }
+                gc.lineTo(x, bottom - (c.mins[column] - valueRange[0]) * scale);
+                gc.lineTo(x, bottom - (c.maxs[column] - valueRange[0]) * scale);
+                gc.lineTo(x, bottom - (c.lasts[column] - valueRange[0]) * scale);
+                connected = true;
+                lastX = x;
+            }
+            if (connected && (c.gaps[column] || column == c.xs.length - 1)) {
+                if (toBottom) {
+                    gc.lineTo(lastX, bottom);
+                    gc.closePath();
+                }
+                connected = false;
+            }
+        }
+    }
+
+    /**
+     * draws the labels of the value axis of a series, the grid lines are drawn for the first series only.
+     */
+    private void drawValueAxis(GraphicsContext gc, Series s, double[] valueRange, boolean left, double plotWidth,
+                               double plotHeight) {
+        if (null == valueRange) {
+            return;
+        }
+        double unit = tickUnit(valueRange[1] - valueRange[0]);
+        double scale = plotHeight / (valueRange[1] - valueRange[0]);
+        gc.setTextAlign(left ? TextAlignment.RIGHT : TextAlignment.LEFT);
+        gc.setTextBaseline(VPos.CENTER);
+        for (double tick = Math.ceil(valueRange[0] / unit) * unit; tick <= valueRange[1]; tick += unit) {
+            double y = Math.floor(MARGIN_TOP + plotHeight - (tick - valueRange[0]) * scale) + 0.5;
+            if (left) {
+                gc.setStroke(GRID);
+                gc.strokeLine(MARGIN_LEFT, y, MARGIN_LEFT + plotWidth, y);
+            }
+            gc.setFill(s.color);
+            gc.fillText(String.format("%.0f", tick), left ? MARGIN_LEFT - 4 : MARGIN_LEFT + plotWidth + 4, y);
+        }
+    }
+
+    /**
+     * moves the shown distance range with the mouse.
+     */
+    private void handleDrag(MouseEvent event) {
+        double plotWidth = canvas.getWidth() - MARGIN_LEFT - MARGIN_RIGHT;
+        if (MouseButton.PRIMARY == event.getButton() && size > 1 && plotWidth > 0) {
+            double offset = (pressedX - event.getX()) * (pressedUpper - pressedLower) / plotWidth;
+            double first = distances.applyAsDouble(0);
+            double last = distances.applyAsDouble(size - 1);
+            offset = Math.max(first - pressedLower, Math.min(last - pressedUpper, offset));
+            crosshairX = Math.floor(event.getX());
+            setRange(pressedLower + offset, pressedUpper + offset);
+        }
+    }
+
+    /**
+     * resets the zoom on a double click and reports the distance of a single click that was not the end of a drag.
+     */
+    private void handleClick(MouseEvent event) {
+        if (MouseButton.PRIMARY != event.getButton() || size < 2) {
+            return;
+        }
+        if (event.getClickCount() == 2) {
+            resetZoom();
+        } else if (event.isStillSincePress() || Math.abs(event.getX() - pressedX) <= CLICK_TOLERANCE) {
+            double plotWidth = canvas.getWidth() - MARGIN_LEFT - MARGIN_RIGHT;
+            double distance = shownLower() + (event.getX() - MARGIN_LEFT) * (shownUpper() - shownLower()) / plotWidth;
+            onDistanceSelected.accept(distances.applyAsDouble(nearestIndex(distance)));
+        }
+    }
+
+    /**
+     * zooms the shown distance range around the mouse position.
+     */
+    private void handleScroll(ScrollEvent event) {
+        double plotWidth = canvas.getWidth() - MARGIN_LEFT - MARGIN_RIGHT;
+        if (size < 2 || plotWidth <= 0 || 0 == event.getDeltaY()) {
+            return;
+        }
+        double shownLower = shownLower();
+        double shownUpper = shownUpper();
+        double center = shownLower + (event.getX() - MARGIN_LEFT) * (shownUpper - shownLower) / plotWidth;
+        double factor = event.getDeltaY() > 0 ? ZOOM_FACTOR : 1 / ZOOM_FACTOR;
+        double newLower = Math.max(distances.applyAsDouble(0), center - (center - shownLower) * factor);
+        double newUpper = Math.min(distances.applyAsDouble(size - 1), center + (shownUpper - center) * factor);
+        if (newUpper - newLower >= MIN_RANGE) {
+            setRange(newLower, newUpper);
+        }
+        event.consume();
+    }
+
+    /**
+     * finds the index of the point whose distance is nearest to a distance.
+     */
+    private int nearestIndex(double distance) {
+        return SeriesSearch.nearest(distances, size, distance);
+    }
+
+    /**
+     * sets the shown distance range, the whole range is stored as NaN, so that it does not need to be recalculated.
+     */
+    private void setRange(double newLower, double newUpper) {
+        boolean all = Double.isNaN(newLower) || size < 2 ||
+                (newLower <= distances.applyAsDouble(0) && newUpper >= distances.applyAsDouble(size - 1));
+        lower = all ? Double.NaN : newLower;
+        upper = all ? Double.NaN : newUpper;
+        columns = null;
+        draw();
+    }
+
+    /**
+     * sets the position of the crosshair and redraws the profile, the collected columns are reused.
+     *
+     * @param x
+     *         the x position, NaN to hide the crosshair
+     */
+    private void showCrosshair(double x) {
+        double right = canvas.getWidth() - MARGIN_RIGHT;
+        crosshairX = x >= MARGIN_LEFT && x <= right ? Math.floor(x) : Double.NaN;
+        draw();
+    }
+
+    private double shownLower() {
+        return Double.isNaN(lower) ? distances.applyAsDouble(0) : lower;
+    }
+
+    private double shownUpper() {
+        return Double.isNaN(upper) ? distances.applyAsDouble(size - 1) : upper;
+    }
+
+    /**
+     * calculates a tick unit of 1, 2 or 5 times a power of 10 so that a range has about TICKS ticks.
+     */
+    private static double tickUnit(double range) {
+        double raw = range / TICKS;
+        double magnitude = Math.pow(10, Math.floor(Math.log10(raw)));
+        double normalized = raw / magnitude;
+        return (normalized < 1.5 ? 1 : normalized < 3.5 ? 2 : normalized < 7.5 ? 5 : 10) * magnitude;
+    }
+
+// -------------------------- INNER CLASSES --------------------------
+
+    /**
+     * A series of values to show in the profile.
+     */
+    public static final class Series {
+        /** the name shown in the legend */
+        private final String name;
+        /** the color of the line */
+        private final Color color;
+        /** the color of the area below the line, null for no fill */
+        private final Color fill;
+        /** format for a value in the crosshair */
+        private final String format;
+        /** the values by point index, NaN for missing values */
+        private final IntToDoubleFunction values;
+
+        /**
+         * creates a series.
+         *
+         * @param name
+         *         the name shown in the legend
+         * @param color
+         *         the color of the line
+         * @param fill
+         *         the color of the area below the line, null for no fill
+         * @param format
+         *         format for a value in the crosshair, for example "%.0f m"
+         * @param values
+         *         the values by point index, NaN for missing values
+         */
+        public Series(String name, Color color, Color fill, String format, IntToDoubleFunction values) {
+            this.name = name;
+            this.color = color;
+            this.fill = fill;
+            this.format = format;
+            this.values = values;
+        }
+    }
+
+    /**
+     * The first, last, minimum and maximum value of the points in each pixel column.
+     */
+    private static final class Columns {
+        /** the x position of each column relative to the left of the plot */
+        private final double[] xs;
+        private final double[] firsts;
+        private final double[] lasts;
+        private final double[] mins;
+        private final double[] maxs;
+        /** true if the line is interrupted after a column by a missing value */
+        private final boolean[] gaps;
+
+        private Columns(int count) {
+            xs = new double[count];
+            for (int column = 0; column < count; column++) {
+                xs[column] = column - 0.5;
+            }
+            firsts = new double[count];
+            lasts = new double[count];
+            mins = new double[count];
+            maxs = new double[count];
+            Arrays.fill(firsts, Double.NaN);
+            Arrays.fill(mins, Double.POSITIVE_INFINITY);
+            Arrays.fill(maxs, Double.NEGATIVE_INFINITY);
+            gaps = new boolean[count];
+        }
+
+        private void add(int column, double value) {
+            if (Double.isNaN(value)) {
+                gaps[column] = true;
+                return;
+            }
+            if (Double.isNaN(firsts[column])) {
+                firsts[column] = value;
+            }
+            lasts[column] = value;
+            mins[column] = Math.min(mins[column], value);
+            maxs[column] = Math.max(maxs[column], value);
+        }
+
+        private boolean hasValues(int column) {
+            return !Double.isNaN(firsts[column]);
+        }
+
+        /**
+         * the range of the values in the columns of the plot with a margin, so that the line does not touch the
+         * borders. The columns outside of the plot are only used when there are no points inside.
+         *
+         * @return array with minimum and maximum, null if there are no values
+         */
+        private double[] valueRange() {
+            double[] range = valueRange(1, xs.length - 1);
+            return null != range ? range : valueRange(0, xs.length);
+        }
+
+        private double[] valueRange(int from, int to) {
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            for (int column = from; column < to; column++) {
+                min = Math.min(min, mins[column]);
+                max = Math.max(max, maxs[column]);
+            }
+            if (min > max) {
+                return null;
+            }
+            double margin = Math.max((max - min) * 0.05, 1);
+            return new double[]{min - margin, max + margin};
+        }
+    }
+}
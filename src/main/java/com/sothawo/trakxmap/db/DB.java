@@ -17,9 +17,19 @@ package com.sothawo.trakxmap.db;
 
 import com.sothawo.trakxmap.util.Failure;
 import com.sothawo.trakxmap.util.Geo;
+import com.sothawo.trakxmap.util.GeoHash;
 import com.sothawo.trakxmap.util.I18N;
 import com.sothawo.trakxmap.util.PathTools;
+import com.sothawo.trakxmap.util.TrackColumns;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.hibernate.Hibernate;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.annotations.QueryHints;
 import org.hibernate.jpa.HibernatePersistenceProvider;
+import org.hibernate.stat.CacheRegionStatistics;
+import org.hibernate.stat.Statistics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -27,6 +37,7 @@ import javax.persistence.*;
 import javax.persistence.spi.PersistenceProvider;
 import javax.persistence.spi.PersistenceProviderResolver;
 import javax.persistence.spi.PersistenceProviderResolverHolder;
+import java.time.LocalDateTime;
 import java.util.*;
 
 /**
@@ -34,13 +45,21 @@ import java.util.*;
  *
  * @author P.J.Meisch (pj.meisch@jaroso.de)
  */
-public class DB implements AutoCloseable {
+public class DB implements TrackRepository {
 // ------------------------------ FIELDS ------------------------------
 
     /** the Logger */
     private final static Logger logger = LoggerFactory.getLogger(DB.class);
     /** name of the persistence unit */
     private static final String PERSISTENCE_UNIT_NAME = "trakxmap";
+    private static final String CONF_CACHE_ENABLED = "cache.enabled";
+    private static final String CONF_CACHE_CONFIG = "cache.config";
+    private static final String CONF_CACHE_STATISTICS = "cache.statistics";
+    /** maximum number of cells in one query */
+    private static final int CELLS_PER_QUERY = 500;
+
+    /** database configuration */
+    private final Config config = ConfigFactory.load().getConfig(DB.class.getCanonicalName());
 
     /** Entity Manager Factory */
     private final EntityManagerFactory emf;
@@ -77,23 +96,40 @@ public class DB implements AutoCloseable {
 // --------------------------- CONSTRUCTORS ---------------------------
 
     /**
-     * initializes the object. creates a EntityManagerFactory for the persitence unit #PERSISTENCE_UNIT_NAME
+     * initializes the object for the application's database.
      */
     public DB() {
+        this(PathTools.getJdbcUrl());
+    }
+
+    /**
+     * initializes the object. creates a EntityManagerFactory for the persitence unit #PERSISTENCE_UNIT_NAME. The
+     * settings for the second level cache from the configuration overwrite the ones from persistence.xml.
+     *
+     * @param jdbcUrl
+     *         the JDBC URL of the database
+     */
+    public DB(String jdbcUrl) {
         Map<String, String> props = new HashMap<>();
-        props.put("hibernate.connection.url", PathTools.getJdbcUrl());
+        props.put("hibernate.connection.url", jdbcUrl);
+        boolean cacheEnabled = config.getBoolean(CONF_CACHE_ENABLED);
+        props.put("hibernate.cache.use_second_level_cache", String.valueOf(cacheEnabled));
+        props.put("hibernate.cache.use_query_cache", String.valueOf(cacheEnabled));
+        props.put("hibernate.javax.cache.uri", config.getString(CONF_CACHE_CONFIG));
+        props.put("hibernate.generate_statistics", String.valueOf(config.getBoolean(CONF_CACHE_STATISTICS)));
         emf = Persistence.createEntityManagerFactory(PERSISTENCE_UNIT_NAME, props);
     }
 
 // ------------------------ INTERFACE METHODS ------------------------
 
 
-// --------------------- Interface AutoCloseable ---------------------
+// --------------------- Interface TrackRepository ---------------------
 
     @Override
     public void close() {
         try {
             if (null != emf) {
+                logCacheStatistics();
                 emf.close();
             }
         } catch (RuntimeException e) {
@@ -110,13 +146,18 @@ public class DB implements AutoCloseable {
      *         the track to delete
      * @return optional failure
      */
+    @Override
     public Optional<Failure> deleteTrack(Track track) {
         try {
             EntityManager em = emf.createEntityManager();
             EntityTransaction tx = em.getTransaction();
             tx.begin();
-            // remove the merged instance, not the argument
-            em.remove(em.merge(track));
+            // remove a managed instance, the argument may have released its trackpoints
+            Track managedTrack = em.find(Track.class, track.getId());
+            if (null != managedTrack) {
+                em.unwrap(Session.class).doWork(connection -> RollupTable.remove(connection, managedTrack.getId()));
+                em.remove(managedTrack);
+            }
             tx.commit();
             em.close();
         } catch (IllegalStateException | IllegalArgumentException | PersistenceException e) {
@@ -126,17 +167,41 @@ public class DB implements AutoCloseable {
         return Optional.empty();
     }
 
+    /**
+     * logs the second level cache hit/miss statistics if statistics are enabled.
+     */
+    public void logCacheStatistics() {
+        Statistics statistics = emf.unwrap(SessionFactory.class).getStatistics();
+        if (statistics.isStatisticsEnabled()) {
+            logger.info("second level cache: {} hits, {} misses, {} puts", statistics.getSecondLevelCacheHitCount(),
+                    statistics.getSecondLevelCacheMissCount(), statistics.getSecondLevelCachePutCount());
+            logger.info("query cache: {} hits, {} misses, {} puts", statistics.getQueryCacheHitCount(),
+                    statistics.getQueryCacheMissCount(), statistics.getQueryCachePutCount());
+            for (String regionName : statistics.getSecondLevelCacheRegionNames()) {
+                CacheRegionStatistics regionStatistics = statistics.getCacheRegionStatistics(regionName);
+                if (null != regionStatistics) {
+                    logger.info("cache region {}: {} hits, {} misses, {} puts", regionName,
+                            regionStatistics.getHitCount(), regionStatistics.getMissCount(),
+                            regionStatistics.getPutCount());
+                }
+            }
+        }
+    }
+
     /**
      * loads the ids of all tracks from the database
      *
      * @return List of track, may be emtpy but not null
      */
+    @Override
     public List<Long> loadTrackIds() {
         List<Long> ids = new ArrayList<>();
         logger.debug(I18N.get(I18N.LOG_LOADING_TRACKS));
         try {
             EntityManager em = emf.createEntityManager();
-            List<Long> resultList = em.createQuery("select t.id from Track t", Long.class).getResultList();
+            List<Long> resultList = em.createQuery("select t.id from Track t", Long.class)
+                    .setHint(QueryHints.CACHEABLE, true)
+                    .getResultList();
             ids.addAll(resultList);
             em.close();
         } catch (IllegalStateException | IllegalArgumentException | PersistenceException e) {
@@ -145,6 +210,91 @@ public class DB implements AutoCloseable {
         return ids;
     }
 
+    /**
+     * loads the geohash cells of all tracks from the TRACK_CELL table.
+     *
+     * @return map from track id to the cells of the track, may be empty but not null
+     */
+    @Override
+    public Map<Long, Set<String>> loadTrackCells() {
+        Map<Long, Set<String>> cells = new HashMap<>();
+        try {
+            EntityManager em = emf.createEntityManager();
+            em.createQuery("select t.id, c from Track t join t.cells c", Object[].class)
+                    .getResultList()
+                    .forEach(row -> cells.computeIfAbsent((Long) row[0], id -> new HashSet<>()).add((String) row[1]));
+            em.close();
+        } catch (IllegalStateException | IllegalArgumentException | PersistenceException e) {
+            logger.error(I18N.get(I18N.ERROR_LOADING_TRACK), e);
+        }
+        return cells;
+    }
+
+    /**
+     * loads the ids of the tracks passing through any of the given geohash cells. The cells of the index precision
+     * are searched in chunks with one query each, for every cell with a lower precision the cells starting with it are
+     * searched.
+     *
+     * @param cells
+     *         the geohash cells
+     * @return the sorted ids of the tracks, may be empty but not null
+     */
+    @Override
+    public List<Long> loadTrackIdsCoveringCells(Collection<String> cells) {
+        SortedSet<Long> ids = new TreeSet<>();
+        try {
+            EntityManager em = emf.createEntityManager();
+            List<String> indexCells = new ArrayList<>();
+            for (String cell : GeoHash.normalize(cells, GeoHash.INDEX_PRECISION)) {
+                if (cell.length() == GeoHash.INDEX_PRECISION) {
+                    indexCells.add(cell);
+                } else {
+                    // geohashes contain no wildcard characters
+                    ids.addAll(em.createQuery("select distinct t.id from Track t join t.cells c where c like :prefix",
+                            Long.class)
+                            .setParameter("prefix", cell + '%')
+                            .getResultList());
+                }
+            }
+            for (int from = 0; from < indexCells.size(); from += CELLS_PER_QUERY) {
+                ids.addAll(em.createQuery("select distinct t.id from Track t join t.cells c where c in :cells",
+                        Long.class)
+                        .setParameter("cells", indexCells.subList(from,
+                                Math.min(indexCells.size(), from + CELLS_PER_QUERY)))
+                        .getResultList());
+            }
+            em.close();
+        } catch (IllegalStateException | IllegalArgumentException | PersistenceException e) {
+            logger.error(I18N.get(I18N.ERROR_LOADING_TRACK), e);
+        }
+        return new ArrayList<>(ids);
+    }
+
+    /**
+     * loads the totals of the tracks per week, month or year from the TRACK_ROLLUP table.
+     *
+     * @param period
+     *         the period type
+     * @param from
+     *         start of the time range, inclusive
+     * @param to
+     *         end of the time range, exclusive
+     * @return the totals ordered by start, empty on errors
+     */
+    @Override
+    public List<TrackRollup> loadRollups(TrackRollup.Period period, LocalDateTime from, LocalDateTime to) {
+        List<TrackRollup> rollups = Collections.emptyList();
+        try {
+            EntityManager em = emf.createEntityManager();
+            rollups = em.unwrap(Session.class)
+                    .doReturningWork(connection -> RollupTable.load(connection, period, from, to));
+            em.close();
+        } catch (IllegalStateException | PersistenceException e) {
+            logger.error(I18N.get(I18N.ERROR_LOADING_ROLLUPS), e);
+        }
+        return rollups;
+    }
+
     /**
      * loads the track with the given id from the database
      *
@@ -152,50 +302,126 @@ public class DB implements AutoCloseable {
      *         track id
      * @return Track if found
      */
+    @Override
     public Optional<Track> loadTrackWithId(final Long id) {
         Optional<Track> optionalTrack = Optional.empty();
         logger.debug(I18N.get(I18N.LOG_LOADING_TRACK, id));
         try {
             EntityManager em = emf.createEntityManager();
-            optionalTrack = Optional.ofNullable(
-                    em.createQuery("select t from Track t where id = :id", Track.class).setParameter("id", id)
-                            .getSingleResult());
+            // find by id so that the track is taken from the second level cache if it is there
+            optionalTrack = Optional.ofNullable(em.find(Track.class, id));
             optionalTrack.ifPresent(track -> {
-                // calculate trackpoint distances when not yet in database
-                List<TrackPoint> trackPoints = track.getTrackPoints();
-                if (null != trackPoints && 0 != trackPoints.size() && null == trackPoints.get(0).getDistance()) {
-                    // Wrap it in a transaction to have the changes stored in the db
-                    EntityTransaction tx = em.getTransaction();
-                    tx.begin();
-                    Geo.updateTrackDistances(track);
-                    tx.commit();
+                // the cells are loaded lazily, the track is used after the EntityManager is closed
+                Hibernate.initialize(track.getCells());
+                // distances from an older version or another engine are recalculated with the current one
+                boolean engineChanged = !Geo.getDistanceEngine().name().equals(track.getDistanceEngine());
+                boolean cellsMissing = track.getCells().isEmpty();
+                boolean statisticsMissing = !track.hasStatistics();
+                boolean boundingBoxMissing = !track.hasBoundingBox();
+                boolean valuesMissing = engineChanged || cellsMissing || statisticsMissing || boundingBoxMissing;
+                // the trackpoints are loaded lazily, only when values must be calculated or when they are kept
+                if (valuesMissing || !Track.hasTrackColumnsLoader()) {
+                    List<TrackPoint> trackPoints = track.getTrackPoints();
+                    Hibernate.initialize(trackPoints);
+                    if (valuesMissing && !trackPoints.isEmpty()) {
+                        boolean distancesMissing = engineChanged || null == trackPoints.get(0).getDistance();
+                        // calculate trackpoint distances, geohash cells, statistics and bounding box in a transaction
+                        // to have the changes stored in the db
+                        EntityTransaction tx = em.getTransaction();
+                        tx.begin();
+                        if (distancesMissing && !statisticsMissing) {
+                            // the totals contain the statistics from the old distances, the TRACK row still has them
+                            em.unwrap(Session.class).doWork(connection -> RollupTable.remove(connection, id));
+                        }
+                        if (distancesMissing) {
+                            Geo.updateTrackDistances(track);
+                        }
+                        if (cellsMissing) {
+                            Geo.updateTrackCells(track);
+                        }
+                        if (distancesMissing || statisticsMissing) {
+                            track.updateStatistics();
+                        }
+                        if (distancesMissing || statisticsMissing) {
+                            // the track was not counted in the totals without statistics
+                            em.unwrap(Session.class)
+                                    .doWork(connection -> RollupTable.add(connection, track.getStatistics()));
+                        }
+                        if (boundingBoxMissing) {
+                            track.updateBoundingBox();
+                        }
+                        tx.commit();
+                    }
                 }
             });
             em.close();
+            // the track is detached now, the columns are built from the store or with loadTrackColumns()
+            optionalTrack.ifPresent(Track::releaseTrackPoints);
         } catch (IllegalStateException | IllegalArgumentException | PersistenceException e) {
             logger.error(I18N.get(I18N.ERROR_LOADING_TRACK), e);
         }
         return optionalTrack;
     }
 
+    /**
+     * loads the values of the trackpoints of a track as columns with a scalar query, so no TrackPoint entities are
+     * created and the second level cache is not used.
+     *
+     * @param trackId
+     *         track id
+     * @return the columns, empty on errors
+     */
+    @Override
+    public Optional<TrackColumns> loadTrackColumns(Long trackId) {
+        try {
+            EntityManager em = emf.createEntityManager();
+            TrackColumns.Builder builder = new TrackColumns.Builder();
+            List<Object[]> rows = em.createQuery("select p.latitude, p.longitude, p.elevation, p.distance, " +
+                    "p.timestamp from TrackPoint p where p.track.id = :id order by p.sequence", Object[].class)
+                    .setParameter("id", trackId)
+                    .getResultList();
+            rows.forEach(row -> builder.add((Double) row[0], (Double) row[1], (Double) row[2], (Double) row[3],
+                    (LocalDateTime) row[4]));
+            em.close();
+            return Optional.of(builder.build());
+        } catch (IllegalStateException | IllegalArgumentException | PersistenceException e) {
+            logger.error(I18N.get(I18N.ERROR_LOADING_TRACK), e);
+        }
+        return Optional.empty();
+    }
+
     /**
      * stores a track in the database
      *
      * @param track
      *         the track to store
      */
+    @Override
     public Optional<Failure> store(Track track) {
         if (null != track) {
             try {
                 EntityManager em = emf.createEntityManager();
                 EntityTransaction tx = em.getTransaction();
-                tx.begin();
-                em.persist(track);
-                tx.commit();
-                em.close();
+                try {
+                    tx.begin();
+                    em.persist(track);
+                    em.unwrap(Session.class)
+                            .doWork(connection -> RollupTable.add(connection, track.getStatistics()));
+                    tx.commit();
+                } catch (IllegalStateException | IllegalArgumentException | PersistenceException e) {
+                    if (tx.isActive()) {
+                        tx.rollback();
+                    }
+                    // the id was generated by the insert that was rolled back, the track can be stored again
+                    track.setId(null);
+                    throw e;
+                } finally {
+                    em.close();
+                }
             } catch (IllegalStateException | IllegalArgumentException | PersistenceException e) {
                 return Optional.of(new Failure("store", e));
             }
+            track.releaseTrackPoints();
         }
         return Optional.empty();
     }
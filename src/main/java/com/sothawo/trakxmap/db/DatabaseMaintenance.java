@@ -0,0 +1,427 @@
+/*
+ Copyright 2015 Peter-Josef Meisch (pj.meisch@sothawo.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.sothawo.trakxmap.db;
+
+import com.sothawo.trakxmap.util.PathTools;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Maintenance jobs for the H2 database. A maintenance run refreshes the optimizer statistics, checks the values that
+ * are stored for the tracks and writes a checkpoint, reporting the file size and fill rates before and after. Runs
+ * are executed one after the other on a background thread, either on demand or scheduled; they use their own
+ * connection so the database stays usable while they run.
+ *
+ * The totals in the TRACK_ROLLUP table are only rebuilt when the table is empty, or on demand with {@link
+ * #rebuildRollupsAsync()}: the rebuild replaces all totals with the ones computed from the committed tracks, so the
+ * changes of a track that is stored at the same time would be lost.
+ *
+ * While the database is open, only H2 itself rewrites chunks with its default retention time. When a run finds the
+ * store more fragmented than configured, the file is fully compacted with SHUTDOWN COMPACT by {@link
+ * #compactOnExit()} when the program ends, as this needs exclusive access. As the H2 indexes are stored in the same
+ * MVStore as the table data, the compaction rewrites the index pages as well.
+ *
+ * @author P.J. Meisch (pj.meisch@sothawo.com).
+ */
+public class DatabaseMaintenance implements AutoCloseable {
+// ------------------------------ FIELDS ------------------------------
+
+    /** the Logger */
+    private final static Logger logger = LoggerFactory.getLogger(DatabaseMaintenance.class);
+
+    private static final String CONF_INTERVAL = "interval";
+    private static final String CONF_COMPACT_FRAGMENTATION = "compactFragmentation";
+    private static final String CONF_COMPACT_ON_EXIT = "compactOnExit";
+    /** condition for the tracks with trackpoints, the TRACK table has the alias t */
+    private static final String SQL_HAS_TRACKPOINTS =
+            "exists (select 1 from TRACKPOINT p where p.TRACK_ID = t.ID)";
+
+    /** maintenance configuration */
+    private final Config config = ConfigFactory.load().getConfig(DatabaseMaintenance.class.getCanonicalName());
+    /** JDBC URL of the database */
+    private final String jdbcUrl;
+    /** the database file */
+    private final Path databaseFile;
+    /** the thread the maintenance runs on */
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "db-maintenance");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+    /** set when a maintenance run found the store fragmented enough for a compaction on exit */
+    private final AtomicBoolean compactionDue = new AtomicBoolean(false);
+
+// --------------------------- CONSTRUCTORS ---------------------------
+
+    /**
+     * creates the maintenance object for the application's database.
+     */
+    public DatabaseMaintenance() {
+        this(PathTools.getJdbcUrl(), PathTools.getDatabaseFile());
+    }
+
+    /**
+     * creates the maintenance object for a database.
+     *
+     * @param jdbcUrl
+     *         JDBC URL of the database
+     * @param databaseFile
+     *         the database file
+     */
+    public DatabaseMaintenance(String jdbcUrl, Path databaseFile) {
+        this.jdbcUrl = jdbcUrl;
+        this.databaseFile = databaseFile;
+    }
+
+// ------------------------ INTERFACE METHODS ------------------------
+
+
+// --------------------- Interface AutoCloseable ---------------------
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+// -------------------------- OTHER METHODS --------------------------
+
+    /**
+     * schedules the maintenance with the interval from the configuration; an interval of 0 disables scheduled
+     * maintenance. The first run is after one interval.
+     */
+    public void schedule() {
+        // a database updated from a version without TRACK_ROLLUP has an empty table
+        executor.execute(() -> {
+            try (Connection connection = DriverManager.getConnection(jdbcUrl)) {
+                if (RollupTable.needsRebuild(connection)) {
+                    rebuildRollups(connection);
+                }
+            } catch (SQLException e) {
+                logger.warn("building track rollups", e);
+            }
+        });
+        long intervalMinutes = config.getDuration(CONF_INTERVAL, TimeUnit.MINUTES);
+        if (intervalMinutes > 0) {
+            logger.info("scheduling database maintenance every {} minutes", intervalMinutes);
+            executor.scheduleWithFixedDelay(this::runMaintenance, intervalMinutes, intervalMinutes, TimeUnit.MINUTES);
+        }
+    }
+
+    /**
+     * runs the maintenance in the background.
+     *
+     * @return future with the report of the run
+     */
+    public CompletableFuture<Report> runAsync() {
+        return CompletableFuture.supplyAsync(this::runMaintenance, executor);
+    }
+
+    /**
+     * rebuilds the totals in the TRACK_ROLLUP table from the track statistics in the background. This should only be
+     * called when no tracks are stored or deleted at the same time.
+     *
+     * @return future with the number of totals that were missing or wrong
+     */
+    public CompletableFuture<Integer> rebuildRollupsAsync() {
+        return CompletableFuture.supplyAsync(() -> {
+            try (Connection connection = DriverManager.getConnection(jdbcUrl)) {
+                return rebuildRollups(connection);
+            } catch (SQLException e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    /**
+     * runs the maintenance jobs. The run itself does not compact the file, the report tells whether it is compacted
+     * when the program ends.
+     *
+     * @return the report
+     */
+    private Report runMaintenance() {
+        logger.info("starting database maintenance");
+        long startMillis = System.currentTimeMillis();
+        Report report = new Report();
+        try (Connection connection = DriverManager.getConnection(jdbcUrl)) {
+            report.fileSizeBefore = fileSize();
+            report.chunksFillRateBefore = chunksFillRate(connection);
+
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("ANALYZE");
+            }
+            if (RollupTable.needsRebuild(connection)) {
+                rebuildRollups(connection);
+            }
+            report.problems.addAll(checkIntegrity(connection));
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("CHECKPOINT SYNC");
+            }
+
+            report.fileSizeAfter = fileSize();
+            report.chunksFillRateAfter = chunksFillRate(connection);
+            if (report.getFragmentationAfter() >= config.getInt(CONF_COMPACT_FRAGMENTATION)) {
+                logger.info("database fragmentation {}%, compacting on exit", report.getFragmentationAfter());
+                compactionDue.set(true);
+            }
+            report.compactionOnExit = config.getBoolean(CONF_COMPACT_ON_EXIT) || compactionDue.get();
+        } catch (SQLException e) {
+            logger.warn("database maintenance", e);
+            report.problems.add(e.getMessage());
+        }
+        report.durationMillis = System.currentTimeMillis() - startMillis;
+        logger.info("database maintenance finished: {}", report);
+        return report;
+    }
+
+    /**
+     * checks the values that are derived from the trackpoints and stored for each track: the geohash cells, the
+     * bounding box and distances and the totals in TRACK_ROLLUP. Missing values of a track are computed when it is
+     * loaded the next time, wrong totals are only corrected by {@link #rebuildRollupsAsync()}. The checks run in one
+     * transaction with repeatable read isolation, so tracks that are stored at the same time are either seen with all
+     * their values or not at all.
+     *
+     * @param connection
+     *         the connection to use
+     * @return list of problem descriptions, empty if everything is ok
+     * @throws SQLException
+     *         on errors
+     */
+    private List<String> checkIntegrity(Connection connection) throws SQLException {
+        List<String> problems = new ArrayList<>();
+        int isolation = connection.getTransactionIsolation();
+        connection.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+        connection.setAutoCommit(false);
+        try {
+            long withoutCells = count(connection, "select count(*) from TRACK t where " + SQL_HAS_TRACKPOINTS +
+                    " and not exists (select 1 from TRACK_CELL c where c.TRACK_ID = t.ID)");
+            if (withoutCells > 0) {
+                problems.add(String.format("TRACK_CELL: %d tracks without cells", withoutCells));
+            }
+            long withoutBoundingBox = count(connection, "select count(*) from TRACK t where " +
+                    SQL_HAS_TRACKPOINTS + " and (t.MIN_LATITUDE is null or t.MAX_LATITUDE is null or " +
+                    "t.MIN_LONGITUDE is null or t.MAX_LONGITUDE is null)");
+            if (withoutBoundingBox > 0) {
+                problems.add(String.format("TRACK: %d tracks without bounding box", withoutBoundingBox));
+            }
+            long withoutDistance = count(connection, "select count(*) from TRACK t where " + SQL_HAS_TRACKPOINTS +
+                    " and t.DISTANCE is null");
+            if (withoutDistance > 0) {
+                problems.add(String.format("TRACK: %d tracks without distance", withoutDistance));
+            }
+            long pointsWithoutDistance =
+                    count(connection, "select count(distinct TRACK_ID) from TRACKPOINT where DISTANCE is null");
+            if (pointsWithoutDistance > 0) {
+                problems.add(String.format("TRACKPOINT: %d tracks with points without distance",
+                        pointsWithoutDistance));
+            }
+            RollupTable.verify(connection).forEach(difference -> problems.add("TRACK_ROLLUP: " + difference));
+            connection.commit();
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(true);
+            connection.setTransactionIsolation(isolation);
+        }
+        return problems;
+    }
+
+    /**
+     * rebuilds the TRACK_ROLLUP table in one transaction.
+     *
+     * @param connection
+     *         the connection to use
+     * @return the number of totals that were missing or wrong
+     * @throws SQLException
+     *         on errors
+     */
+    private int rebuildRollups(Connection connection) throws SQLException {
+        connection.setAutoCommit(false);
+        try {
+            int corrected = RollupTable.rebuild(connection);
+            connection.commit();
+            logger.info("track rollups rebuilt, {} totals corrected", corrected);
+            return corrected;
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(true);
+        }
+    }
+
+    /**
+     * does a full compaction of the database with SHUTDOWN COMPACT. This needs exclusive access to the database, so
+     * it may only be called after all other connections are closed, normally when the application stops. Does
+     * nothing if compactOnExit is not set in the configuration and no maintenance run found the store fragmented.
+     */
+    public void compactOnExit() {
+        if (config.getBoolean(CONF_COMPACT_ON_EXIT) || compactionDue.get()) {
+            long sizeBefore = fileSize();
+            try (Connection connection = DriverManager.getConnection(jdbcUrl);
+                 Statement statement = connection.createStatement()) {
+                statement.execute("SHUTDOWN COMPACT");
+            } catch (SQLException e) {
+                logger.warn("database compaction", e);
+            }
+            logger.info("database compacted from {} to {} bytes", sizeBefore, fileSize());
+        }
+    }
+
+    /**
+     * gets the chunks fill rate of the MVStore, 100 minus this value is the fragmentation.
+     *
+     * @param connection
+     *         the connection to use
+     * @return the fill rate in percent, -1 if not available
+     * @throws SQLException
+     *         on errors
+     */
+    private int chunksFillRate(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("select SETTING_VALUE from INFORMATION_SCHEMA.SETTINGS " +
+                     "where SETTING_NAME = 'info.CHUNKS_FILL_RATE'")) {
+            return resultSet.next() ? Integer.parseInt(resultSet.getString(1)) : -1;
+        }
+    }
+
+    /**
+     * executes a count query.
+     *
+     * @param connection
+     *         the connection to use
+     * @param sql
+     *         the query
+     * @return the count
+     * @throws SQLException
+     *         on errors
+     */
+    private long count(Connection connection, String sql) throws SQLException {
+        try (Statement statement = connection.createStatement(); ResultSet resultSet = statement.executeQuery(sql)) {
+            return resultSet.next() ? resultSet.getLong(1) : 0;
+        }
+    }
+
+    /**
+     * gets the size of the database file.
+     *
+     * @return size in bytes, -1 if not available
+     */
+    private long fileSize() {
+        try {
+            return Files.size(databaseFile);
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+// -------------------------- INNER CLASSES --------------------------
+
+    /**
+     * the result of a maintenance run.
+     */
+    public static final class Report {
+        /** file size before the run */
+        private long fileSizeBefore = -1;
+        /** file size after the run */
+        private long fileSizeAfter = -1;
+        /** chunks fill rate before the run */
+        private int chunksFillRateBefore = -1;
+        /** chunks fill rate after the run */
+        private int chunksFillRateAfter = -1;
+        /** problems found */
+        private final List<String> problems = new ArrayList<>();
+        /** duration of the run */
+        private long durationMillis;
+        /** set when the database file is compacted when the program ends */
+        private boolean compactionOnExit;
+
+        public long getFileSizeBefore() {
+            return fileSizeBefore;
+        }
+
+        public long getFileSizeAfter() {
+            return fileSizeAfter;
+        }
+
+        /**
+         * the fragmentation is the percentage of unused space in the chunks of the store.
+         *
+         * @return fragmentation in percent before the run, -1 if unknown
+         */
+        public int getFragmentationBefore() {
+            return chunksFillRateBefore < 0 ? -1 : 100 - chunksFillRateBefore;
+        }
+
+        /**
+         * the fragmentation is the percentage of unused space in the chunks of the store.
+         *
+         * @return fragmentation in percent after the run, -1 if unknown
+         */
+        public int getFragmentationAfter() {
+            return chunksFillRateAfter < 0 ? -1 : 100 - chunksFillRateAfter;
+        }
+
+        public List<String> getProblems() {
+            return Collections.unmodifiableList(problems);
+        }
+
+        public long getDurationMillis() {
+            return durationMillis;
+        }
+
+        /**
+         * a maintenance run does not compact the database file, as this needs exclusive access to the database.
+         *
+         * @return true if the file is compacted with {@link #compactOnExit()} when the program ends
+         */
+        public boolean isCompactionOnExit() {
+            return compactionOnExit;
+        }
+
+        @Override
+        public String toString() {
+            return "Report{" +
+                    "fileSize=" + fileSizeBefore + "->" + fileSizeAfter +
+                    ", fragmentation=" + getFragmentationBefore() + "%->" + getFragmentationAfter() + '%' +
+                    ", problems=" + problems +
+                    ", compactionOnExit=" + compactionOnExit +
+                    ", durationMillis=" + durationMillis +
+                    '}';
+        }
+    }
+}
@@ -0,0 +1,409 @@
+/*
+ Copyright 2015 Peter-Josef Meisch (pj.meisch@sothawo.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.sothawo.trakxmap.db;
+
+import com.sothawo.trakxmap.util.TrackColumns;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Finds tracks that are recordings of the same ride. The detection has three steps:
+ *
+ * <ol>
+ * <li>a MinHash signature is computed for every track from the geohash cells stored in the TRACK_CELL table, the
+ * fraction of equal signature values estimates the Jaccard similarity of the cell sets.</li>
+ * <li>locality sensitive hashing of bands of the signatures gives the candidate pairs: only tracks that have at least
+ * one band in common are compared, so the number of comparisons grows with the number of similar tracks and not
+ * quadratically with the number of tracks.</li>
+ * <li>the candidate pairs are verified with the discrete Fréchet distance of the tracks resampled to a fixed spacing;
+ * the verified pairs are joined to clusters.</li>
+ * </ol>
+ *
+ * Only the trackpoints of the candidate tracks are used, the first two steps work on the cells alone.
+ *
+ * @author P.J. Meisch (pj.meisch@sothawo.com).
+ */
+public class DuplicateDetector {
+// ------------------------------ FIELDS ------------------------------
+
+    /** the Logger */
+    private final static Logger logger = LoggerFactory.getLogger(DuplicateDetector.class);
+
+    private static final String CONF_SIMILARITY = "similarity";
+    private static final String CONF_FRECHET_DISTANCE = "frechetDistance";
+    private static final String CONF_MAX_POINTS = "maxPoints";
+    /** number of hash functions of the MinHash signature */
+    private static final int SIGNATURE_SIZE = 64;
+    /**
+     * number of signature values in one band. With 16 bands of 4 values pairs with a similarity of 0.5 become
+     * candidates with a probability of 64%, pairs with 0.8 with a probability of more than 99.9%.
+     */
+    private static final int BAND_SIZE = 4;
+    /** mean earth radius for the local projection */
+    private static final double EARTH_RADIUS = 6371008.8;
+
+    /** detector configuration */
+    private final Config config = ConfigFactory.load().getConfig(DuplicateDetector.class.getCanonicalName());
+    /** the repository with the track cell index */
+    private final TrackRepository repository;
+    /** the function to get the tracks for the candidate ids */
+    private final Function<Long, Optional<Track>> trackLoader;
+
+// --------------------------- CONSTRUCTORS ---------------------------
+
+    /**
+     * creates a detector that loads the candidate tracks from the repository.
+     *
+     * @param repository
+     *         the repository
+     */
+    public DuplicateDetector(TrackRepository repository) {
+        this(repository, repository::loadTrackWithId);
+    }
+
+    /**
+     * creates a detector that uses the cells from the repository and gets the candidate tracks from a function.
+     *
+     * @param repository
+     *         the repository
+     * @param trackLoader
+     *         function returning the track for an id
+     */
+    public DuplicateDetector(TrackRepository repository, Function<Long, Optional<Track>> trackLoader) {
+        this.repository = Objects.requireNonNull(repository);
+        this.trackLoader = Objects.requireNonNull(trackLoader);
+    }
+
+// -------------------------- STATIC METHODS --------------------------
+
+    /**
+     * computes the MinHash signature of a set of cells. The hash functions are the splitmix64 finalizer applied to the
+     * cell's hash code combined with a different constant for each function.
+     *
+     * @param cells
+     *         the cells
+     * @return the signature
+     */
+    static long[] signature(Set<String> cells) {
+        long[] signature = new long[SIGNATURE_SIZE];
+        Arrays.fill(signature, Long.MAX_VALUE);
+        for (String cell : cells) {
+            long hash = cell.hashCode();
+            for (int i = 0; i < SIGNATURE_SIZE; i++) {
+                long value = mix(hash + (i + 1) * 0x9E3779B97F4A7C15L);
+                if (value < signature[i]) {
+                    signature[i] = value;
+                }
+            }
+        }
+        return signature;
+    }
+
+    /**
+     * finds the root of an id in the union find structure, compressing the path.
+     */
+    private static long find(Map<Long, Long> parents, long id) {
+        Long parent = parents.putIfAbsent(id, id);
+        if (null == parent || parent == id) {
+            return id;
+        }
+        long root = find(parents, parent);
+        parents.put(id, root);
+        return root;
+    }
+
+    /**
+     * the finalizer of splitmix64.
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * estimates the Jaccard similarity from two signatures.
+     */
+    static double similarity(long[] signature1, long[] signature2) {
+        int equal = 0;
+        for (int i = 0; i < SIGNATURE_SIZE; i++) {
+            if (signature1[i] == signature2[i]) {
+                equal++;
+            }
+        }
+        return (double) equal / SIGNATURE_SIZE;
+    }
+
+    /**
+     * computes the discrete Fréchet distance of two lines in an equirectangular projection around the first point of
+     * the first line. The dynamic programming table is computed row by row; as every coupling passes through every row,
+     * the computation stops as soon as a row has no value below the limit.
+     *
+     * @param line1
+     *         the first line as {latitudes, longitudes}
+     * @param line2
+     *         the second line as {latitudes, longitudes}
+     * @param limit
+     *         the distance in meters above which the exact value is not needed
+     * @return the distance in meters, or positive infinity if it is larger than the limit
+     */
+    static double frechetDistance(double[][] line1, double[][] line2, double limit) {
+        int n = line1[0].length;
+        int m = line2[0].length;
+        if (0 == n || 0 == m) {
+            return Double.POSITIVE_INFINITY;
+        }
+        double metersPerDegree = Math.toRadians(EARTH_RADIUS);
+        double metersPerDegreeLongitude = metersPerDegree * Math.cos(Math.toRadians(line1[0][0]));
+        double[] x2 = new double[m];
+        double[] y2 = new double[m];
+        for (int j = 0; j < m; j++) {
+            x2[j] = line2[1][j] * metersPerDegreeLongitude;
+            y2[j] = line2[0][j] * metersPerDegree;
+        }
+        double limit2 = limit * limit;
+        double[] previous = new double[m];
+        double[] current = new double[m];
+        for (int i = 0; i < n; i++) {
+            double x = line1[1][i] * metersPerDegreeLongitude;
+            double y = line1[0][i] * metersPerDegree;
+            double rowMinimum = Double.POSITIVE_INFINITY;
+            for (int j = 0; j < m; j++) {
+                double dx = x - x2[j];
+                double dy = y - y2[j];
+                double d2 = dx * dx + dy * dy;
+                double reach;
+                if (0 == i && 0 == j) {
+                    reach = d2;
+                } else if (0 == i) {
+                    reach = current[j - 1];
+                } else if (0 == j) {
+                    reach = previous[0];
+                } else {
+                    reach = Math.min(previous[j], Math.min(previous[j - 1], current[j - 1]));
+                }
+                current[j] = Math.max(reach, d2);
+                rowMinimum = Math.min(rowMinimum, current[j]);
+            }
+            if (rowMinimum > limit2) {
+                return Double.POSITIVE_INFINITY;
+            }
+            double[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return Math.sqrt(previous[m - 1]);
+    }
+
+    /**
+     * resamples the trackpoints of a track to points with a fixed distance along the track, measured in the local
+     * projection of the track's first point.
+     *
+     * @param track
+     *         the track
+     * @param spacing
+     *         the minimum spacing in meters
+     * @param maxPoints
+     *         the maximum number of points, the spacing is increased for long tracks
+     * @return the resampled line as {latitudes, longitudes}
+     */
+    static double[][] resample(Track track, double spacing, int maxPoints) {
+        TrackColumns columns = track.getTrackColumns();
+        int count = columns.size();
+        if (0 == count) {
+            return new double[][]{new double[0], new double[0]};
+        }
+        TrackColumns.Reader reader = columns.reader();
+        double metersPerDegree = Math.toRadians(EARTH_RADIUS);
+        double metersPerDegreeLongitude = metersPerDegree * Math.cos(Math.toRadians(reader.latitude(0)));
+        double[] lengths = new double[count];
+        for (int i = 1; i < count; i++) {
+            double dx = (reader.longitude(i) - reader.longitude(i - 1)) * metersPerDegreeLongitude;
+            double dy = (reader.latitude(i) - reader.latitude(i - 1)) * metersPerDegree;
+            lengths[i] = lengths[i - 1] + Math.sqrt(dx * dx + dy * dy);
+        }
+        double length = lengths[count - 1];
+        double step = Math.max(spacing, length / (maxPoints - 1));
+        int points = (int) Math.floor(length / step) + 1;
+        double[] latitudes = new double[points + 1];
+        double[] longitudes = new double[points + 1];
+        int segment = 1;
+        for (int k = 0; k < points; k++) {
+            double distance = k * step;
+            while (segment < count - 1 && lengths[segment] < distance) {
+                segment++;
+            }
+            int start = Math.max(0, segment - 1);
+            int end = Math.min(segment, count - 1);
+            double segmentLength = lengths[end] - lengths[start];
+            double t = segmentLength > 0 ? (distance - lengths[start]) / segmentLength : 0.0;
+            latitudes[k] = reader.latitude(start) + t * (reader.latitude(end) - reader.latitude(start));
+            longitudes[k] = reader.longitude(start) + t * (reader.longitude(end) - reader.longitude(start));
+        }
+        // the last point is always included
+        latitudes[points] = reader.latitude(count - 1);
+        longitudes[points] = reader.longitude(count - 1);
+        return new double[][]{latitudes, longitudes};
+    }
+
+// -------------------------- OTHER METHODS --------------------------
+
+    /**
+     * runs the detection.
+     *
+     * @return the report with the clusters of duplicate tracks
+     */
+    public Report detect() {
+        long startMillis = System.currentTimeMillis();
+        double minSimilarity = config.getDouble(CONF_SIMILARITY);
+        double maxFrechet = config.getDouble(CONF_FRECHET_DISTANCE);
+        int maxPoints = config.getInt(CONF_MAX_POINTS);
+
+        Map<Long, long[]> signatures = repository.loadTrackCells().entrySet().parallelStream()
+                .filter(entry -> !entry.getValue().isEmpty())
+                .collect(Collectors.toMap(Map.Entry::getKey, entry -> signature(entry.getValue())));
+
+        // candidate pairs, the key is the smaller id
+        Map<Long, Set<Long>> candidates = new TreeMap<>();
+        for (int band = 0; band < SIGNATURE_SIZE / BAND_SIZE; band++) {
+            Map<List<Long>, List<Long>> buckets = new HashMap<>();
+            for (Map.Entry<Long, long[]> entry : signatures.entrySet()) {
+                List<Long> key = new ArrayList<>(BAND_SIZE);
+                for (int i = band * BAND_SIZE; i < (band + 1) * BAND_SIZE; i++) {
+                    key.add(entry.getValue()[i]);
+                }
+                buckets.computeIfAbsent(key, k -> new ArrayList<>()).add(entry.getKey());
+            }
+            for (List<Long> bucket : buckets.values()) {
+                for (int i = 0; i < bucket.size(); i++) {
+                    for (int j = i + 1; j < bucket.size(); j++) {
+                        long id1 = Math.min(bucket.get(i), bucket.get(j));
+                        long id2 = Math.max(bucket.get(i), bucket.get(j));
+                        candidates.computeIfAbsent(id1, id -> new TreeSet<>()).add(id2);
+                    }
+                }
+            }
+        }
+        List<long[]> pairs = new ArrayList<>();
+        candidates.forEach((id1, ids) -> ids.stream()
+                .filter(id2 -> similarity(signatures.get(id1), signatures.get(id2)) >= minSimilarity)
+                .forEach(id2 -> pairs.add(new long[]{id1, id2})));
+
+        // verification, the resampled lines are computed once per track
+        double spacing = maxFrechet / 2;
+        Map<Long, Optional<double[][]>> lines = new ConcurrentHashMap<>();
+        Function<Long, Optional<double[][]>> line = id -> lines.computeIfAbsent(id,
+                key -> trackLoader.apply(key).map(track -> resample(track, spacing, maxPoints)));
+        List<long[]> duplicates = pairs.parallelStream()
+                .filter(pair -> {
+                    Optional<double[][]> line1 = line.apply(pair[0]);
+                    Optional<double[][]> line2 = line.apply(pair[1]);
+                    return line1.isPresent() && line2.isPresent() &&
+                            frechetDistance(line1.get(), line2.get(), maxFrechet) <= maxFrechet;
+                })
+                .collect(Collectors.toList());
+
+        // clusters with union find
+        Map<Long, Long> parents = new HashMap<>();
+        for (long[] pair : duplicates) {
+            long root1 = find(parents, pair[0]);
+            long root2 = find(parents, pair[1]);
+            if (root1 != root2) {
+                parents.put(Math.max(root1, root2), Math.min(root1, root2));
+            }
+        }
+        Map<Long, List<Long>> clusters = new TreeMap<>();
+        for (Long id : new TreeSet<>(parents.keySet())) {
+            clusters.computeIfAbsent(find(parents, id), root -> new ArrayList<>()).add(id);
+        }
+
+        Report report = new Report(new ArrayList<>(clusters.values()), signatures.size(), pairs.size(),
+                duplicates.size(), System.currentTimeMillis() - startMillis);
+        logger.info("duplicate detection: {}", report);
+        return report;
+    }
+
+// -------------------------- INNER CLASSES --------------------------
+
+    /**
+     * the result of a detection run.
+     */
+    public static final class Report {
+        /** the clusters of duplicate tracks, each sorted by id */
+        private final List<List<Long>> clusters;
+        private final int trackCount;
+        private final int candidatePairs;
+        private final int verifiedPairs;
+        private final long durationMillis;
+
+        Report(List<List<Long>> clusters, int trackCount, int candidatePairs, int verifiedPairs,
+               long durationMillis) {
+            this.clusters = Collections.unmodifiableList(clusters);
+            this.trackCount = trackCount;
+            this.candidatePairs = candidatePairs;
+            this.verifiedPairs = verifiedPairs;
+            this.durationMillis = durationMillis;
+        }
+
+        public List<List<Long>> getClusters() {
+            return clusters;
+        }
+
+        public int getTrackCount() {
+            return trackCount;
+        }
+
+        public int getCandidatePairs() {
+            return candidatePairs;
+        }
+
+        public int getVerifiedPairs() {
+            return verifiedPairs;
+        }
+
+        public long getDurationMillis() {
+            return durationMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "Report{" +
+                    "clusters=" + clusters +
+                    ", trackCount=" + trackCount +
+                    ", candidatePairs=" + candidatePairs +
+                    ", verifiedPairs=" + verifiedPairs +
+                    ", durationMillis=" + durationMillis +
+                    '}';
+        }
+    }
+}
@@ -0,0 +1,839 @@
+/*
+ Copyright 2015 Peter-Josef Meisch (pj.meisch@sothawo.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.sothawo.trakxmap.db;
+
+import com.sothawo.trakxmap.util.Failure;
+import com.sothawo.trakxmap.util.Geo;
+import com.sothawo.trakxmap.util.GeoHash;
+import com.sothawo.trakxmap.util.I18N;
+import com.sothawo.trakxmap.util.PathTools;
+import com.sothawo.trakxmap.util.TrackColumns;
+import com.sothawo.trakxmap.util.TrackStatistics;
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * TrackRepository implementation that uses plain JDBC on the TRACK, TRACKPOINT, ROUTEPOINT, WAYPOINT and TRACK_CELL
+ * tables. The
+ * rows are mapped directly into the Track and Point objects without any persistence context, the Track objects
+ * returned are detached. Connections are taken from a H2 connection pool.
+ *
+ * @author P.J. Meisch (pj.meisch@sothawo.com).
+ */
+public class JdbcTrackRepository implements TrackRepository {
+// ------------------------------ FIELDS ------------------------------
+
+    /** the Logger */
+    private final static Logger logger = LoggerFactory.getLogger(JdbcTrackRepository.class);
+
+    private static final String SQL_SELECT_TRACK_IDS = "select ID from TRACK";
+    private static final String SQL_SELECT_TRACK =
+            "select NAME, FILENAME, DISTANCE, MIN_LATITUDE, DISTANCE_ENGINE, START_TIME, END_TIME, ROUTE_START_TIME, " +
+                    "FIRST_WAYPOINT_TIME, MIN_ELEVATION, MAX_ELEVATION, FILTERED_MIN_ELEVATION, " +
+                    "FILTERED_MAX_ELEVATION, ASCENT, DESCENT, MOVING_TIME, MAX_SPEED from TRACK where ID = ?";
+    private static final String SQL_SELECT_TRACKPOINTS =
+            "select SEQUENCE, LATITUDE, LONGITUDE, ELEVATION, TIMESTAMP, DISTANCE from TRACKPOINT " +
+                    "where TRACK_ID = ? order by SEQUENCE";
+    private static final String SQL_SELECT_TRACKPOINT_VALUES =
+            "select LATITUDE, LONGITUDE, ELEVATION, TIMESTAMP, DISTANCE from TRACKPOINT where TRACK_ID = ? " +
+                    "order by SEQUENCE";
+    private static final String SQL_SELECT_ROUTEPOINTS =
+            "select SEQUENCE, LATITUDE, LONGITUDE, ELEVATION, TIMESTAMP, NAME from ROUTEPOINT " +
+                    "where TRACK_ID = ? order by SEQUENCE";
+    private static final String SQL_SELECT_WAYPOINTS =
+            "select SEQUENCE, LATITUDE, LONGITUDE, ELEVATION, TIMESTAMP, NAME from WAYPOINT " +
+                    "where TRACK_ID = ? order by SEQUENCE";
+    private static final String SQL_INSERT_TRACK =
+            "insert into TRACK (NAME, FILENAME, START_TIME, END_TIME, ROUTE_START_TIME, FIRST_WAYPOINT_TIME, " +
+                    "DISTANCE, MIN_ELEVATION, MAX_ELEVATION, FILTERED_MIN_ELEVATION, FILTERED_MAX_ELEVATION, " +
+                    "ASCENT, DESCENT, MOVING_TIME, MAX_SPEED, MIN_LATITUDE, MIN_LONGITUDE, MAX_LATITUDE, " +
+                    "MAX_LONGITUDE, DISTANCE_ENGINE) values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    private static final String SQL_UPDATE_STATISTICS =
+            "update TRACK set START_TIME = ?, END_TIME = ?, ROUTE_START_TIME = ?, FIRST_WAYPOINT_TIME = ?, " +
+                    "DISTANCE = ?, MIN_ELEVATION = ?, MAX_ELEVATION = ?, FILTERED_MIN_ELEVATION = ?, " +
+                    "FILTERED_MAX_ELEVATION = ?, ASCENT = ?, DESCENT = ?, MOVING_TIME = ?, MAX_SPEED = ? " +
+                    "where ID = ?";
+    private static final String SQL_UPDATE_BOUNDING_BOX =
+            "update TRACK set MIN_LATITUDE = ?, MIN_LONGITUDE = ?, MAX_LATITUDE = ?, MAX_LONGITUDE = ? where ID = ?";
+    private static final String SQL_INSERT_TRACKPOINT =
+            "insert into TRACKPOINT (TRACK_ID, SEQUENCE, LATITUDE, LONGITUDE, ELEVATION, TIMESTAMP, DISTANCE) " +
+                    "values (?, ?, ?, ?, ?, ?, ?)";
+    private static final String SQL_INSERT_ROUTEPOINT =
+            "insert into ROUTEPOINT (TRACK_ID, SEQUENCE, LATITUDE, LONGITUDE, ELEVATION, TIMESTAMP, NAME) " +
+                    "values (?, ?, ?, ?, ?, ?, ?)";
+    private static final String SQL_INSERT_WAYPOINT =
+            "insert into WAYPOINT (TRACK_ID, SEQUENCE, LATITUDE, LONGITUDE, ELEVATION, TIMESTAMP, NAME) " +
+                    "values (?, ?, ?, ?, ?, ?, ?)";
+    private static final String SQL_UPDATE_DISTANCE =
+            "update TRACKPOINT set DISTANCE = ? where TRACK_ID = ? and SEQUENCE = ?";
+    private static final String SQL_UPDATE_DISTANCE_ENGINE = "update TRACK set DISTANCE_ENGINE = ? where ID = ?";
+    private static final String SQL_DELETE_TRACK = "delete from TRACK where ID = ?";
+    private static final String SQL_SELECT_CELLS = "select CELL from TRACK_CELL where TRACK_ID = ?";
+    private static final String SQL_SELECT_ALL_CELLS = "select TRACK_ID, CELL from TRACK_CELL";
+    private static final String SQL_INSERT_CELL = "insert into TRACK_CELL (TRACK_ID, CELL) values (?, ?)";
+    private static final String SQL_SELECT_TRACK_IDS_BY_CELLS =
+            "select distinct TRACK_ID from TRACK_CELL where CELL = any(?)";
+    private static final String SQL_SELECT_TRACK_IDS_BY_CELL_PREFIX =
+            "select distinct TRACK_ID from TRACK_CELL where CELL like ?";
+
+    /** the connection pool */
+    private final JdbcConnectionPool connectionPool;
+
+// --------------------------- CONSTRUCTORS ---------------------------
+
+    /**
+     * creates a repository for the application's database.
+     */
+    public JdbcTrackRepository() {
+        this(PathTools.getJdbcUrl());
+    }
+
+    /**
+     * creates a repository for the given database.
+     *
+     * @param jdbcUrl
+     *         the JDBC URL of the database
+     */
+    public JdbcTrackRepository(String jdbcUrl) {
+        connectionPool = JdbcConnectionPool.create(jdbcUrl, "", "");
+    }
+
+// ------------------------ INTERFACE METHODS ------------------------
+
+
+// --------------------- Interface TrackRepository ---------------------
+
+    @Override
+    public void close() {
+        connectionPool.dispose();
+    }
+
+    @Override
+    public Optional<Failure> deleteTrack(Track track) {
+        if (null != track && null != track.getId()) {
+            try (Connection connection = connectionPool.getConnection()) {
+                connection.setAutoCommit(false);
+                try (PreparedStatement statement = connection.prepareStatement(SQL_DELETE_TRACK)) {
+                    RollupTable.remove(connection, track.getId());
+                    // the points are deleted by the foreign key constraints
+                    statement.setLong(1, track.getId());
+                    statement.executeUpdate();
+                    connection.commit();
+                } catch (SQLException e) {
+                    connection.rollback();
+                    throw e;
+                } finally {
+                    connection.setAutoCommit(true);
+                }
+            } catch (SQLException e) {
+                logger.error(I18N.get(I18N.ERROR_DELETING_TRACK), e);
+                return Optional.of(new Failure("delete", e));
+            }
+        }
+        return Optional.empty();
+    }
+
+    @Override
+    public List<Long> loadTrackIds() {
+        List<Long> ids = new ArrayList<>();
+        logger.debug(I18N.get(I18N.LOG_LOADING_TRACKS));
+        try (Connection connection = connectionPool.getConnection();
+             Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery(SQL_SELECT_TRACK_IDS)) {
+            while (resultSet.next()) {
+                ids.add(resultSet.getLong(1));
+            }
+        } catch (SQLException e) {
+            logger.error(I18N.get(I18N.ERROR_LOADING_TRACK), e);
+        }
+        return ids;
+    }
+
+    @Override
+    public Map<Long, Set<String>> loadTrackCells() {
+        Map<Long, Set<String>> cells = new HashMap<>();
+        try (Connection connection = connectionPool.getConnection();
+             Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery(SQL_SELECT_ALL_CELLS)) {
+            while (resultSet.next()) {
+                cells.computeIfAbsent(resultSet.getLong(1), id -> new HashSet<>()).add(resultSet.getString(2));
+            }
+        } catch (SQLException e) {
+            logger.error(I18N.get(I18N.ERROR_LOADING_TRACK), e);
+        }
+        return cells;
+    }
+
+    @Override
+    public List<Long> loadTrackIdsCoveringCells(Collection<String> cells) {
+        SortedSet<Long> ids = new TreeSet<>();
+        List<String> indexCells = new ArrayList<>();
+        try (Connection connection = connectionPool.getConnection()) {
+            try (PreparedStatement statement = connection.prepareStatement(SQL_SELECT_TRACK_IDS_BY_CELL_PREFIX)) {
+                for (String cell : GeoHash.normalize(cells, GeoHash.INDEX_PRECISION)) {
+                    if (cell.length() == GeoHash.INDEX_PRECISION) {
+                        indexCells.add(cell);
+                    } else {
+                        // geohashes contain no wildcard characters
+                        statement.setString(1, cell + '%');
+                        addTrackIds(statement, ids);
+                    }
+                }
+            }
+            if (!indexCells.isEmpty()) {
+                try (PreparedStatement statement = connection.prepareStatement(SQL_SELECT_TRACK_IDS_BY_CELLS)) {
+                    statement.setArray(1, connection.createArrayOf("VARCHAR", indexCells.toArray()));
+                    addTrackIds(statement, ids);
+                }
+            }
+        } catch (SQLException e) {
+            logger.error(I18N.get(I18N.ERROR_LOADING_TRACK), e);
+        }
+        return new ArrayList<>(ids);
+    }
+
+    @Override
+    public List<TrackRollup> loadRollups(TrackRollup.Period period, LocalDateTime from, LocalDateTime to) {
+        try (Connection connection = connectionPool.getConnection()) {
+            return RollupTable.load(connection, period, from, to);
+        } catch (SQLException e) {
+            logger.error(I18N.get(I18N.ERROR_LOADING_ROLLUPS), e);
+        }
+        return Collections.emptyList();
+    }
+
+    @Override
+    public Optional<Track> loadTrackWithId(Long id) {
+        logger.debug(I18N.get(I18N.LOG_LOADING_TRACK, id));
+        try (Connection connection = connectionPool.getConnection()) {
+            // values missing in the database are written in one transaction, so that a failure does not leave the
+            // totals in TRACK_ROLLUP partly updated
+            connection.setAutoCommit(false);
+            try {
+                Optional<Track> track = loadTrack(connection, id);
+                connection.commit();
+                track.ifPresent(Track::releaseTrackPoints);
+                return track;
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            logger.error(I18N.get(I18N.ERROR_LOADING_TRACK), e);
+        }
+        return Optional.empty();
+    }
+
+    @Override
+    public Optional<Failure> store(Track track) {
+        if (null != track) {
+            try (Connection connection = connectionPool.getConnection()) {
+                connection.setAutoCommit(false);
+                try {
+                    insertTrack(connection, track);
+                    insertTrackPoints(connection, track);
+                    insertRoutePoints(connection, track);
+                    insertWayPoints(connection, track);
+                    insertCells(connection, track);
+                    RollupTable.add(connection, track.getStatistics());
+                    connection.commit();
+                } catch (SQLException e) {
+                    connection.rollback();
+                    track.setId(null);
+                    throw e;
+                } finally {
+                    connection.setAutoCommit(true);
+                }
+            } catch (SQLException e) {
+                return Optional.of(new Failure("store", e));
+            }
+            track.releaseTrackPoints();
+        }
+        return Optional.empty();
+    }
+
+    @Override
+    public Optional<TrackColumns> loadTrackColumns(Long trackId) {
+        try (Connection connection = connectionPool.getConnection();
+             PreparedStatement statement = connection.prepareStatement(SQL_SELECT_TRACKPOINT_VALUES)) {
+            statement.setLong(1, trackId);
+            TrackColumns.Builder builder = new TrackColumns.Builder();
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    builder.add(resultSet.getDouble(1), resultSet.getDouble(2), getDouble(resultSet, 3),
+                            getDouble(resultSet, 5), getLocalDateTime(resultSet, 4));
+                }
+            }
+            return Optional.of(builder.build());
+        } catch (SQLException e) {
+            logger.error(I18N.get(I18N.ERROR_LOADING_TRACK), e);
+        }
+        return Optional.empty();
+    }
+
+// -------------------------- OTHER METHODS --------------------------
+
+    /**
+     * inserts the track row and sets the generated id in the track.
+     *
+     * @param connection
+     *         the connection to use
+     * @param track
+     *         the track
+     * @throws SQLException
+     *         on errors
+     */
+    private void insertTrack(Connection connection, Track track) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(SQL_INSERT_TRACK,
+                Statement.RETURN_GENERATED_KEYS)) {
+            statement.setString(1, track.getName());
+            statement.setString(2, track.getFilename());
+            setStatisticsParameters(statement, 3, track.getStatistics());
+            setBoundingBoxParameters(statement, 16, track);
+            statement.setString(20, track.getDistanceEngine());
+            statement.executeUpdate();
+            try (ResultSet keys = statement.getGeneratedKeys()) {
+                if (!keys.next()) {
+                    throw new SQLException("no id generated for track");
+                }
+                track.setId(keys.getLong(1));
+            }
+        }
+    }
+
+    /**
+     * inserts the trackpoints of the track as one batch.
+     *
+     * @param connection
+     *         the connection to use
+     * @param track
+     *         the track
+     * @throws SQLException
+     *         on errors
+     */
+    private void insertTrackPoints(Connection connection, Track track) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(SQL_INSERT_TRACKPOINT)) {
+            for (TrackPoint trackPoint : track.getTrackPoints()) {
+                setPointParameters(statement, track, trackPoint);
+                setDouble(statement, 7, trackPoint.getDistance());
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+    }
+
+    /**
+     * inserts the routepoints of the track as one batch.
+     *
+     * @param connection
+     *         the connection to use
+     * @param track
+     *         the track
+     * @throws SQLException
+     *         on errors
+     */
+    private void insertRoutePoints(Connection connection, Track track) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(SQL_INSERT_ROUTEPOINT)) {
+            for (RoutePoint routePoint : track.getRoutePoints()) {
+                setPointParameters(statement, track, routePoint);
+                statement.setString(7, routePoint.getName());
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+    }
+
+    /**
+     * inserts the waypoints of the track as one batch.
+     *
+     * @param connection
+     *         the connection to use
+     * @param track
+     *         the track
+     * @throws SQLException
+     *         on errors
+     */
+    private void insertWayPoints(Connection connection, Track track) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(SQL_INSERT_WAYPOINT)) {
+            for (WayPoint wayPoint : track.getWayPoints()) {
+                setPointParameters(statement, track, wayPoint);
+                statement.setString(7, wayPoint.getName());
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+    }
+
+    /**
+     * inserts the geohash cells of the track as one batch.
+     *
+     * @param connection
+     *         the connection to use
+     * @param track
+     *         the track
+     * @throws SQLException
+     *         on errors
+     */
+    private void insertCells(Connection connection, Track track) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(SQL_INSERT_CELL)) {
+            for (String cell : track.getCells()) {
+                statement.setLong(1, track.getId());
+                statement.setString(2, cell);
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+    }
+
+    /**
+     * sets the parameters 1 to 6 of an insert statement from the values common to all points.
+     *
+     * @param statement
+     *         the statement
+     * @param track
+     *         the track of the point
+     * @param point
+     *         the point
+     * @throws SQLException
+     *         on errors
+     */
+    private void setPointParameters(PreparedStatement statement, Track track, Point point) throws SQLException {
+        statement.setLong(1, track.getId());
+        statement.setInt(2, point.getSequence());
+        statement.setDouble(3, point.getLatitude());
+        statement.setDouble(4, point.getLongitude());
+        setDouble(statement, 5, point.getElevation());
+        LocalDateTime timestamp = point.getTimestamp();
+        statement.setTimestamp(6, null == timestamp ? null : Timestamp.valueOf(timestamp));
+    }
+
+    /**
+     * sets a nullable double parameter.
+     *
+     * @param statement
+     *         the statement
+     * @param index
+     *         parameter index
+     * @param value
+     *         the value, may be null
+     * @throws SQLException
+     *         on errors
+     */
+    private void setDouble(PreparedStatement statement, int index, Double value) throws SQLException {
+        if (null == value) {
+            statement.setNull(index, Types.DOUBLE);
+        } else {
+            statement.setDouble(index, value);
+        }
+    }
+
+    /**
+     * loads a track with its points and calculates and writes the values that are missing in the database.
+     *
+     * @param connection
+     *         the connection of the transaction
+     * @param id
+     *         track id
+     * @return Track if found
+     * @throws SQLException
+     *         on errors
+     */
+    private Optional<Track> loadTrack(Connection connection, Long id) throws SQLException {
+        Track track = null;
+        boolean statisticsMissing = false;
+        boolean boundingBoxMissing = false;
+        boolean engineChanged = false;
+        try (PreparedStatement statement = connection.prepareStatement(SQL_SELECT_TRACK)) {
+            statement.setLong(1, id);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                if (resultSet.next()) {
+                    track = new Track(resultSet.getString(1));
+                    track.setId(id);
+                    Optional.ofNullable(resultSet.getString(2)).ifPresent(track::setFilename);
+                    statisticsMissing = null == getDouble(resultSet, 3);
+                    boundingBoxMissing = null == getDouble(resultSet, 4);
+                    // distances from another engine are recalculated with the current one
+                    track.setDistanceEngine(resultSet.getString(5));
+                    engineChanged = !Geo.getDistanceEngine().name().equals(track.getDistanceEngine());
+                    if (!statisticsMissing) {
+                        track.setStatistics(getStatistics(resultSet));
+                    }
+                }
+            }
+        }
+        if (null == track) {
+            return Optional.empty();
+        }
+
+        boolean distancesMissing = loadTrackPoints(connection, track) || engineChanged;
+        loadRoutePoints(connection, track);
+        loadWayPoints(connection, track);
+        loadCells(connection, track);
+
+        if (distancesMissing) {
+            // calculate trackpoint distances when not yet in database
+            Geo.updateTrackDistances(track);
+            updateDistances(connection, track);
+        }
+        if (track.getCells().isEmpty() && !track.getTrackPoints().isEmpty()) {
+            // calculate the geohash cells when not yet in database
+            Geo.updateTrackCells(track);
+            insertCells(connection, track);
+        }
+        if ((distancesMissing || statisticsMissing) && !track.getTrackPoints().isEmpty()) {
+            if (!statisticsMissing) {
+                // the totals contain the statistics from the old distances, the TRACK row still has them
+                RollupTable.remove(connection, id);
+            }
+            track.updateStatistics();
+            updateStatistics(connection, track);
+            RollupTable.add(connection, track.getStatistics());
+        }
+        if (boundingBoxMissing && !track.getTrackPoints().isEmpty()) {
+            // the bounding box was built while the points were added
+            track.updateBoundingBox();
+            updateBoundingBox(connection, track);
+        }
+        return Optional.of(track);
+    }
+
+    /**
+     * loads the trackpoints of a track.
+     *
+     * @param connection
+     *         the connection to use
+     * @param track
+     *         the track to add the points to
+     * @return true if any of the trackpoints has no distance value
+     * @throws SQLException
+     *         on errors
+     */
+    private boolean loadTrackPoints(Connection connection, Track track) throws SQLException {
+        boolean distancesMissing = false;
+        try (PreparedStatement statement = connection.prepareStatement(SQL_SELECT_TRACKPOINTS)) {
+            statement.setLong(1, track.getId());
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    TrackPoint trackPoint =
+                            new TrackPoint(resultSet.getDouble(2), resultSet.getDouble(3), getDouble(resultSet, 4),
+                                    getLocalDateTime(resultSet, 5));
+                    trackPoint.setDistance(getDouble(resultSet, 6));
+                    distancesMissing |= null == trackPoint.getDistance();
+                    track.addTrackPoint(trackPoint);
+                    trackPoint.setSequence(resultSet.getInt(1));
+                }
+            }
+        }
+        return distancesMissing;
+    }
+
+    /**
+     * loads the geohash cells of a track.
+     *
+     * @param connection
+     *         the connection to use
+     * @param track
+     *         the track to add the cells to
+     * @throws SQLException
+     *         on errors
+     */
+    private void loadCells(Connection connection, Track track) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(SQL_SELECT_CELLS)) {
+            statement.setLong(1, track.getId());
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    track.getCells().add(resultSet.getString(1));
+                }
+            }
+        }
+    }
+
+    /**
+     * executes a query for track ids and adds the ids to a set.
+     *
+     * @param statement
+     *         the statement with the parameters set
+     * @param ids
+     *         the set to add the ids to
+     * @throws SQLException
+     *         on errors
+     */
+    private void addTrackIds(PreparedStatement statement, SortedSet<Long> ids) throws SQLException {
+        try (ResultSet resultSet = statement.executeQuery()) {
+            while (resultSet.next()) {
+                ids.add(resultSet.getLong(1));
+            }
+        }
+    }
+
+    /**
+     * loads the routepoints of a track.
+     *
+     * @param connection
+     *         the connection to use
+     * @param track
+     *         the track to add the points to
+     * @throws SQLException
+     *         on errors
+     */
+    private void loadRoutePoints(Connection connection, Track track) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(SQL_SELECT_ROUTEPOINTS)) {
+            statement.setLong(1, track.getId());
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    RoutePoint routePoint =
+                            new RoutePoint(resultSet.getDouble(2), resultSet.getDouble(3), getDouble(resultSet, 4),
+                                    getLocalDateTime(resultSet, 5), resultSet.getString(6));
+                    track.addRoutePoint(routePoint);
+                    routePoint.setSequence(resultSet.getInt(1));
+                }
+            }
+        }
+    }
+
+    /**
+     * loads the waypoints of a track.
+     *
+     * @param connection
+     *         the connection to use
+     * @param track
+     *         the track to add the points to
+     * @throws SQLException
+     *         on errors
+     */
+    private void loadWayPoints(Connection connection, Track track) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(SQL_SELECT_WAYPOINTS)) {
+            statement.setLong(1, track.getId());
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    WayPoint wayPoint =
+                            new WayPoint(resultSet.getDouble(2), resultSet.getDouble(3), getDouble(resultSet, 4),
+                                    getLocalDateTime(resultSet, 5), resultSet.getString(6));
+                    track.addWayPoint(wayPoint);
+                    wayPoint.setSequence(resultSet.getInt(1));
+                }
+            }
+        }
+    }
+
+    /**
+     * writes the distances of the trackpoints and the engine they were calculated with back to the database.
+     *
+     * @param connection
+     *         the connection to use
+     * @param track
+     *         the track
+     * @throws SQLException
+     *         on errors
+     */
+    private void updateDistances(Connection connection, Track track) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(SQL_UPDATE_DISTANCE)) {
+            for (TrackPoint trackPoint : track.getTrackPoints()) {
+                setDouble(statement, 1, trackPoint.getDistance());
+                statement.setLong(2, track.getId());
+                statement.setInt(3, trackPoint.getSequence());
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+        try (PreparedStatement statement = connection.prepareStatement(SQL_UPDATE_DISTANCE_ENGINE)) {
+            statement.setString(1, track.getDistanceEngine());
+            statement.setLong(2, track.getId());
+            statement.executeUpdate();
+        }
+    }
+
+    /**
+     * stores the statistics of a track in the TRACK table.
+     *
+     * @param connection
+     *         the connection to use
+     * @param track
+     *         the track
+     * @throws SQLException
+     *         on errors
+     */
+    private void updateStatistics(Connection connection, Track track) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(SQL_UPDATE_STATISTICS)) {
+            setStatisticsParameters(statement, 1, track.getStatistics());
+            statement.setLong(14, track.getId());
+            statement.executeUpdate();
+        }
+    }
+
+    /**
+     * writes the bounding box of a track to its TRACK row.
+     *
+     * @param connection
+     *         the connection to use
+     * @param track
+     *         the track
+     * @throws SQLException
+     *         on errors
+     */
+    private void updateBoundingBox(Connection connection, Track track) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(SQL_UPDATE_BOUNDING_BOX)) {
+            setBoundingBoxParameters(statement, 1, track);
+            statement.setLong(5, track.getId());
+            statement.executeUpdate();
+        }
+    }
+
+    /**
+     * sets the 4 bounding box parameters in the column order of the TRACK table.
+     *
+     * @param statement
+     *         the statement
+     * @param index
+     *         index of the first parameter
+     * @param track
+     *         the track
+     * @throws SQLException
+     *         on errors
+     */
+    private void setBoundingBoxParameters(PreparedStatement statement, int index, Track track)
+            throws SQLException {
+        setDouble(statement, index, track.getMinLatitude());
+        setDouble(statement, index + 1, track.getMinLongitude());
+        setDouble(statement, index + 2, track.getMaxLatitude());
+        setDouble(statement, index + 3, track.getMaxLongitude());
+    }
+
+    /**
+     * sets the 13 statistics parameters in the column order of the TRACK table.
+     *
+     * @param statement
+     *         the statement
+     * @param index
+     *         index of the first parameter
+     * @param statistics
+     *         the statistics
+     * @throws SQLException
+     *         on errors
+     */
+    private void setStatisticsParameters(PreparedStatement statement, int index, TrackStatistics statistics)
+            throws SQLException {
+        setTimestamp(statement, index, statistics.getTrackStartTime().orElse(null));
+        setTimestamp(statement, index + 1, statistics.getTrackEndTime().orElse(null));
+        setTimestamp(statement, index + 2, statistics.getRouteStartTime().orElse(null));
+        setTimestamp(statement, index + 3, statistics.getFirstWaypointTime().orElse(null));
+        setDouble(statement, index + 4, statistics.getTrackDistance().orElse(null));
+        setDouble(statement, index + 5, statistics.getMinElevation().orElse(null));
+        setDouble(statement, index + 6, statistics.getMaxElevation().orElse(null));
+        setDouble(statement, index + 7, statistics.getFilteredMinElevation().orElse(null));
+        setDouble(statement, index + 8, statistics.getFilteredMaxElevation().orElse(null));
+        setDouble(statement, index + 9, statistics.getAscent().orElse(null));
+        setDouble(statement, index + 10, statistics.getDescent().orElse(null));
+        Optional<Duration> movingTime = statistics.getMovingTime();
+        if (movingTime.isPresent()) {
+            statement.setLong(index + 11, movingTime.get().toMillis());
+        } else {
+            statement.setNull(index + 11, Types.BIGINT);
+        }
+        setDouble(statement, index + 12, statistics.getMaxSpeed().orElse(null));
+    }
+
+    /**
+     * sets a nullable timestamp parameter.
+     *
+     * @param statement
+     *         the statement
+     * @param index
+     *         parameter index
+     * @param value
+     *         the value, may be null
+     * @throws SQLException
+     *         on errors
+     */
+    private void setTimestamp(PreparedStatement statement, int index, LocalDateTime value) throws SQLException {
+        statement.setTimestamp(index, null == value ? null : Timestamp.valueOf(value));
+    }
+
+    /**
+     * gets a nullable double column.
+     *
+     * @param resultSet
+     *         the result set
+     * @param index
+     *         column index
+     * @return the value or null
+     * @throws SQLException
+     *         on errors
+     */
+    private Double getDouble(ResultSet resultSet, int index) throws SQLException {
+        double value = resultSet.getDouble(index);
+        return resultSet.wasNull() ? null : value;
+    }
+
+    /**
+     * gets the statistics from the columns of SQL_SELECT_TRACK.
+     *
+     * @param resultSet
+     *         the result set positioned on the track row
+     * @return the stored statistics
+     * @throws SQLException
+     *         on errors
+     */
+    private TrackStatistics getStatistics(ResultSet resultSet) throws SQLException {
+        long millis = resultSet.getLong(16);
+        Long movingMillis = resultSet.wasNull() ? null : millis;
+        return TrackStatistics.stored(getLocalDateTime(resultSet, 6), getLocalDateTime(resultSet, 7),
+                getLocalDateTime(resultSet, 8), getLocalDateTime(resultSet, 9), getDouble(resultSet, 3),
+                getDouble(resultSet, 10), getDouble(resultSet, 11), getDouble(resultSet, 12),
+                getDouble(resultSet, 13), getDouble(resultSet, 14), getDouble(resultSet, 15),
+                movingMillis, getDouble(resultSet, 17));
+    }
+
+    /**
+     * gets a nullable timestamp column as LocalDateTime.
+     *
+     * @param resultSet
+     *         the result set
+     * @param index
+     *         column index
+     * @return the value or null
+     * @throws SQLException
+     *         on errors
+     */
+    private LocalDateTime getLocalDateTime(ResultSet resultSet, int index) throws SQLException {
+        Timestamp timestamp = resultSet.getTimestamp(index);
+        return null == timestamp ? null : timestamp.toLocalDateTime();
+    }
+}
@@ -24,11 +24,13 @@ import java.util.Objects;
 
 /**
  * This Point class is the base class for the different entity classes TrackPoint, WayPoint and RoutePoint. It is not
- * needed or used in JPA queries, it's for the Java side of things.
+ * needed or used in JPA queries, it's for the Java side of things. The points are identified by their track and their
+ * sequence number within the track, so the points of a track are stored in one range of the primary key.
  *
  * @author P.J.Meisch (pj.meisch@jaroso.de)
  */
 @MappedSuperclass
+@IdClass(PointId.class)
 public abstract class Point implements Serializable {
 // ------------------------------ FIELDS ------------------------------
 
@@ -40,8 +42,6 @@ public abstract class Point implements Serializable {
     protected Double elevation;
     /** timestamp */
     protected LocalDateTime timestamp;
-    /** db id of the track */
-    private Long id;
     /** the internal order number of the waypoint within the track */
     private Integer sequence;
     /** the track this point belongs to */
@@ -72,17 +72,6 @@ public abstract class Point implements Serializable {
         this.elevation = elevation;
     }
 
-    @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
-    @Column(name = "id", unique = true)
-    public Long getId() {
-        return id;
-    }
-
-    public void setId(Long id) {
-        this.id = id;
-    }
-
     @Column(name = "LATITUDE", nullable = false)
     public Double getLatitude() {
         return latitude;
@@ -101,6 +90,7 @@ public abstract class Point implements Serializable {
         this.longitude = longitude;
     }
 
+    @Id
     @Column(name = "SEQUENCE", nullable = false)
     public Integer getSequence() {
         return sequence;
@@ -119,6 +109,7 @@ public abstract class Point implements Serializable {
         this.timestamp = timestamp;
     }
 
+    @Id
     @ManyToOne
     @JoinColumn(name = "TRACK_ID", nullable = false)
     public Track getTrack() {
@@ -138,14 +129,15 @@ public abstract class Point implements Serializable {
 
         Point point = (Point) o;
 
-        if (id != null ? !id.equals(point.id) : point.id != null) return false;
+        // points that are not yet stored have no key, they are only equal to themselves
+        if (null == track || null == track.getId() || null == sequence) return false;
 
-        return true;
+        return null != point.track && track.getId().equals(point.track.getId()) && sequence.equals(point.sequence);
     }
 
     @Override
     public int hashCode() {
-        return id != null ? id.hashCode() : 0;
+        return Objects.hashCode(sequence);
     }
 
     @Override
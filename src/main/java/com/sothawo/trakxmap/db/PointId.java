@@ -0,0 +1,87 @@
+/*
+ Copyright 2015 Peter-Josef Meisch (pj.meisch@sothawo.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.sothawo.trakxmap.db;
+
+import java.io.Serializable;
+import java.util.Objects;
+
+/**
+ * The primary key of the point entities, consisting of the id of the track and the sequence number of the point
+ * within the track. The property names match the id properties in {@link Point}.
+ *
+ * @author P.J. Meisch (pj.meisch@sothawo.com).
+ */
+public class PointId implements Serializable {
+// ------------------------------ FIELDS ------------------------------
+
+    /** id of the track */
+    private Long track;
+    /** sequence number of the point within the track */
+    private Integer sequence;
+
+// --------------------------- CONSTRUCTORS ---------------------------
+
+    public PointId() {
+    }
+
+    public PointId(Long track, Integer sequence) {
+        this.track = track;
+        this.sequence = sequence;
+    }
+
+// --------------------- GETTER / SETTER METHODS ---------------------
+
+    public Integer getSequence() {
+        return sequence;
+    }
+
+    public void setSequence(Integer sequence) {
+        this.sequence = sequence;
+    }
+
+    public Long getTrack() {
+        return track;
+    }
+
+    public void setTrack(Long track) {
+        this.track = track;
+    }
+
+// ------------------------ CANONICAL METHODS ------------------------
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        PointId pointId = (PointId) o;
+
+        return Objects.equals(track, pointId.track) && Objects.equals(sequence, pointId.sequence);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(track, sequence);
+    }
+
+    @Override
+    public String toString() {
+        return "PointId{" +
+                "track=" + track +
+                ", sequence=" + sequence +
+                '}';
+    }
+}
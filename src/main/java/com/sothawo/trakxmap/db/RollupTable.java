@@ -0,0 +1,414 @@
+/*
+ Copyright 2015 Peter-Josef Meisch (pj.meisch@sothawo.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.sothawo.trakxmap.db;
+
+import com.sothawo.trakxmap.util.TrackStatistics;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Access to the TRACK_ROLLUP table with the totals per week, month and year. The table is updated in the transaction
+ * that stores or deletes a track, so the JPA and the JDBC repository share this code and work on the connection of
+ * their transaction. A track is counted in the periods of its timestamp (see TrackStatistics.getTrackTimestamp()),
+ * tracks without a timestamp are not counted.
+ *
+ * Tracks are stored in parallel, so two transactions may both find no total for a period and both insert it. The
+ * insert of the second one fails when the first one has committed; it is then rolled back to a savepoint and the
+ * total is updated instead, so the rest of the transaction is kept.
+ *
+ * @author P.J. Meisch (pj.meisch@sothawo.com).
+ */
+final class RollupTable {
+// ------------------------------ FIELDS ------------------------------
+
+    private static final String SQL_UPDATE =
+            "update TRACK_ROLLUP set TRACK_COUNT = TRACK_COUNT + ?, DISTANCE = DISTANCE + ?, " +
+                    "DURATION = DURATION + ?, ASCENT = ASCENT + ? where PERIOD = ? and PERIOD_START = ?";
+    private static final String SQL_INSERT =
+            "insert into TRACK_ROLLUP (PERIOD, PERIOD_START, TRACK_COUNT, DISTANCE, DURATION, ASCENT) " +
+                    "values (?, ?, ?, ?, ?, ?)";
+    private static final String SQL_DELETE_EMPTY = "delete from TRACK_ROLLUP where TRACK_COUNT <= 0";
+    private static final String SQL_DELETE_ALL = "delete from TRACK_ROLLUP";
+    private static final String SQL_SELECT =
+            "select PERIOD_START, TRACK_COUNT, DISTANCE, DURATION, ASCENT from TRACK_ROLLUP " +
+                    "where PERIOD = ? and PERIOD_START >= ? and PERIOD_START < ? order by PERIOD_START";
+    private static final String SQL_SELECT_ALL =
+            "select PERIOD, PERIOD_START, TRACK_COUNT, DISTANCE, DURATION, ASCENT from TRACK_ROLLUP";
+    private static final String SQL_SELECT_TRACK_STATISTICS =
+            "select START_TIME, END_TIME, ROUTE_START_TIME, FIRST_WAYPOINT_TIME, DISTANCE, ASCENT from TRACK";
+    private static final String SQL_SELECT_ONE_TRACK_STATISTICS = SQL_SELECT_TRACK_STATISTICS + " where ID = ?";
+
+    /** SQL state of a unique constraint violation */
+    private static final String SQL_STATE_DUPLICATE_KEY = "23505";
+
+    /** relative difference from which on a stored total is considered wrong */
+    private static final double TOLERANCE = 1e-9;
+
+// --------------------------- CONSTRUCTORS ---------------------------
+
+    private RollupTable() {
+    }
+
+// -------------------------- STATIC METHODS --------------------------
+
+    /**
+     * adds a track with its statistics to the totals.
+     *
+     * @param connection
+     *         the connection of the transaction
+     * @param statistics
+     *         the statistics of the track
+     * @throws SQLException
+     *         on errors
+     */
+    static void add(Connection connection, TrackStatistics statistics) throws SQLException {
+        Contribution contribution = new Contribution(statistics.getTrackTimestamp().orElse(null),
+                statistics.getTrackDuration().map(Duration::toMillis).orElse(0L),
+                statistics.getTrackDistance().orElse(0.0), statistics.getAscent().orElse(0.0));
+        apply(connection, contribution, 1);
+    }
+
+    /**
+     * subtracts a track from the totals. The values are read from the TRACK row, so this must be called before the
+     * row is deleted.
+     *
+     * @param connection
+     *         the connection of the transaction
+     * @param trackId
+     *         the id of the track
+     * @throws SQLException
+     *         on errors
+     */
+    static void remove(Connection connection, long trackId) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(SQL_SELECT_ONE_TRACK_STATISTICS)) {
+            statement.setLong(1, trackId);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                if (resultSet.next()) {
+                    apply(connection, Contribution.of(resultSet), -1);
+                }
+            }
+        }
+        try (Statement statement = connection.createStatement()) {
+            statement.executeUpdate(SQL_DELETE_EMPTY);
+        }
+    }
+
+    /**
+     * loads the totals of a period type.
+     *
+     * @param connection
+     *         the connection to use
+     * @param period
+     *         the period type
+     * @param from
+     *         start of the time range, inclusive
+     * @param to
+     *         end of the time range, exclusive
+     * @return the totals of the periods starting in the time range ordered by start, periods without tracks are
+     * missing
+     * @throws SQLException
+     *         on errors
+     */
+    static List<TrackRollup> load(Connection connection, TrackRollup.Period period, LocalDateTime from,
+                                  LocalDateTime to) throws SQLException {
+        List<TrackRollup> rollups = new ArrayList<>();
+        try (PreparedStatement statement = connection.prepareStatement(SQL_SELECT)) {
+            statement.setString(1, period.name());
+            statement.setTimestamp(2, Timestamp.valueOf(from));
+            statement.setTimestamp(3, Timestamp.valueOf(to));
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    rollups.add(new TrackRollup(period, resultSet.getTimestamp(1).toLocalDateTime(),
+                            resultSet.getInt(2), resultSet.getDouble(3), resultSet.getLong(4),
+                            resultSet.getDouble(5)));
+                }
+            }
+        }
+        return rollups;
+    }
+
+    /**
+     * compares the stored totals with the ones computed from the statistics in the TRACK table without changing them.
+     * To compare a consistent state while tracks are stored, the connection should be in a transaction with
+     * repeatable read isolation.
+     *
+     * @param connection
+     *         the connection to use
+     * @return descriptions of the totals that are missing, wrong or superfluous, empty if all totals are correct
+     * @throws SQLException
+     *         on errors
+     */
+    static List<String> verify(Connection connection) throws SQLException {
+        return compare(connection, compute(connection));
+    }
+
+    /**
+     * computes the totals from the statistics in the TRACK table and replaces the content of the TRACK_ROLLUP table.
+     * No trackpoints are read. The connection must not be in auto commit mode, the caller commits.
+     *
+     * @param connection
+     *         the connection to use
+     * @return the number of stored totals that were missing or wrong
+     * @throws SQLException
+     *         on errors
+     */
+    static int rebuild(Connection connection) throws SQLException {
+        Map<Key, TrackRollup> computed = compute(connection);
+        int differences = compare(connection, computed).size();
+
+        try (Statement statement = connection.createStatement()) {
+            statement.executeUpdate(SQL_DELETE_ALL);
+        }
+        try (PreparedStatement statement = connection.prepareStatement(SQL_INSERT)) {
+            for (TrackRollup rollup : computed.values()) {
+                statement.setString(1, rollup.getPeriod().name());
+                statement.setTimestamp(2, Timestamp.valueOf(rollup.getStart()));
+                statement.setInt(3, rollup.getTrackCount());
+                statement.setDouble(4, rollup.getDistance());
+                statement.setLong(5, rollup.getDurationMillis());
+                statement.setDouble(6, rollup.getAscent());
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+        return differences;
+    }
+
+    /**
+     * checks if the TRACK_ROLLUP table is empty while there are tracks with statistics.
+     *
+     * @param connection
+     *         the connection to use
+     * @return true if the table needs to be built
+     * @throws SQLException
+     *         on errors
+     */
+    static boolean needsRebuild(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("select (select count(*) from TRACK_ROLLUP), " +
+                     "(select count(*) from TRACK where DISTANCE is not null)")) {
+            return resultSet.next() && 0 == resultSet.getLong(1) && resultSet.getLong(2) > 0;
+        }
+    }
+
+    /**
+     * computes the totals from the statistics in the TRACK table.
+     */
+    private static Map<Key, TrackRollup> compute(Connection connection) throws SQLException {
+        Map<Key, TrackRollup> computed = new HashMap<>();
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery(SQL_SELECT_TRACK_STATISTICS)) {
+            while (resultSet.next()) {
+                Contribution contribution = Contribution.of(resultSet);
+                if (null != contribution.time) {
+                    for (TrackRollup.Period period : TrackRollup.Period.values()) {
+                        LocalDateTime start = period.start(contribution.time);
+                        computed.merge(new Key(period, start),
+                                new TrackRollup(period, start, 1, contribution.distance, contribution.duration,
+                                        contribution.ascent),
+                                (a, b) -> new TrackRollup(period, start, a.getTrackCount() + b.getTrackCount(),
+                                        a.getDistance() + b.getDistance(),
+                                        a.getDurationMillis() + b.getDurationMillis(),
+                                        a.getAscent() + b.getAscent()));
+                    }
+                }
+            }
+        }
+        return computed;
+    }
+
+    /**
+     * compares the stored totals with the computed ones.
+     *
+     * @return descriptions of the differences
+     */
+    private static List<String> compare(Connection connection, Map<Key, TrackRollup> computed)
+            throws SQLException {
+        List<String> differences = new ArrayList<>();
+        Map<Key, TrackRollup> missing = new HashMap<>(computed);
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery(SQL_SELECT_ALL)) {
+            while (resultSet.next()) {
+                Key key = new Key(TrackRollup.Period.valueOf(resultSet.getString(1)),
+                        resultSet.getTimestamp(2).toLocalDateTime());
+                TrackRollup rollup = missing.remove(key);
+                if (null == rollup) {
+                    differences.add(String.format("%s %s: total without tracks", key.period, key.start));
+                } else if (rollup.getTrackCount() != resultSet.getInt(3) ||
+                        rollup.getDurationMillis() != resultSet.getLong(5) ||
+                        differs(rollup.getDistance(), resultSet.getDouble(4)) ||
+                        differs(rollup.getAscent(), resultSet.getDouble(6))) {
+                    differences.add(String.format("%s %s: %d tracks, %.0f m stored, %d tracks, %.0f m computed",
+                            key.period, key.start, resultSet.getInt(3), resultSet.getDouble(4),
+                            rollup.getTrackCount(), rollup.getDistance()));
+                }
+            }
+        }
+        missing.keySet().forEach(key -> differences.add(String.format("%s %s: total missing", key.period, key.start)));
+        return differences;
+    }
+
+    /**
+     * adds or subtracts a track in the totals of its week, month and year.
+     */
+    private static void apply(Connection connection, Contribution contribution, int sign) throws SQLException {
+        if (null == contribution.time) {
+            return;
+        }
+        for (TrackRollup.Period period : TrackRollup.Period.values()) {
+            Timestamp start = Timestamp.valueOf(period.start(contribution.time));
+            if (0 == update(connection, period, start, contribution, sign) && sign > 0) {
+                Savepoint savepoint = connection.setSavepoint();
+                try {
+                    insert(connection, period, start, contribution);
+                    connection.releaseSavepoint(savepoint);
+                } catch (SQLException e) {
+                    if (!SQL_STATE_DUPLICATE_KEY.equals(e.getSQLState())) {
+                        throw e;
+                    }
+                    // a concurrent transaction inserted and committed the total in the meantime
+                    connection.rollback(savepoint);
+                    if (0 == update(connection, period, start, contribution, sign)) {
+                        throw e;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * adds or subtracts a track in an existing total.
+     *
+     * @return the number of updated rows, 0 if there is no total for the period
+     */
+    private static int update(Connection connection, TrackRollup.Period period, Timestamp start,
+                              Contribution contribution, int sign) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(SQL_UPDATE)) {
+            statement.setInt(1, sign);
+            statement.setDouble(2, sign * contribution.distance);
+            statement.setLong(3, sign * contribution.duration);
+            statement.setDouble(4, sign * contribution.ascent);
+            statement.setString(5, period.name());
+            statement.setTimestamp(6, start);
+            return statement.executeUpdate();
+        }
+    }
+
+    /**
+     * inserts the total of a period with one track.
+     */
+    private static void insert(Connection connection, TrackRollup.Period period, Timestamp start,
+                               Contribution contribution) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(SQL_INSERT)) {
+            statement.setString(1, period.name());
+            statement.setTimestamp(2, start);
+            statement.setInt(3, 1);
+            statement.setDouble(4, contribution.distance);
+            statement.setLong(5, contribution.duration);
+            statement.setDouble(6, contribution.ascent);
+            statement.executeUpdate();
+        }
+    }
+
+    /**
+     * compares two totals that may differ by rounding.
+     */
+    private static boolean differs(double a, double b) {
+        return Math.abs(a - b) > TOLERANCE * Math.max(1.0, Math.max(Math.abs(a), Math.abs(b)));
+    }
+
+// -------------------------- INNER CLASSES --------------------------
+
+    /**
+     * the values of one track.
+     */
+    private static final class Contribution {
+        /** the timestamp of the track, null if it has none */
+        private final LocalDateTime time;
+        /** duration in milliseconds */
+        private final long duration;
+        /** distance in meters */
+        private final double distance;
+        /** ascent in meters */
+        private final double ascent;
+
+        private Contribution(LocalDateTime time, long duration, double distance, double ascent) {
+            this.time = time;
+            this.duration = duration;
+            this.distance = distance;
+            this.ascent = ascent;
+        }
+
+        /**
+         * creates the contribution from a row of SQL_SELECT_TRACK_STATISTICS, with the same rules as TrackStatistics.
+         */
+        private static Contribution of(ResultSet resultSet) throws SQLException {
+            LocalDateTime startTime = toLocalDateTime(resultSet.getTimestamp(1));
+            LocalDateTime endTime = toLocalDateTime(resultSet.getTimestamp(2));
+            LocalDateTime time = null != startTime ? startTime : null != resultSet.getTimestamp(4) ?
+                    toLocalDateTime(resultSet.getTimestamp(4)) : toLocalDateTime(resultSet.getTimestamp(3));
+            long duration = null != startTime && null != endTime ? Duration.between(startTime, endTime).toMillis() : 0;
+            return new Contribution(time, duration, resultSet.getDouble(5), resultSet.getDouble(6));
+        }
+
+        private static LocalDateTime toLocalDateTime(Timestamp timestamp) {
+            return null == timestamp ? null : timestamp.toLocalDateTime();
+        }
+    }
+
+    /**
+     * key of a total.
+     */
+    private static final class Key {
+        private final TrackRollup.Period period;
+        private final LocalDateTime start;
+
+        private Key(TrackRollup.Period period, LocalDateTime start) {
+            this.period = period;
+            this.start = start;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Key key = (Key) o;
+            return period == key.period && start.equals(key.start);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(period, start);
+        }
+    }
+}
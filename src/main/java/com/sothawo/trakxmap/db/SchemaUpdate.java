@@ -0,0 +1,157 @@
+/*
+ Copyright 2015 Peter-Josef Meisch (pj.meisch@sothawo.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.sothawo.trakxmap.db;
+
+import com.sothawo.trakxmap.util.Failure;
+import com.sothawo.trakxmap.util.I18N;
+import com.sothawo.trakxmap.util.PathTools;
+import liquibase.Contexts;
+import liquibase.Liquibase;
+import liquibase.database.jvm.JdbcConnection;
+import liquibase.exception.LiquibaseException;
+import liquibase.resource.ClassLoaderResourceAccessor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Optional;
+
+/**
+ * Brings the database schema up to date with the Liquibase changelog. After a successful update a fingerprint of the
+ * changelog is stored in the database directory; when the fingerprint is unchanged on the next start and the database
+ * file exists, the Liquibase run with its changelog parsing and lock handling is skipped.
+ *
+ * @author P.J. Meisch (pj.meisch@sothawo.com).
+ */
+public final class SchemaUpdate {
+// ------------------------------ FIELDS ------------------------------
+
+    /** the Logger */
+    private final static Logger logger = LoggerFactory.getLogger(SchemaUpdate.class);
+    /** the Liquibase changelog resource */
+    private static final String CHANGELOG = "db/db-changelog.xml";
+    /** name of the file containing the fingerprint of the last applied changelog */
+    private static final String FINGERPRINT_FILE = "trakxmap-db.schema";
+
+// -------------------------- STATIC METHODS --------------------------
+
+    /**
+     * updates the database schema if the changelog changed since the last update.
+     *
+     * @return optional failure
+     */
+    public static Optional<Failure> updateIfNecessary() {
+        logger.info(I18N.get(I18N.LOG_DB_UPDATE_NECESSARY));
+        Path databaseDirectory = PathTools.getDatabaseDirectory();
+        Path fingerprintFile = databaseDirectory.resolve(FINGERPRINT_FILE);
+
+        Optional<String> fingerprint = changelogFingerprint();
+        if (fingerprint.isPresent() && Files.exists(PathTools.getDatabaseFile())
+                && fingerprint.equals(readFingerprint(fingerprintFile))) {
+            logger.info(I18N.get(I18N.LOG_DB_SCHEMA_CURRENT));
+            return Optional.empty();
+        }
+
+        try (Liquibase liquibase = new Liquibase(CHANGELOG, new ClassLoaderResourceAccessor(),
+                new JdbcConnection(DriverManager.getConnection(PathTools.getJdbcUrl())))) {
+            liquibase.update(new Contexts());
+        } catch (SQLException | LiquibaseException e) {
+            logger.error(I18N.get(I18N.LOG_DB_UPDATE_ERROR), e);
+            return Optional.of(new Failure(I18N.get(I18N.LOG_DB_UPDATE_ERROR), e));
+        }
+
+        fingerprint.ifPresent(f -> writeFingerprint(fingerprintFile, f));
+        return Optional.empty();
+    }
+
+    /**
+     * calculates the SHA-256 fingerprint of the changelog resource.
+     *
+     * @return the fingerprint as hex string, empty if the changelog cannot be read
+     */
+    private static Optional<String> changelogFingerprint() {
+        try (InputStream in = SchemaUpdate.class.getClassLoader().getResourceAsStream(CHANGELOG)) {
+            if (null == in) {
+                return Optional.empty();
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                bytes.write(buffer, 0, read);
+            }
+            StringBuilder sb = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-256").digest(bytes.toByteArray())) {
+                sb.append(String.format("%02x", b));
+            }
+            return Optional.of(sb.toString());
+        } catch (IOException | NoSuchAlgorithmException e) {
+            logger.warn("cannot calculate changelog fingerprint", e);
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * reads the stored fingerprint.
+     *
+     * @param fingerprintFile
+     *         the file containing the fingerprint
+     * @return the fingerprint, empty if there is none
+     */
+    private static Optional<String> readFingerprint(Path fingerprintFile) {
+        try {
+            if (Files.exists(fingerprintFile)) {
+                return Optional.of(new String(Files.readAllBytes(fingerprintFile), StandardCharsets.UTF_8).trim());
+            }
+        } catch (IOException e) {
+            logger.warn("cannot read schema fingerprint", e);
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * stores the fingerprint after a successful update.
+     *
+     * @param fingerprintFile
+     *         the file to write
+     * @param fingerprint
+     *         the fingerprint
+     */
+    private static void writeFingerprint(Path fingerprintFile, String fingerprint) {
+        try {
+            Files.write(fingerprintFile, fingerprint.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            logger.warn("cannot write schema fingerprint", e);
+        }
+    }
+
+// --------------------------- CONSTRUCTORS ---------------------------
+
+    /**
+     * private constructor, only static methods.
+     */
+    private SchemaUpdate() {
+    }
+}
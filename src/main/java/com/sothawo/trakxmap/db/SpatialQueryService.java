@@ -0,0 +1,459 @@
+/*
+ Copyright 2015 Peter-Josef Meisch (pj.meisch@sothawo.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.sothawo.trakxmap.db;
+
+import com.sothawo.mapjfx.Coordinate;
+import com.sothawo.trakxmap.util.DistanceEngine;
+import com.sothawo.trakxmap.util.GeoHash;
+import com.sothawo.trakxmap.util.TrackColumns;
+import com.sothawo.trakxmap.util.TrackStatistics;
+
+import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Finds the tracks that came near a position or a line. A query is done in two steps: the TRACK_CELL index gives the
+ * tracks passing through the cells that cover the search area, then the closest approach of each of these candidates
+ * is computed from its trackpoint columns, in parallel for the candidates. Only the candidates' trackpoints are used.
+ *
+ * The closest approach between the track and the query line is searched segment by segment in an equirectangular
+ * projection around the middle of each query segment, the distance of the found positions is then measured on the
+ * ellipsoid. The projection uses the longitude differences wrapped to [-180, 180), so query segments and tracks
+ * crossing the antimeridian are handled.
+ *
+ * @author P.J. Meisch (pj.meisch@sothawo.com).
+ */
+public class SpatialQueryService {
+// ------------------------------ FIELDS ------------------------------
+
+    /** mean earth radius for the local projection */
+    private static final double EARTH_RADIUS = 6371008.8;
+    /** relative margin for the errors of the local projection */
+    private static final double PROJECTION_MARGIN = 0.01;
+
+    /** the repository with the track cell index */
+    private final TrackRepository repository;
+    /** the function to get the tracks for the candidate ids */
+    private final Function<Long, Optional<Track>> trackLoader;
+
+// --------------------------- CONSTRUCTORS ---------------------------
+
+    /**
+     * creates a service that loads the candidate tracks from the repository.
+     *
+     * @param repository
+     *         the repository
+     */
+    public SpatialQueryService(TrackRepository repository) {
+        this(repository, repository::loadTrackWithId);
+    }
+
+    /**
+     * creates a service that uses the index of the repository and gets the candidate tracks from a function, for
+     * example from the tracks already loaded in the application.
+     *
+     * @param repository
+     *         the repository
+     * @param trackLoader
+     *         function returning the track for an id
+     */
+    public SpatialQueryService(TrackRepository repository, Function<Long, Optional<Track>> trackLoader) {
+        this.repository = Objects.requireNonNull(repository);
+        this.trackLoader = Objects.requireNonNull(trackLoader);
+    }
+
+// -------------------------- STATIC METHODS --------------------------
+
+    /**
+     * computes the cells covering the area within a distance of a line. Each segment of the line is covered with a
+     * rectangle around it.
+     *
+     * @param latitudes
+     *         latitudes of the line in degrees
+     * @param longitudes
+     *         longitudes of the line in degrees
+     * @param meters
+     *         the distance
+     * @return the cells
+     */
+    private static SortedSet<String> coverLine(double[] latitudes, double[] longitudes, double meters) {
+        SortedSet<String> cells = new TreeSet<>();
+        double margin = meters * (1 + PROJECTION_MARGIN) + 1;
+        int segments = Math.max(1, latitudes.length - 1);
+        for (int k = 0; k < segments; k++) {
+            int end = Math.min(k + 1, latitudes.length - 1);
+            LocalProjection projection = new LocalProjection(latitudes[k], longitudes[k], latitudes[end],
+                    longitudes[end]);
+            double ax = projection.x(longitudes[k]);
+            double ay = projection.y(latitudes[k]);
+            double bx = projection.x(longitudes[end]);
+            double by = projection.y(latitudes[end]);
+            double length = Math.hypot(bx - ax, by - ay);
+            // unit vectors along and across the segment
+            double ux = length > 0 ? (bx - ax) / length : 1.0;
+            double uy = length > 0 ? (by - ay) / length : 0.0;
+            double nx = -uy;
+            double ny = ux;
+            double[] xs = {ax - (ux + nx) * margin, bx + (ux - nx) * margin, bx + (ux + nx) * margin,
+                    ax - (ux - nx) * margin};
+            double[] ys = {ay - (uy + ny) * margin, by + (uy - ny) * margin, by + (uy + ny) * margin,
+                    ay - (uy - ny) * margin};
+            double[] rectangleLatitudes = new double[4];
+            double[] rectangleLongitudes = new double[4];
+            double minLongitude = Double.POSITIVE_INFINITY;
+            double maxLongitude = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i < 4; i++) {
+                rectangleLatitudes[i] = projection.latitude(ys[i]);
+                rectangleLongitudes[i] = projection.longitude(xs[i]);
+                minLongitude = Math.min(minLongitude, rectangleLongitudes[i]);
+                maxLongitude = Math.max(maxLongitude, rectangleLongitudes[i]);
+            }
+            cells.addAll(GeoHash.coverPolygon(rectangleLatitudes, rectangleLongitudes, GeoHash.INDEX_PRECISION));
+            // a rectangle crossing the antimeridian is covered a second time on the other side
+            double shift = maxLongitude >= 180 ? -360 : minLongitude < -180 ? 360 : 0;
+            if (0 != shift) {
+                for (int i = 0; i < 4; i++) {
+                    rectangleLongitudes[i] += shift;
+                }
+                cells.addAll(GeoHash.coverPolygon(rectangleLatitudes, rectangleLongitudes, GeoHash.INDEX_PRECISION));
+            }
+        }
+        return GeoHash.normalize(cells, GeoHash.INDEX_PRECISION);
+    }
+
+    /**
+     * wraps a longitude or a longitude difference to [-180, 180).
+     *
+     * @param degrees
+     *         the longitude in degrees
+     * @return the wrapped longitude
+     */
+    static double wrapLongitude(double degrees) {
+        return degrees - 360 * Math.floor((degrees + 180) / 360);
+    }
+
+    /**
+     * computes the squared distance between two segments in the plane and the parameter of the nearest position on
+     * the first segment.
+     *
+     * @param result
+     *         array to store {squared distance, parameter on segment p-q}
+     */
+    private static void segmentDistance(double px, double py, double qx, double qy, double ax, double ay, double bx,
+                                        double by, double[] result) {
+        double rx = qx - px;
+        double ry = qy - py;
+        double sx = bx - ax;
+        double sy = by - ay;
+        double denominator = rx * sy - ry * sx;
+        if (0.0 != denominator) {
+            double t = ((ax - px) * sy - (ay - py) * sx) / denominator;
+            double u = ((ax - px) * ry - (ay - py) * rx) / denominator;
+            if (t >= 0 && t <= 1 && u >= 0 && u <= 1) {
+                result[0] = 0.0;
+                result[1] = t;
+                return;
+            }
+        }
+        result[0] = Double.POSITIVE_INFINITY;
+        // the end points of the track segment to the query segment
+        double d2 = pointSegmentDistance2(px, py, ax, ay, bx, by);
+        if (d2 < result[0]) {
+            result[0] = d2;
+            result[1] = 0.0;
+        }
+        d2 = pointSegmentDistance2(qx, qy, ax, ay, bx, by);
+        if (d2 < result[0]) {
+            result[0] = d2;
+            result[1] = 1.0;
+        }
+        // the end points of the query segment to the track segment
+        double length2 = rx * rx + ry * ry;
+        for (int i = 0; i < 2; i++) {
+            double x = 0 == i ? ax : bx;
+            double y = 0 == i ? ay : by;
+            double t = 0.0 == length2 ? 0.0 : Math.max(0.0, Math.min(1.0, ((x - px) * rx + (y - py) * ry) / length2));
+            double ex = px + t * rx - x;
+            double ey = py + t * ry - y;
+            d2 = ex * ex + ey * ey;
+            if (d2 < result[0]) {
+                result[0] = d2;
+                result[1] = t;
+            }
+        }
+    }
+
+    /**
+     * squared distance of a point to a segment in the plane.
+     */
+    private static double pointSegmentDistance2(double x, double y, double ax, double ay, double bx, double by) {
+        double dx = bx - ax;
+        double dy = by - ay;
+        double length2 = dx * dx + dy * dy;
+        double t = 0.0 == length2 ? 0.0 : Math.max(0.0, Math.min(1.0, ((x - ax) * dx + (y - ay) * dy) / length2));
+        double ex = ax + t * dx - x;
+        double ey = ay + t * dy - y;
+        return ex * ex + ey * ey;
+    }
+
+    /**
+     * interpolates the time between two times of the trackpoint columns, which may be TrackStatistics.NO_TIME.
+     *
+     * @return the time or null if both are missing
+     */
+    private static LocalDateTime interpolate(long from, long to, double t) {
+        if (TrackStatistics.NO_TIME == from || TrackStatistics.NO_TIME == to) {
+            long time = TrackStatistics.NO_TIME == from ? to : from;
+            return TrackStatistics.NO_TIME == time ? null : TrackStatistics.toLocalDateTime(time);
+        }
+        return TrackStatistics.toLocalDateTime(from + Math.round((to - from) * t));
+    }
+
+// -------------------------- OTHER METHODS --------------------------
+
+    /**
+     * finds the tracks that came within a distance of a position.
+     *
+     * @param center
+     *         the position
+     * @param meters
+     *         the maximum distance
+     * @return stream of the closest approaches of the found tracks, computed in parallel and in no particular order
+     */
+    public Stream<Approach> tracksNear(Coordinate center, double meters) {
+        return tracksAlong(Collections.singletonList(center), meters);
+    }
+
+    /**
+     * finds the tracks that came within a distance of a line.
+     *
+     * @param line
+     *         the positions of the line, a single position for a radius search
+     * @param meters
+     *         the maximum distance
+     * @return stream of the closest approaches of the found tracks, computed in parallel and in no particular order
+     */
+    public Stream<Approach> tracksAlong(List<Coordinate> line, double meters) {
+        if (line.isEmpty()) {
+            return Stream.empty();
+        }
+        double[] latitudes = line.stream().mapToDouble(Coordinate::getLatitude).toArray();
+        double[] longitudes = line.stream().mapToDouble(Coordinate::getLongitude).toArray();
+        // the candidates are loaded in the calling thread, only the computation is done in parallel
+        List<Track> candidates = repository.loadTrackIdsCoveringCells(coverLine(latitudes, longitudes, meters))
+                .stream()
+                .map(trackLoader)
+                .filter(Optional::isPresent)
+                .map(Optional::get)
+                .collect(Collectors.toList());
+        return candidates.parallelStream()
+                .map(track -> closestApproach(track, latitudes, longitudes, meters))
+                .filter(Optional::isPresent)
+                .map(Optional::get);
+    }
+
+    /**
+     * computes the closest approach of a track to a line.
+     *
+     * @param track
+     *         the track
+     * @param latitudes
+     *         latitudes of the line in degrees
+     * @param longitudes
+     *         longitudes of the line in degrees
+     * @param meters
+     *         the maximum distance
+     * @return the approach if the track came within the distance
+     */
+    Optional<Approach> closestApproach(Track track, double[] latitudes, double[] longitudes, double meters) {
+        TrackColumns columns = track.getTrackColumns();
+        int count = columns.size();
+        if (0 == count) {
+            return Optional.empty();
+        }
+        // the track is read in order once per query segment, the reader decodes packed columns block by block
+        TrackColumns.Reader reader = columns.reader();
+
+        double limit = meters * (1 + PROJECTION_MARGIN) + 1;
+        double best2 = limit * limit;
+        int bestSegment = -1;
+        double bestT = 0.0;
+        int bestQuerySegment = 0;
+        double[] result = new double[2];
+        int segments = Math.max(1, latitudes.length - 1);
+        for (int k = 0; k < segments; k++) {
+            int end = Math.min(k + 1, latitudes.length - 1);
+            LocalProjection projection = new LocalProjection(latitudes[k], longitudes[k], latitudes[end],
+                    longitudes[end]);
+            double ax = projection.x(longitudes[k]);
+            double ay = projection.y(latitudes[k]);
+            double bx = projection.x(longitudes[end]);
+            double by = projection.y(latitudes[end]);
+            // bounding box of the query segment with the distance, in the projection
+            double minX = Math.min(ax, bx) - limit;
+            double maxX = Math.max(ax, bx) + limit;
+            double minY = Math.min(ay, by) - limit;
+            double maxY = Math.max(ay, by) + limit;
+            double previousX = projection.x(reader.longitude(0));
+            double previousY = projection.y(reader.latitude(0));
+            // a single trackpoint is a segment of length zero
+            for (int i = Math.min(1, count - 1); i < count; i++) {
+                int previous = Math.max(0, i - 1);
+                double x = projection.x(reader.longitude(i));
+                double y = projection.y(reader.latitude(i));
+                double px = previousX;
+                double py = previousY;
+                previousX = x;
+                previousY = y;
+                if (Math.max(py, y) < minY || Math.min(py, y) > maxY || Math.max(px, x) < minX ||
+                        Math.min(px, x) > maxX) {
+                    continue;
+                }
+                segmentDistance(px, py, x, y, ax, ay, bx, by, result);
+                if (result[0] < best2) {
+                    best2 = result[0];
+                    bestSegment = previous;
+                    bestT = previous == i ? 0.0 : result[1];
+                    bestQuerySegment = k;
+                }
+            }
+        }
+        if (bestSegment < 0) {
+            return Optional.empty();
+        }
+
+        // the position on the track and the nearest position on the query line, measured on the ellipsoid
+        int next = Math.min(bestSegment + 1, count - 1);
+        double latitude = reader.latitude(bestSegment) + bestT * (reader.latitude(next) - reader.latitude(bestSegment));
+        double longitude = wrapLongitude(reader.longitude(bestSegment) +
+                bestT * wrapLongitude(reader.longitude(next) - reader.longitude(bestSegment)));
+        int end = Math.min(bestQuerySegment + 1, latitudes.length - 1);
+        LocalProjection projection = new LocalProjection(latitudes[bestQuerySegment], longitudes[bestQuerySegment],
+                latitudes[end], longitudes[end]);
+        double ax = projection.x(longitudes[bestQuerySegment]);
+        double ay = projection.y(latitudes[bestQuerySegment]);
+        double bx = projection.x(longitudes[end]);
+        double by = projection.y(latitudes[end]);
+        double x = projection.x(longitude);
+        double y = projection.y(latitude);
+        double length2 = (bx - ax) * (bx - ax) + (by - ay) * (by - ay);
+        double u = 0.0 == length2 ? 0.0 :
+                Math.max(0.0, Math.min(1.0, ((x - ax) * (bx - ax) + (y - ay) * (by - ay)) / length2));
+        double distance = DistanceEngine.VINCENTY.distance(latitude, longitude,
+                projection.latitude(ay + u * (by - ay)), wrapLongitude(projection.longitude(ax + u * (bx - ax))));
+        if (distance > meters) {
+            return Optional.empty();
+        }
+        LocalDateTime time = interpolate(reader.time(bestSegment), reader.time(next), bestT);
+        return Optional.of(new Approach(track.getId(), distance, new Coordinate(latitude, longitude), time));
+    }
+
+// -------------------------- INNER CLASSES --------------------------
+
+    /**
+     * the closest approach of a track to the query position or line.
+     */
+    public static final class Approach {
+        /** the id of the track */
+        private final Long trackId;
+        /** the distance in meters */
+        private final double distance;
+        /** the position on the track */
+        private final Coordinate coordinate;
+        /** the time at the position, interpolated between the trackpoints */
+        private final LocalDateTime time;
+
+        Approach(Long trackId, double distance, Coordinate coordinate, LocalDateTime time) {
+            this.trackId = trackId;
+            this.distance = distance;
+            this.coordinate = coordinate;
+            this.time = time;
+        }
+
+        public Long getTrackId() {
+            return trackId;
+        }
+
+        public double getDistance() {
+            return distance;
+        }
+
+        public Coordinate getCoordinate() {
+            return coordinate;
+        }
+
+        /**
+         * @return the time at the closest position, empty if the trackpoints have no timestamps
+         */
+        public Optional<LocalDateTime> getTime() {
+            return Optional.ofNullable(time);
+        }
+
+        @Override
+        public String toString() {
+            return "Approach{" +
+                    "trackId=" + trackId +
+                    ", distance=" + distance +
+                    ", coordinate=" + coordinate +
+                    ", time=" + time +
+                    '}';
+        }
+    }
+
+    /**
+     * equirectangular projection in meters around the middle of a segment. The longitudes returned by the projection
+     * are continuous around the middle of the segment and may lie outside of [-180, 180).
+     */
+    private static final class LocalProjection {
+        private final double latitude0;
+        private final double longitude0;
+        /** meters per degree of latitude */
+        private final double metersPerDegree;
+        /** meters per degree of longitude */
+        private final double metersPerDegreeLongitude;
+
+        LocalProjection(double latitude1, double longitude1, double latitude2, double longitude2) {
+            latitude0 = (latitude1 + latitude2) / 2;
+            longitude0 = wrapLongitude(longitude1 + wrapLongitude(longitude2 - longitude1) / 2);
+            metersPerDegree = Math.toRadians(EARTH_RADIUS);
+            metersPerDegreeLongitude = metersPerDegree * Math.max(1e-6, Math.cos(Math.toRadians(latitude0)));
+        }
+
+        double x(double longitude) {
+            return wrapLongitude(longitude - longitude0) * metersPerDegreeLongitude;
+        }
+
+        double y(double latitude) {
+            return (latitude - latitude0) * metersPerDegree;
+        }
+
+        double longitude(double x) {
+            return longitude0 + x / metersPerDegreeLongitude;
+        }
+
+        double latitude(double y) {
+            return latitude0 + y / metersPerDegree;
+        }
+    }
+}
@@ -16,69 +16,119 @@
 package com.sothawo.trakxmap.db;
 
 import com.sothawo.mapjfx.Coordinate;
-import com.sothawo.mapjfx.CoordinateLine;
 import com.sothawo.mapjfx.Extent;
-import com.sothawo.mapjfx.MapLabel;
-import com.sothawo.mapjfx.Marker;
+import com.sothawo.mapjfx.MapView;
+import com.sothawo.trakxmap.util.Geo;
 import com.sothawo.trakxmap.util.I18N;
+import com.sothawo.trakxmap.util.LevelOfDetail;
 import com.sothawo.trakxmap.util.PathTools;
+import com.sothawo.trakxmap.util.OffHeapPointStore;
+import com.sothawo.trakxmap.util.TrackColumns;
+import com.sothawo.trakxmap.util.TrackPointIndex;
 import com.sothawo.trakxmap.util.TrackStatistics;
 import javafx.beans.property.SimpleStringProperty;
-import javafx.scene.paint.Color;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+import org.hibernate.annotations.Fetch;
+import org.hibernate.annotations.FetchMode;
 
+import javax.persistence.Cacheable;
 import javax.persistence.CascadeType;
+import javax.persistence.CollectionTable;
 import javax.persistence.Column;
+import javax.persistence.ElementCollection;
+import javax.persistence.Embedded;
 import javax.persistence.Entity;
 import javax.persistence.FetchType;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
+import javax.persistence.JoinColumn;
 import javax.persistence.OneToMany;
 import javax.persistence.OrderBy;
 import javax.persistence.Table;
 import javax.persistence.Transient;
 import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Optional;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.util.OptionalInt;
+import java.util.Set;
+import java.util.function.Function;
 
 /**
  * A track that can be displayed on the map with additional data.
  *
+ * The display code uses the trackpoint values as TrackColumns. A track that was loaded or stored by a repository
+ * releases its TrackPoint entities (see {@link #releaseTrackPoints()}), its columns are then read from the point store
+ * or loaded with the trackpoint columns loader, so the entities are only kept for the tracks that are being imported.
+ * The JPA repository does not load the entities of a track whose values are complete in the database.
+ *
  * @author P.J. Meisch (pj.meisch@sothawo.com).
  */
 @Entity
 @Table(name = "TRACK")
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
 public class Track implements Serializable {
 // ------------------------------ FIELDS ------------------------------
 
+    /** the tolerance in pixels for the simplification of the track line */
+    private static final double LOD_TOLERANCE_PIXELS = 0.5;
+
+    /** the store for the trackpoint columns outside of the heap, null if the columns are kept on the heap */
+    private static volatile OffHeapPointStore pointStore = null;
+    /** the manager that limits the memory of the derived data, null for no limit */
+    private static volatile TrackMemoryManager memoryManager = null;
+    /** loads the trackpoint columns of a stored track, null if the tracks keep their trackpoint entities */
+    private static volatile Function<Long, Optional<TrackColumns>> trackColumnsLoader = null;
+    /** maximum difference between the stored track distance and the last distance of the columns from the store */
+    private static final double DISTANCE_TOLERANCE = 0.01;
+    /** approximate size of a Coordinate in a snapshot */
+    private static final int COORDINATE_SIZE = 48;
+
     /** the name of the track */
     private final SimpleStringProperty name = new SimpleStringProperty(I18N.get(I18N.TRACK_NAME_DEFAULT));
     /** db id of the track */
     private Long id;
     /** the filename where the track was loaded from (without path) */
     private String filename;
+    /** name of the DistanceEngine the trackpoint distances were calculated with, null if unknown */
+    private String distanceEngine;
     /** the waypoints of the track */
     private List<WayPoint> wayPoints = new ArrayList<>();
     /** the routepoints of the track */
     private List<RoutePoint> routePoints = new ArrayList<>();
-    /** the trackpoints of the track */
+    /** the trackpoints of the track, empty when they were released */
     private List<TrackPoint> trackPoints = new ArrayList<>();
-    /** the time info for the track */
-    private TrackStatistics statistics = null;
+    /** true when the trackpoint entities were released, the columns are then rebuilt with the trackpoint loader */
+    private boolean trackPointsReleased = false;
+    /** the geohash cells the track passes through */
+    private Set<String> cells = new HashSet<>();
+    /** the statistics of the track, stored in the TRACK table */
+    private volatile TrackStatistics statistics = null;
+
+    /** the bounding box of all points, infinite values for a track without points */
+    private double minLatitude = Double.POSITIVE_INFINITY;
+    private double minLongitude = Double.POSITIVE_INFINITY;
+    private double maxLatitude = Double.NEGATIVE_INFINITY;
+    private double maxLongitude = Double.NEGATIVE_INFINITY;
+    /** false when the bounding box was not stored, it is then calculated from the points when needed */
+    private boolean boundingBoxValid = true;
+
+    /** the trackpoint values as primitive columns */
+    private TrackColumns trackColumns = null;
 
-    // mapjfx elements
     /** the extent of the track */
     private Extent extent = null;
-    /** CoordinateLine for the trackpoints */
-    private CoordinateLine trackLine = null;
-    /** CoordinateLine for the routepoints */
-    private CoordinateLine routeLine = null;
-    /** Markers for the waypoints. */
-    private Collection<Marker> wayPointMarkers = null;
+    /** the level of detail pyramid for the trackpoints */
+    private LevelOfDetail levelOfDetail = null;
+    /** the index for nearest trackpoint lookups */
+    private TrackPointIndex trackPointIndex = null;
+    /** the last snapshot, reset when the track is changed */
+    private volatile TrackSnapshot snapshot = null;
 
 // --------------------------- CONSTRUCTORS ---------------------------
 
@@ -89,8 +139,73 @@ public class Track implements Serializable {
         this.name.set(name);
     }
 
+// -------------------------- STATIC METHODS --------------------------
+
+    /**
+     * sets the store in which the trackpoint columns of stored tracks are kept outside of the heap.
+     *
+     * @param pointStore
+     *         the store, null to keep the columns on the heap
+     */
+    public static void setPointStore(OffHeapPointStore pointStore) {
+        Track.pointStore = pointStore;
+    }
+
+    /**
+     * sets the manager which is informed about the use of the derived data of the tracks.
+     *
+     * @param memoryManager
+     *         the manager, null to keep the derived data
+     */
+    public static void setMemoryManager(TrackMemoryManager memoryManager) {
+        Track.memoryManager = memoryManager;
+    }
+
+    /**
+     * sets the function that loads the trackpoint columns of a stored track. Only when it is set, the tracks release
+     * their trackpoint entities after they are loaded or stored.
+     *
+     * @param trackColumnsLoader
+     *         function returning the columns for a track id, null to keep the trackpoint entities
+     */
+    public static void setTrackColumnsLoader(Function<Long, Optional<TrackColumns>> trackColumnsLoader) {
+        Track.trackColumnsLoader = trackColumnsLoader;
+    }
+
+    /**
+     * checks if a trackpoint columns loader is set, so that the trackpoints of a loaded track can be released.
+     *
+     * @return true if the loader is set
+     */
+    public static boolean hasTrackColumnsLoader() {
+        return null != trackColumnsLoader;
+    }
+
 // --------------------- GETTER / SETTER METHODS ---------------------
 
+    /**
+     * gets the geohash cells of precision GeoHash.INDEX_PRECISION the track passes through. They are stored in the
+     * TRACK_CELL table to find the tracks in an area without loading the trackpoints.
+     *
+     * @return the cells
+     */
+    @ElementCollection
+    @CollectionTable(name = "TRACK_CELL", joinColumns = @JoinColumn(name = "TRACK_ID"))
+    @Column(name = "CELL", length = 12)
+    @Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
+    public Set<String> getCells() {
+        return cells;
+    }
+
+    private void setCells(Set<String> cells) {
+        this.cells = cells;
+    }
+
+    @Column(name = "DISTANCE_ENGINE", length = 20)
+    public String getDistanceEngine() {
+        return distanceEngine;
+    }
+
     @Column(name = "FILENAME", length = 255)
     public String getFilename() {
         return filename;
@@ -105,25 +220,93 @@ public class Track implements Serializable {
 
     public void setId(Long id) {
         this.id = id;
+        snapshot = null;
     }
 
     /**
-     * gets the Coordinateline for the routepoints
+     * gets the maximum latitude of the track-, route- and waypoints. The value is not calculated here, so that the
+     * persistence provider does not load the points when it reads the property.
      *
-     * @return CoordinateLine
+     * @return the latitude, null for a track without points or when the bounding box was not stored and not yet
+     * calculated with {@link #updateBoundingBox()}
      */
-    @Transient
-    public CoordinateLine getRouteLine() {
-        if (null == routeLine) {
-            routeLine =
-                    new CoordinateLine(routePoints.stream().map(RoutePoint::getCoordinate).collect(Collectors.toList())
-                    ).setColor(Color.GREEN).setWidth(3);
+    @Column(name = "MAX_LATITUDE")
+    public Double getMaxLatitude() {
+        return boundingBoxValid && !Double.isInfinite(maxLatitude) ? maxLatitude : null;
+    }
+
+    private void setMaxLatitude(Double maxLatitude) {
+        if (null == maxLatitude) {
+            boundingBoxValid = false;
+        } else {
+            this.maxLatitude = maxLatitude;
+        }
+    }
+
+    /**
+     * gets the maximum longitude of the track-, route- and waypoints. The value is not calculated here, so that the
+     * persistence provider does not load the points when it reads the property.
+     *
+     * @return the longitude, null for a track without points or when the bounding box was not stored and not yet
+     * calculated with {@link #updateBoundingBox()}
+     */
+    @Column(name = "MAX_LONGITUDE")
+    public Double getMaxLongitude() {
+        return boundingBoxValid && !Double.isInfinite(maxLongitude) ? maxLongitude : null;
+    }
+
+    private void setMaxLongitude(Double maxLongitude) {
+        if (null == maxLongitude) {
+            boundingBoxValid = false;
+        } else {
+            this.maxLongitude = maxLongitude;
+        }
+    }
+
+    /**
+     * gets the minimum latitude of the track-, route- and waypoints. The value is not calculated here, so that the
+     * persistence provider does not load the points when it reads the property.
+     *
+     * @return the latitude, null for a track without points or when the bounding box was not stored and not yet
+     * calculated with {@link #updateBoundingBox()}
+     */
+    @Column(name = "MIN_LATITUDE")
+    public Double getMinLatitude() {
+        return boundingBoxValid && !Double.isInfinite(minLatitude) ? minLatitude : null;
+    }
+
+    private void setMinLatitude(Double minLatitude) {
+        if (null == minLatitude) {
+            boundingBoxValid = false;
+        } else {
+            this.minLatitude = minLatitude;
+        }
+    }
+
+    /**
+     * gets the minimum longitude of the track-, route- and waypoints. The value is not calculated here, so that the
+     * persistence provider does not load the points when it reads the property.
+     *
+     * @return the longitude, null for a track without points or when the bounding box was not stored and not yet
+     * calculated with {@link #updateBoundingBox()}
+     */
+    @Column(name = "MIN_LONGITUDE")
+    public Double getMinLongitude() {
+        return boundingBoxValid && !Double.isInfinite(minLongitude) ? minLongitude : null;
+    }
+
+    private void setMinLongitude(Double minLongitude) {
+        if (null == minLongitude) {
+            boundingBoxValid = false;
+        } else {
+            this.minLongitude = minLongitude;
         }
-        return routeLine;
     }
 
     @OneToMany(mappedBy = "track", cascade = CascadeType.ALL, fetch = FetchType.EAGER)
     @OrderBy("sequence")
+    @Fetch(FetchMode.SELECT)
+    @Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
     public List<RoutePoint> getRoutePoints() {
         return routePoints;
     }
@@ -133,38 +316,254 @@ public class Track implements Serializable {
     }
 
     /**
-     * gets the lazy evaluated TrackStatistics.
+     * gets the TrackStatistics. They are stored with the track; for tracks from an older database version they are
+     * computed from the points when first needed. Once they are set, this does not lock the track.
      *
      * @return TrackStatistics object
      */
-    @Transient
+    @Embedded
     public TrackStatistics getStatistics() {
-        if (null == statistics) {
-            statistics = new TrackStatistics();
-            trackPoints.stream().forEach(statistics::addTrackPoint);
-            routePoints.stream().map(Point::getTimestamp).forEach(statistics::addRouteTime);
-            wayPoints.stream().map(Point::getTimestamp).forEach(statistics::addWaypointTime);
+        TrackStatistics current = statistics;
+        if (null == current) {
+            synchronized (this) {
+                current = null == statistics ? updateStatistics() : statistics;
+            }
         }
-        return statistics;
+        return current;
     }
 
     /**
-     * gets the Coordinateline for the trackpoints
+     * sets the statistics that were stored with the track, used by JPA and by the JdbcTrackRepository.
      *
-     * @return CoordinateLine
+     * @param statistics
+     *         the stored statistics
+     */
+    void setStatistics(TrackStatistics statistics) {
+        this.statistics = statistics;
+    }
+
+    /**
+     * gets the lazy evaluated primitive columns of the trackpoint values. For a stored track the columns are read from
+     * the point store if it is set. Otherwise they are built from the trackpoints, the distances are calculated first
+     * if they are not set; when the trackpoints were released, the columns are loaded with the trackpoint columns
+     * loader instead. Built columns are written to the store, columns that stay on the heap are packed.
+     *
+     * @return TrackColumns, empty columns if the columns of a track with released trackpoints cannot be loaded
      */
     @Transient
-    public CoordinateLine getTrackLine() {
-        if (null == trackLine) {
-            trackLine =
-                    new CoordinateLine(trackPoints.stream().map(TrackPoint::getCoordinate).collect(Collectors.toList())
-                    ).setColor(Color.RED).setWidth(5);
+    public synchronized TrackColumns getTrackColumns() {
+        if (null == trackColumns) {
+            OffHeapPointStore store = pointStore;
+            if (null != store && null != id) {
+                trackColumns = store.get(id).filter(this::matchesTrack).orElse(null);
+            }
+            if (null == trackColumns) {
+                TrackColumns columns;
+                if (trackPointsReleased) {
+                    Function<Long, Optional<TrackColumns>> loader = trackColumnsLoader;
+                    Optional<TrackColumns> loaded = null == loader ? Optional.empty() : loader.apply(id);
+                    if (!loaded.isPresent()) {
+                        // not kept, so that the columns are loaded again on the next call
+                        return TrackColumns.of(Collections.emptyList());
+                    }
+                    columns = loaded.get();
+                } else {
+                    if (!trackPoints.isEmpty() && null == trackPoints.get(0).getDistance()) {
+                        Geo.updateTrackDistances(this);
+                    }
+                    columns = TrackColumns.of(trackPoints);
+                }
+                if (null != store && null != id) {
+                    columns = store.put(id, columns);
+                }
+                // columns that stay on the heap are packed
+                trackColumns = columns.isDirect() ? columns : columns.pack();
+            }
         }
-        return trackLine;
+        return trackColumns;
     }
 
-    @OneToMany(mappedBy = "track", cascade = CascadeType.ALL, fetch = FetchType.EAGER)
+    /**
+     * checks if columns from the point store belong to this track, this detects files that are left over from a
+     * deleted track whose id was reused. Without the trackpoint entities, the columns are checked against the stored
+     * distance and bounding box of the track.
+     */
+    private boolean matchesTrack(TrackColumns columns) {
+        if (trackPointsReleased) {
+            int size = columns.size();
+            return size > 0 && null != statistics &&
+                    statistics.getTrackDistance()
+                            .filter(distance -> Math.abs(distance - columns.distance(size - 1)) <= DISTANCE_TOLERANCE)
+                            .isPresent() &&
+                    insideBoundingBox(columns.latitude(0), columns.longitude(0)) &&
+                    insideBoundingBox(columns.latitude(size - 1), columns.longitude(size - 1));
+        }
+        int size = trackPoints.size();
+        if (columns.size() != size) {
+            return false;
+        }
+        if (size > 0) {
+            TrackPoint first = trackPoints.get(0);
+            TrackPoint last = trackPoints.get(size - 1);
+            return columns.latitude(0) == first.getLatitude() && columns.longitude(0) == first.getLongitude() &&
+                    columns.latitude(size - 1) == last.getLatitude() &&
+                    columns.longitude(size - 1) == last.getLongitude();
+        }
+        return true;
+    }
+
+    /**
+     * drops the primitive columns and the data built from them, they are rebuilt when they are needed next. This must
+     * be called when the values of the trackpoints are changed or the track is deleted, the columns of the track are
+     * removed from the point store as well.
+     */
+    public synchronized void resetTrackColumns() {
+        trackColumns = null;
+        levelOfDetail = null;
+        trackPointIndex = null;
+        snapshot = null;
+        OffHeapPointStore store = pointStore;
+        if (null != store && null != id) {
+            store.remove(id);
+        }
+    }
+
+    /**
+     * gets an immutable snapshot of the track with all data needed for displaying it. The snapshot is created when it
+     * is first requested after the track was changed, this should be done in a background thread when the track is
+     * selected; it can then be handed to the JavaFX application thread.
+     *
+     * @return TrackSnapshot
+     */
+    public TrackSnapshot snapshot() {
+        TrackSnapshot current = snapshot;
+        if (null == current) {
+            synchronized (this) {
+                current = snapshot;
+                if (null == current) {
+                    current = new TrackSnapshot(this);
+                    snapshot = current;
+                }
+            }
+        }
+        notifyMemoryManager();
+        return current;
+    }
+
+    /**
+     * releases the trackpoint entities of a stored track, the trackpoint values are then only kept in the columns. The
+     * columns are read from the point store or loaded with the trackpoint columns loader when they are needed. This is
+     * called by the repositories after a track was loaded or stored; it does nothing if the track is not stored or no
+     * loader is set. Trackpoints cannot be added to a track after its trackpoints were released.
+     */
+    public synchronized void releaseTrackPoints() {
+        if (null != trackColumnsLoader && null != id && !trackPointsReleased) {
+            ensureBoundingBox();
+            trackPoints = Collections.emptyList();
+            trackPointsReleased = true;
+        }
+    }
+
+    /**
+     * checks if the trackpoint entities of the track were released.
+     *
+     * @return true if the trackpoint values are only available from the columns
+     */
+    public boolean hasReleasedTrackPoints() {
+        return trackPointsReleased;
+    }
+
+    /**
+     * informs the memory manager about the use of the derived data, this must be called without the lock held.
+     */
+    private void notifyMemoryManager() {
+        TrackMemoryManager manager = memoryManager;
+        if (null != manager) {
+            manager.accessed(this);
+        }
+    }
+
+    /**
+     * the approximate size of the derived data that can be released with releaseDerivedData().
+     *
+     * @return size in bytes
+     */
+    public synchronized long derivedDataSize() {
+        long size = 0;
+        if (null != trackColumns) {
+            size += trackColumns.memorySize();
+        }
+        if (null != levelOfDetail) {
+            size += levelOfDetail.memorySize();
+        }
+        if (null != trackPointIndex) {
+            size += trackPointIndex.memorySize();
+        }
+        if (null != snapshot) {
+            size += COORDINATE_SIZE * (routePoints.size() + wayPoints.size());
+        }
+        return size;
+    }
+
+    /**
+     * releases the derived data: the trackpoint columns, the level of detail, the trackpoint index and the snapshot.
+     * They are rebuilt when they are needed next; the columns in the point store are kept, only their mapping is
+     * released. Snapshots that are still referenced stay valid.
+     */
+    public synchronized void releaseDerivedData() {
+        trackColumns = null;
+        levelOfDetail = null;
+        trackPointIndex = null;
+        snapshot = null;
+        OffHeapPointStore store = pointStore;
+        if (null != store && null != id) {
+            store.release(id);
+        }
+    }
+
+    /**
+     * gets the lazy evaluated level of detail pyramid for the trackpoints.
+     *
+     * @return LevelOfDetail
+     */
+    @Transient
+    public synchronized LevelOfDetail getLevelOfDetail() {
+        if (null == levelOfDetail) {
+            levelOfDetail = new LevelOfDetail(getTrackColumns(), MapView.MAX_ZOOM, LOD_TOLERANCE_PIXELS);
+        }
+        return levelOfDetail;
+    }
+
+    /**
+     * gets the lazy evaluated index for finding the trackpoint nearest to a position or a distance. Building the index
+     * for a large track takes some time, so it should be called in a background thread when the track is selected.
+     *
+     * @return TrackPointIndex
+     */
+    @Transient
+    public TrackPointIndex getTrackPointIndex() {
+        TrackPointIndex index;
+        synchronized (this) {
+            if (null == trackPointIndex) {
+                trackPointIndex = new TrackPointIndex(getTrackColumns());
+            }
+            index = trackPointIndex;
+        }
+        notifyMemoryManager();
+        return index;
+    }
+
+    /**
+     * gets the trackpoint entities. They are loaded lazily, a repository only loads them when values of the track must
+     * be calculated or no trackpoint columns loader is set. They are empty after they were released, the values are
+     * then available from getTrackColumns().
+     *
+     * @return the trackpoints
+     */
+    @OneToMany(mappedBy = "track", cascade = CascadeType.ALL, fetch = FetchType.LAZY)
     @OrderBy("sequence")
+    @Fetch(FetchMode.SELECT)
+    @Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
     public List<TrackPoint> getTrackPoints() {
         return trackPoints;
     }
@@ -175,6 +574,8 @@ public class Track implements Serializable {
 
     @OneToMany(mappedBy = "track", cascade = CascadeType.ALL, fetch = FetchType.EAGER)
     @OrderBy("sequence")
+    @Fetch(FetchMode.SELECT)
+    @Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
     public List<WayPoint> getWayPoints() {
         return wayPoints;
     }
@@ -183,31 +584,6 @@ public class Track implements Serializable {
         this.wayPoints = wayPoints;
     }
 
-    @Transient
-    public Collection<Marker> getWayPointMarkers() {
-        if (null == wayPointMarkers) {
-            wayPointMarkers = new ArrayList<>();
-            wayPoints.stream().forEach(wp -> {
-                final Marker marker = Marker.createProvided(Marker.Provided.RED);
-                marker.setPosition(wp.getCoordinate());
-                Optional.ofNullable(wp.getName())
-                        .ifPresent(name -> marker.attachLabel(new MapLabel(name, 10, -10).setCssClass("red-label")));
-                marker.setVisible(true);
-                wayPointMarkers.add(marker);
-            });
-        }
-        return wayPointMarkers;
-    }
-
-    /**
-     * WayPoint Markers as Stream.
-     *
-     * @return stream of waypoint markers
-     */
-    public Stream<Marker> wayPointMarkers() {
-        return getWayPointMarkers().stream();
-    }
-
 // ------------------------ CANONICAL METHODS ------------------------
 
     @Override
@@ -217,7 +593,7 @@ public class Track implements Serializable {
                 " filename=" + filename +
                 ", #wayPoints=" + wayPoints.size() +
                 ", #routePoints=" + routePoints.size() +
-                ", #trackPoints=" + trackPoints.size() +
+                ", #trackPoints=" + (trackPointsReleased ? "released" : String.valueOf(trackPoints.size())) +
                 '}';
     }
 
@@ -233,6 +609,8 @@ public class Track implements Serializable {
         routePoint.setTrack(this);
         routePoint.setSequence(routePoints.size() + 1);
         routePoints.add(routePoint);
+        extendBoundingBox(routePoint);
+        snapshot = null;
     }
 
     /**
@@ -245,6 +623,9 @@ public class Track implements Serializable {
         trackPoint.setTrack(this);
         trackPoint.setSequence(trackPoints.size() + 1);
         trackPoints.add(trackPoint);
+        trackColumns = null;
+        extendBoundingBox(trackPoint);
+        snapshot = null;
     }
 
     /**
@@ -257,6 +638,179 @@ public class Track implements Serializable {
         wayPoint.setTrack(this);
         wayPoint.setSequence(wayPoints.size() + 1);
         wayPoints.add(wayPoint);
+        extendBoundingBox(wayPoint);
+        snapshot = null;
+    }
+
+    /**
+     * calculates the bounding box from the points if it was not stored. This is called by the repositories when a
+     * track from an older database version is loaded, so that the box can be written to the database.
+     */
+    public synchronized void updateBoundingBox() {
+        ensureBoundingBox();
+    }
+
+    /**
+     * calculates the bounding box if it was not stored.
+     */
+    private void ensureBoundingBox() {
+        if (!boundingBoxValid) {
+            recalculateBoundingBox();
+        }
+    }
+
+    /**
+     * extends the bounding box with a point.
+     */
+    private void extendBoundingBox(Point point) {
+        extendBoundingBox(point.getLatitude(), point.getLongitude());
+    }
+
+    /**
+     * extends the bounding box with a position.
+     */
+    private void extendBoundingBox(double latitude, double longitude) {
+        if (boundingBoxValid) {
+            minLatitude = Math.min(minLatitude, latitude);
+            maxLatitude = Math.max(maxLatitude, latitude);
+            minLongitude = Math.min(minLongitude, longitude);
+            maxLongitude = Math.max(maxLongitude, longitude);
+            extent = null;
+        }
+    }
+
+    /**
+     * checks if a position is inside of the bounding box.
+     */
+    private boolean insideBoundingBox(double latitude, double longitude) {
+        ensureBoundingBox();
+        return latitude >= minLatitude && latitude <= maxLatitude && longitude >= minLongitude &&
+                longitude <= maxLongitude;
+    }
+
+    /**
+     * checks if the bounding box is known without calculating it.
+     *
+     * @return true if the box was loaded or built from the added points
+     */
+    public boolean hasBoundingBox() {
+        return boundingBoxValid;
+    }
+
+    /**
+     * checks if the bounding box of the track intersects an area, for example the visible part of the map.
+     *
+     * @param area
+     *         the area
+     * @return true if the track may be visible in the area
+     */
+    public synchronized boolean intersects(Extent area) {
+        ensureBoundingBox();
+        return minLatitude <= area.getMax().getLatitude() && maxLatitude >= area.getMin().getLatitude() &&
+                minLongitude <= area.getMax().getLongitude() && maxLongitude >= area.getMin().getLongitude();
+    }
+
+    /**
+     * calculates the bounding box from all points.
+     */
+    private void recalculateBoundingBox() {
+        minLatitude = Double.POSITIVE_INFINITY;
+        minLongitude = Double.POSITIVE_INFINITY;
+        maxLatitude = Double.NEGATIVE_INFINITY;
+        maxLongitude = Double.NEGATIVE_INFINITY;
+        boundingBoxValid = true;
+        extent = null;
+        snapshot = null;
+        if (trackPointsReleased) {
+            TrackColumns columns = getTrackColumns();
+            for (int i = 0; i < columns.size(); i++) {
+                extendBoundingBox(columns.latitude(i), columns.longitude(i));
+            }
+        } else {
+            trackPoints.forEach(this::extendBoundingBox);
+        }
+        routePoints.forEach(this::extendBoundingBox);
+        wayPoints.forEach(this::extendBoundingBox);
+    }
+
+    /**
+     * checks if the track has statistics without computing them.
+     *
+     * @return true if the statistics were loaded or computed
+     */
+    public boolean hasStatistics() {
+        return null != statistics;
+    }
+
+    /**
+     * computes the statistics from the points in one pass over the trackpoints. This must be called when the points
+     * were changed.
+     *
+     * @return the new statistics
+     */
+    public synchronized TrackStatistics updateStatistics() {
+        TrackColumns columns = getTrackColumns();
+        double[] elevations = columns.getElevations().clone();
+        for (int i = 0; i < elevations.length; i++) {
+            // 0.0 is written by devices without elevation data
+            if (0.0 == elevations[i]) {
+                elevations[i] = Double.NaN;
+            }
+        }
+        TrackStatistics trackStatistics =
+                TrackStatistics.compute(columns.getTimes(), columns.getDistances(), elevations);
+        routePoints.stream().map(Point::getTimestamp).forEach(trackStatistics::addRouteTime);
+        wayPoints.stream().map(Point::getTimestamp).forEach(trackStatistics::addWaypointTime);
+        statistics = trackStatistics;
+        snapshot = null;
+        return trackStatistics;
+    }
+
+    /**
+     * finds the trackpoint nearest to a coordinate, for example a position clicked on the map. This may build the
+     * trackpoint index and load the columns, so it should not be called on the JavaFX application thread.
+     *
+     * @param coordinate
+     *         the coordinate
+     * @return a trackpoint with the values of the nearest trackpoint, empty if the track has no trackpoints
+     */
+    public Optional<TrackPoint> nearestTrackPoint(Coordinate coordinate) {
+        OptionalInt index = getTrackPointIndex().nearest(coordinate.getLatitude(), coordinate.getLongitude());
+        return index.isPresent() ? Optional.of(trackPointAt(index.getAsInt())) : Optional.empty();
+    }
+
+    /**
+     * finds the trackpoint whose distance along the track is nearest to a distance, for example a position in the
+     * elevation chart. This may build the trackpoint index and load the columns, so it should not be called on the
+     * JavaFX application thread.
+     *
+     * @param distance
+     *         distance along the track in meters
+     * @return a trackpoint with the values of the nearest trackpoint, empty if the track has no trackpoints
+     */
+    public Optional<TrackPoint> trackPointAtDistance(double distance) {
+        OptionalInt index = getTrackPointIndex().nearestByDistance(distance);
+        return index.isPresent() ? Optional.of(trackPointAt(index.getAsInt())) : Optional.empty();
+    }
+
+    /**
+     * creates a trackpoint with the values from the columns, it is not added to the track.
+     *
+     * @param index
+     *         index of the trackpoint
+     * @return new TrackPoint
+     */
+    private TrackPoint trackPointAt(int index) {
+        TrackColumns columns = getTrackColumns();
+        double elevation = columns.elevation(index);
+        double distance = columns.distance(index);
+        long time = columns.time(index);
+        TrackPoint trackPoint = new TrackPoint(columns.latitude(index), columns.longitude(index),
+                Double.isNaN(elevation) ? null : elevation,
+                TrackStatistics.NO_TIME == time ? null : TrackStatistics.toLocalDateTime(time));
+        trackPoint.setDistance(Double.isNaN(distance) ? null : distance);
+        trackPoint.setSequence(index + 1);
+        return trackPoint;
     }
 
     @Column(name = "NAME", length = 255)
@@ -269,42 +823,45 @@ public class Track implements Serializable {
     }
 
     /**
-     * recalculates the extent. This is necessary if the trackpoint list was modified after the last call to
-     * getExtent();
+     * recalculates the bounding box and the extent from all points. This is only necessary if points were modified or
+     * the point lists were changed without the add methods.
      *
      * @return the extent
      */
-    public Optional<Extent> recalculateExtent() {
-        extent = null;
+    public synchronized Optional<Extent> recalculateExtent() {
+        recalculateBoundingBox();
         return getExtent();
     }
 
     /**
-     * gets the extent for the contained trackpoints. If the list of trackpoints is changed after the extent is
-     * calculated, the new extent must be calculated by calling recalculateExtent().
+     * gets the extent of the bounding box of the track-, route- and waypoints. The box is maintained when points are
+     * added and stored with the track, so this does not iterate over the points.
      *
-     * @return the extent
+     * @return the extent, empty if the track has no points or all points are at the same position
      */
     @Transient
-    public Optional<Extent> getExtent() {
-        // extent can only be calculated when more than 2 points are available
+    public synchronized Optional<Extent> getExtent() {
         if (null == extent) {
-            List<Coordinate> coordinates = trackPoints.stream().map(TrackPoint::getCoordinate).collect(Collectors
-                    .toList());
-            coordinates.addAll(routePoints.stream().map(RoutePoint::getCoordinate).collect(Collectors.toList()));
-            coordinates.addAll(wayPoints.stream().map(WayPoint::getCoordinate).collect(Collectors.toList()));
-            if (coordinates.size() >= 2) {
-                extent = Extent.forCoordinates(coordinates);
+            ensureBoundingBox();
+            if (minLatitude < maxLatitude || minLongitude < maxLongitude) {
+                extent = Extent.forCoordinates(new Coordinate(minLatitude, minLongitude),
+                        new Coordinate(maxLatitude, maxLongitude));
             }
         }
         return Optional.ofNullable(extent);
     }
 
+    public void setDistanceEngine(String distanceEngine) {
+        this.distanceEngine = distanceEngine;
+    }
+
     public void setFilename(String filename) {
         this.filename = PathTools.getFilenameFromPath(filename);
+        snapshot = null;
     }
 
     public void setName(String name) {
         this.name.set(name);
+        snapshot = null;
     }
 }
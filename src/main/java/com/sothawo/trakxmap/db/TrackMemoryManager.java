@@ -0,0 +1,241 @@
+/*
+ Copyright 2015 Peter-Josef Meisch (pj.meisch@sothawo.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.sothawo.trakxmap.db;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the memory used by the derived data of the tracks (trackpoint columns, level of detail, trackpoint index and
+ * snapshot) within limits. The tracks report the use of their derived data; the manager accounts the size per track
+ * and releases the data of the least recently used tracks when the configured budget is exceeded. The data is rebuilt
+ * by the track when it is needed again.
+ *
+ * Independent of the budget, the usage threshold of the heap memory pools is watched: when the used heap after a
+ * garbage collection exceeds the configured fraction of the maximum, the derived data of all tracks but the most
+ * recently used one is released.
+ *
+ * The data of the pinned track, the track that is selected in the application, is never released by the manager, so
+ * that the lookups of the selected track do not have to rebuild its index or level of detail.
+ *
+ * @author P.J. Meisch (pj.meisch@sothawo.com).
+ */
+public class TrackMemoryManager implements AutoCloseable {
+// ------------------------------ FIELDS ------------------------------
+
+    /** the Logger */
+    private final static Logger logger = LoggerFactory.getLogger(TrackMemoryManager.class);
+
+    private static final String CONF_BUDGET = "budget";
+    private static final String CONF_HEAP_USAGE_THRESHOLD = "heapUsageThreshold";
+    /** number of tracks that are kept on heap pressure */
+    private static final int KEEP_ON_PRESSURE = 1;
+
+    /** the maximum size of the derived data in bytes */
+    private final long budget;
+    /** the size of the derived data per track in the order of use, the most recently used last */
+    private final LinkedHashMap<Track, Long> sizes = new LinkedHashMap<>(16, 0.75f, true);
+    /** the sum of the sizes */
+    private long totalSize = 0;
+    /** the track whose data is not released, may be null */
+    private Track pinned = null;
+    /** the listener for the heap notifications */
+    private final NotificationListener heapListener = this::handleNotification;
+
+// --------------------------- CONSTRUCTORS ---------------------------
+
+    /**
+     * creates the manager with the values from the configuration and registers it for heap usage notifications.
+     */
+    public TrackMemoryManager() {
+        this(ConfigFactory.load().getConfig(TrackMemoryManager.class.getCanonicalName()));
+    }
+
+    private TrackMemoryManager(Config config) {
+        this(config.getBytes(CONF_BUDGET), config.getDouble(CONF_HEAP_USAGE_THRESHOLD));
+    }
+
+    /**
+     * creates the manager.
+     *
+     * @param budget
+     *         the maximum size of the derived data in bytes
+     * @param heapUsageThreshold
+     *         fraction of the maximum heap size above which all data is released, 0 to not watch the heap
+     */
+    public TrackMemoryManager(long budget, double heapUsageThreshold) {
+        this.budget = budget;
+        if (heapUsageThreshold > 0) {
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                long max = pool.getUsage().getMax();
+                // only the old generation pools support collection usage thresholds
+                if (MemoryType.HEAP == pool.getType() && pool.isCollectionUsageThresholdSupported() && max > 0) {
+                    pool.setCollectionUsageThreshold((long) (max * heapUsageThreshold));
+                    logger.debug("watching memory pool {} with threshold {}", pool.getName(),
+                            pool.getCollectionUsageThreshold());
+                }
+            }
+            ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).addNotificationListener(heapListener, null,
+                    null);
+        }
+    }
+
+// ------------------------ INTERFACE METHODS ------------------------
+
+
+// --------------------- Interface AutoCloseable ---------------------
+
+    @Override
+    public void close() {
+        try {
+            ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).removeNotificationListener(heapListener);
+        } catch (ListenerNotFoundException ignored) {
+            // not registered
+        }
+    }
+
+// -------------------------- OTHER METHODS --------------------------
+
+    /**
+     * records the use of the derived data of a track and releases the data of other tracks if the budget is exceeded.
+     * This must not be called with the lock of the track held.
+     *
+     * @param track
+     *         the track
+     */
+    public void accessed(Track track) {
+        long size = track.derivedDataSize();
+        List<Track> evicted = new ArrayList<>();
+        synchronized (this) {
+            Long previous = sizes.put(track, size);
+            totalSize += size - (null == previous ? 0 : previous);
+            Iterator<Map.Entry<Track, Long>> iterator = sizes.entrySet().iterator();
+            while (totalSize > budget && iterator.hasNext()) {
+                Map.Entry<Track, Long> eldest = iterator.next();
+                // the track that was just used and the pinned track are never evicted
+                if (eldest.getKey() != track && eldest.getKey() != pinned) {
+                    totalSize -= eldest.getValue();
+                    evicted.add(eldest.getKey());
+                    iterator.remove();
+                }
+            }
+        }
+        release(evicted);
+    }
+
+    /**
+     * removes a track from the accounting without releasing its data, for example when it is deleted.
+     *
+     * @param track
+     *         the track
+     */
+    public synchronized void remove(Track track) {
+        Long size = sizes.remove(track);
+        if (null != size) {
+            totalSize -= size;
+        }
+        if (pinned == track) {
+            pinned = null;
+        }
+    }
+
+    /**
+     * releases the derived data of all but the most recently used tracks, the data of the pinned track is kept as
+     * well.
+     *
+     * @param keep
+     *         the number of most recently used tracks to keep
+     */
+    public void releaseAll(int keep) {
+        List<Track> evicted = new ArrayList<>();
+        synchronized (this) {
+            Iterator<Map.Entry<Track, Long>> iterator = sizes.entrySet().iterator();
+            for (int count = sizes.size() - keep; count > 0; count--) {
+                Map.Entry<Track, Long> eldest = iterator.next();
+                if (eldest.getKey() != pinned) {
+                    totalSize -= eldest.getValue();
+                    evicted.add(eldest.getKey());
+                    iterator.remove();
+                }
+            }
+        }
+        release(evicted);
+    }
+
+    /**
+     * sets the track whose derived data is not released, replacing the previously pinned track.
+     *
+     * @param track
+     *         the track, null to pin no track
+     */
+    public synchronized void setPinned(Track track) {
+        pinned = track;
+    }
+
+    /**
+     * the size of the accounted derived data.
+     *
+     * @return size in bytes
+     */
+    public synchronized long totalSize() {
+        return totalSize;
+    }
+
+    /**
+     * the number of tracks with derived data.
+     *
+     * @return count
+     */
+    public synchronized int trackCount() {
+        return sizes.size();
+    }
+
+    /**
+     * handles the heap usage notification.
+     */
+    private void handleNotification(Notification notification, Object handback) {
+        if (MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(notification.getType())) {
+            logger.info("heap usage threshold exceeded, releasing derived data of {} tracks", trackCount());
+            releaseAll(KEEP_ON_PRESSURE);
+        }
+    }
+
+    /**
+     * releases the derived data of tracks, this is done outside of the lock of the manager.
+     */
+    private void release(List<Track> tracks) {
+        if (!tracks.isEmpty()) {
+            logger.debug("releasing derived data of {} tracks", tracks.size());
+            tracks.forEach(Track::releaseDerivedData);
+        }
+    }
+}
@@ -15,6 +15,10 @@
 */
 package com.sothawo.trakxmap.db;
 
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+
+import javax.persistence.Cacheable;
 import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.Table;
@@ -27,6 +31,8 @@ import java.time.LocalDateTime;
  */
 @Entity
 @Table(name = "TRACKPOINT")
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
 public final class TrackPoint extends Point {
 // ------------------------------ FIELDS ------------------------------
 
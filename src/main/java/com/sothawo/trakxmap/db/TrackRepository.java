@@ -0,0 +1,132 @@
+/*
+ Copyright 2015 Peter-Josef Meisch (pj.meisch@sothawo.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.sothawo.trakxmap.db;
+
+import com.sothawo.mapjfx.Coordinate;
+import com.sothawo.trakxmap.util.Failure;
+import com.sothawo.trakxmap.util.GeoHash;
+import com.sothawo.trakxmap.util.TrackColumns;
+
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Implementations of this interface load and store Tracks. Implementations must be threadsafe and must be closed to
+ * release their resources.
+ *
+ * @author P.J. Meisch (pj.meisch@sothawo.com).
+ */
+public interface TrackRepository extends AutoCloseable {
+// -------------------------- OTHER METHODS --------------------------
+
+    @Override
+    void close();
+
+    /**
+     * deletes a track from the database
+     *
+     * @param track
+     *         the track to delete
+     * @return optional failure
+     */
+    Optional<Failure> deleteTrack(Track track);
+
+    /**
+     * loads the ids of all tracks from the database
+     *
+     * @return List of track ids, may be emtpy but not null
+     */
+    List<Long> loadTrackIds();
+
+    /**
+     * loads the geohash cells of all tracks from the TRACK_CELL table.
+     *
+     * @return map from track id to the cells of the track, may be empty but not null
+     */
+    Map<Long, Set<String>> loadTrackCells();
+
+    /**
+     * loads the ids of the tracks passing through any of the given geohash cells. Cells with a lower precision than
+     * GeoHash.INDEX_PRECISION match all the cells they contain, cells with a higher precision are reduced to the index
+     * precision. Only the TRACK_CELL table is searched, no trackpoints are loaded.
+     *
+     * @param cells
+     *         the geohash cells
+     * @return the sorted ids of the tracks, may be empty but not null
+     */
+    List<Long> loadTrackIdsCoveringCells(Collection<String> cells);
+
+    /**
+     * loads the ids of the tracks passing through a polygon. The polygon is covered with geohash cells, so tracks that
+     * pass the border of the polygon within the size of an index cell may be returned as well.
+     *
+     * @param polygon
+     *         the vertices of the polygon, it is closed implicitly and must not cross the antimeridian
+     * @return the sorted ids of the tracks, may be empty but not null
+     */
+    default List<Long> loadTrackIdsInPolygon(List<Coordinate> polygon) {
+        double[] latitudes = polygon.stream().mapToDouble(Coordinate::getLatitude).toArray();
+        double[] longitudes = polygon.stream().mapToDouble(Coordinate::getLongitude).toArray();
+        return loadTrackIdsCoveringCells(GeoHash.coverPolygon(latitudes, longitudes, GeoHash.INDEX_PRECISION));
+    }
+
+    /**
+     * loads the totals of the tracks per week, month or year. The totals are kept in the TRACK_ROLLUP table when
+     * tracks are stored or deleted, so no tracks are loaded.
+     *
+     * @param period
+     *         the period type
+     * @param from
+     *         start of the time range, inclusive
+     * @param to
+     *         end of the time range, exclusive
+     * @return the totals of the periods starting in the time range ordered by start; periods without tracks are
+     * missing. May be empty but not null
+     */
+    List<TrackRollup> loadRollups(TrackRollup.Period period, LocalDateTime from, LocalDateTime to);
+
+    /**
+     * loads the track with the given id from the database
+     *
+     * @param id
+     *         track id
+     * @return Track if found
+     */
+    Optional<Track> loadTrackWithId(Long id);
+
+    /**
+     * loads the values of the trackpoints of a track as columns, no TrackPoint objects are created. This is used by
+     * the tracks to rebuild their columns after their trackpoints were released.
+     *
+     * @param trackId
+     *         track id
+     * @return the columns in the order of the trackpoints, empty on errors
+     */
+    Optional<TrackColumns> loadTrackColumns(Long trackId);
+
+    /**
+     * stores a track in the database
+     *
+     * @param track
+     *         the track to store
+     * @return optional failure
+     */
+    Optional<Failure> store(Track track);
+}
@@ -0,0 +1,162 @@
+/*
+ Copyright 2015 Peter-Josef Meisch (pj.meisch@sothawo.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.sothawo.trakxmap.db;
+
+import com.sothawo.trakxmap.util.TrackStatistics;
+
+import java.time.DayOfWeek;
+import java.time.LocalDateTime;
+import java.time.temporal.TemporalAdjusters;
+
+/**
+ * The totals of the tracks that started in a week, month or year, read from the TRACK_ROLLUP table. The times are in
+ * milliseconds in the same timescale as the track timestamps.
+ *
+ * @author P.J. Meisch (pj.meisch@sothawo.com).
+ */
+public final class TrackRollup {
+// ------------------------------ FIELDS ------------------------------
+
+    /** the period type */
+    private final Period period;
+    /** the start of the period */
+    private final LocalDateTime start;
+    /** number of tracks */
+    private final int trackCount;
+    /** sum of the distances in meters */
+    private final double distance;
+    /** sum of the durations in milliseconds */
+    private final long durationMillis;
+    /** sum of the ascents in meters */
+    private final double ascent;
+
+// --------------------------- CONSTRUCTORS ---------------------------
+
+    public TrackRollup(Period period, LocalDateTime start, int trackCount, double distance, long durationMillis,
+                       double ascent) {
+        this.period = period;
+        this.start = start;
+        this.trackCount = trackCount;
+        this.distance = distance;
+        this.durationMillis = durationMillis;
+        this.ascent = ascent;
+    }
+
+// --------------------- GETTER / SETTER METHODS ---------------------
+
+    public double getAscent() {
+        return ascent;
+    }
+
+    public double getDistance() {
+        return distance;
+    }
+
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    public Period getPeriod() {
+        return period;
+    }
+
+    public LocalDateTime getStart() {
+        return start;
+    }
+
+    public int getTrackCount() {
+        return trackCount;
+    }
+
+// ------------------------ CANONICAL METHODS ------------------------
+
+    @Override
+    public String toString() {
+        return "TrackRollup{" +
+                "period=" + period +
+                ", start=" + start +
+                ", trackCount=" + trackCount +
+                ", distance=" + distance +
+                ", durationMillis=" + durationMillis +
+                ", ascent=" + ascent +
+                '}';
+    }
+
+// -------------------------- OTHER METHODS --------------------------
+
+    /**
+     * the start of the period in milliseconds.
+     *
+     * @return start millis
+     */
+    public long getStartMillis() {
+        return TrackStatistics.toMillis(start);
+    }
+
+    /**
+     * the end of the period in milliseconds, this is the start of the next period.
+     *
+     * @return end millis, exclusive
+     */
+    public long getEndMillis() {
+        return TrackStatistics.toMillis(period.next(start));
+    }
+
+// -------------------------- ENUMERATIONS --------------------------
+
+    /**
+     * the periods for which the totals are kept. Weeks start on monday.
+     */
+    public enum Period {
+        WEEK, MONTH, YEAR;
+
+        /**
+         * gets the start of the period containing a time.
+         *
+         * @param time
+         *         the time
+         * @return start of the period
+         */
+        public LocalDateTime start(LocalDateTime time) {
+            switch (this) {
+                case WEEK:
+                    return time.toLocalDate().with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY)).atStartOfDay();
+                case MONTH:
+                    return time.toLocalDate().withDayOfMonth(1).atStartOfDay();
+                default:
+                    return time.toLocalDate().withDayOfYear(1).atStartOfDay();
+            }
+        }
+
+        /**
+         * gets the start of the following period.
+         *
+         * @param start
+         *         start of a period
+         * @return start of the next period
+         */
+        public LocalDateTime next(LocalDateTime start) {
+            switch (this) {
+                case WEEK:
+                    return start.plusWeeks(1);
+                case MONTH:
+                    return start.plusMonths(1);
+                default:
+                    return start.plusYears(1);
+            }
+        }
+    }
+}
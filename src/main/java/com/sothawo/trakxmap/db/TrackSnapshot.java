@@ -0,0 +1,181 @@
+/*
+ Copyright 2015 Peter-Josef Meisch (pj.meisch@sothawo.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.sothawo.trakxmap.db;
+
+import com.sothawo.mapjfx.Coordinate;
+import com.sothawo.mapjfx.Extent;
+import com.sothawo.trakxmap.util.LevelOfDetail;
+import com.sothawo.trakxmap.util.TrackColumns;
+import com.sothawo.trakxmap.util.TrackStatistics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * An immutable view of a track with all the data that is needed to display it. A snapshot is created with
+ * Track.snapshot() in a background thread when the track is selected, all derived data is computed at that time. As all fields are final and the referenced objects are not modified afterwards, a snapshot can be handed to
+ * the JavaFX application thread and read there without locking.
+ *
+ * The snapshot does not contain JavaFX or map objects; the CoordinateLines and Markers are created by the display code
+ * from the coordinates.
+ *
+ * @author P.J. Meisch (pj.meisch@sothawo.com).
+ */
+public final class TrackSnapshot {
+// ------------------------------ FIELDS ------------------------------
+
+    /** db id of the track, null if not stored */
+    private final Long id;
+    /** the name of the track */
+    private final String name;
+    /** the filename where the track was loaded from */
+    private final String filename;
+    /** the statistics */
+    private final TrackStatistics statistics;
+    /** the extent of all points, null if there are less than 2 points */
+    private final Extent extent;
+    /** the trackpoint values */
+    private final TrackColumns trackColumns;
+    /** the level of detail pyramid for the trackpoints */
+    private final LevelOfDetail levelOfDetail;
+    /** the coordinates of the routepoints */
+    private final List<Coordinate> routeCoordinates;
+    /** the coordinates of the waypoints */
+    private final List<Coordinate> wayPointCoordinates;
+    /** the names of the waypoints, entries may be null */
+    private final List<String> wayPointNames;
+
+// --------------------------- CONSTRUCTORS ---------------------------
+
+    /**
+     * creates the snapshot of a track, this must be called with the lock of the track held.
+     *
+     * @param track
+     *         the track
+     */
+    TrackSnapshot(Track track) {
+        this.id = track.getId();
+        this.name = track.getName();
+        this.filename = track.getFilename();
+        this.statistics = track.getStatistics();
+        this.extent = track.getExtent().orElse(null);
+        this.trackColumns = track.getTrackColumns();
+        this.levelOfDetail = track.getLevelOfDetail();
+        List<Coordinate> route = new ArrayList<>(track.getRoutePoints().size());
+        track.getRoutePoints().forEach(routePoint -> route.add(routePoint.getCoordinate()));
+        this.routeCoordinates = Collections.unmodifiableList(route);
+        List<Coordinate> wayPoints = new ArrayList<>(track.getWayPoints().size());
+        List<String> names = new ArrayList<>(track.getWayPoints().size());
+        track.getWayPoints().forEach(wayPoint -> {
+            wayPoints.add(wayPoint.getCoordinate());
+            names.add(wayPoint.getName());
+        });
+        this.wayPointCoordinates = Collections.unmodifiableList(wayPoints);
+        this.wayPointNames = Collections.unmodifiableList(names);
+    }
+
+// --------------------- GETTER / SETTER METHODS ---------------------
+
+    public Optional<Extent> getExtent() {
+        return Optional.ofNullable(extent);
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public LevelOfDetail getLevelOfDetail() {
+        return levelOfDetail;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * gets the coordinates of the routepoints.
+     *
+     * @return unmodifiable list
+     */
+    public List<Coordinate> getRouteCoordinates() {
+        return routeCoordinates;
+    }
+
+    public TrackStatistics getStatistics() {
+        return statistics;
+    }
+
+    public TrackColumns getTrackColumns() {
+        return trackColumns;
+    }
+
+    /**
+     * gets the coordinates of the waypoints.
+     *
+     * @return unmodifiable list
+     */
+    public List<Coordinate> getWayPointCoordinates() {
+        return wayPointCoordinates;
+    }
+
+    /**
+     * gets the names of the waypoints in the order of the coordinates.
+     *
+     * @return unmodifiable list, entries are null for waypoints without name
+     */
+    public List<String> getWayPointNames() {
+        return wayPointNames;
+    }
+
+// ------------------------ CANONICAL METHODS ------------------------
+
+    @Override
+    public String toString() {
+        return "TrackSnapshot{" +
+                "id=" + id +
+                ", name=" + name +
+                ", #trackPoints=" + trackColumns.size() +
+                ", #routePoints=" + routeCoordinates.size() +
+                ", #wayPoints=" + wayPointCoordinates.size() +
+                '}';
+    }
+
+// -------------------------- OTHER METHODS --------------------------
+
+    /**
+     * gets the trackpoint coordinates that are needed for a zoom level of the map.
+     *
+     * @param zoom
+     *         the zoom of the map
+     * @return new list with the coordinates
+     */
+    public List<Coordinate> trackCoordinates(double zoom) {
+        int[] indices = levelOfDetail.indicesForZoom(zoom);
+        List<Coordinate> coordinates = new ArrayList<>(indices.length);
+        // the indices are ascending, so the reader decodes each block of packed columns at most once
+        TrackColumns.Reader reader = trackColumns.reader();
+        for (int index : indices) {
+            coordinates.add(reader.coordinate(index));
+        }
+        return coordinates;
+    }
+}
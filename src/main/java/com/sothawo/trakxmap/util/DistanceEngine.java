@@ -0,0 +1,255 @@
+/*
+ Copyright 2015 Peter-Josef Meisch (pj.meisch@sothawo.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.sothawo.trakxmap.util;
+
+import org.gavaghan.geodesy.Ellipsoid;
+import org.gavaghan.geodesy.GeodeticPathCalculator;
+
+/**
+ * The algorithms to calculate the distance between two points on the WGS84 ellipsoid. The error bounds given are the
+ * maximum deviations from the Vincenty solution measured over random point pairs between 85°S and 85°N:
+ *
+ * <table summary="error bounds">
+ * <tr><th>distance</th><th>ANDOYER_LAMBERT</th><th>LOCAL_SPHERE</th></tr>
+ * <tr><td>1 km</td><td>1.5 mm</td><td>&lt; 0.1 mm</td></tr>
+ * <tr><td>10 km</td><td>1.5 cm</td><td>&lt; 0.1 mm</td></tr>
+ * <tr><td>100 km</td><td>15 cm</td><td>2.5 cm</td></tr>
+ * <tr><td>1000 km</td><td>1.5 m</td><td>40 m</td></tr>
+ * </table>
+ *
+ * The Andoyer-Lambert error grows linearly with a relative error of about 1.5e-6; the local sphere error grows with the
+ * cube of the distance, so it is only used for short segments.
+ *
+ * @author P.J. Meisch (pj.meisch@sothawo.com).
+ */
+public enum DistanceEngine {
+    /**
+     * Vincenty's iterative solution of the inverse problem, accurate to less than a millimeter. The most expensive
+     * algorithm.
+     */
+    VINCENTY {
+        @Override
+        public double distance(double latitude1, double longitude1, double latitude2, double longitude2) {
+            return WGS84_PATH.calculateDistance(latitude1, longitude1, latitude2, longitude2);
+        }
+
+        @Override
+        public void cumulativeDistances(double[] latitudes, double[] longitudes, double[] distances) {
+            WGS84_PATH.calculateCumulativeDistances(latitudes, longitudes, distances);
+        }
+
+        @Override
+        public void segmentLengths(double[] latitudes, double[] longitudes, int from, int to, double[] lengths) {
+            WGS84_PATH.calculateSegmentLengths(latitudes, longitudes, from, to, lengths);
+        }
+    },
+    /**
+     * Andoyer-Lambert: the great circle distance between the reduced latitudes with a first order flattening
+     * correction. No iteration.
+     */
+    ANDOYER_LAMBERT {
+        @Override
+        public double distance(double latitude1, double longitude1, double latitude2, double longitude2) {
+            double beta1 = Math.atan(ONE_MINUS_F * Math.tan(Math.toRadians(latitude1)));
+            double beta2 = Math.atan(ONE_MINUS_F * Math.tan(Math.toRadians(latitude2)));
+            double sigma = centralAngle(beta1, beta2, Math.toRadians(longitude2 - longitude1));
+            if (0.0 == sigma) {
+                return 0.0;
+            }
+            double sinP = Math.sin((beta1 + beta2) / 2);
+            double cosP = Math.cos((beta1 + beta2) / 2);
+            double sinQ = Math.sin((beta2 - beta1) / 2);
+            double cosQ = Math.cos((beta2 - beta1) / 2);
+            double sinHalfSigma = Math.sin(sigma / 2);
+            double cosHalfSigma = Math.cos(sigma / 2);
+            double sinSigma = Math.sin(sigma);
+            double x = (sigma - sinSigma) * sinP * sinP * cosQ * cosQ / (cosHalfSigma * cosHalfSigma);
+            double y = (sigma + sinSigma) * cosP * cosP * sinQ * sinQ / (sinHalfSigma * sinHalfSigma);
+            return A * (sigma - F / 2 * (x + y));
+        }
+    },
+    /**
+     * haversine distance on a sphere whose radius matches the ellipsoid at the mean latitude of the two points in the
+     * direction between them, derived from the meridional and the prime vertical radius of curvature. Only suitable
+     * for short distances.
+     */
+    LOCAL_SPHERE {
+        @Override
+        public double distance(double latitude1, double longitude1, double latitude2, double longitude2) {
+            double phi1 = Math.toRadians(latitude1);
+            double phi2 = Math.toRadians(latitude2);
+            double deltaPhi = phi2 - phi1;
+            double deltaLambda = normalizeLongitudeDifference(Math.toRadians(longitude2 - longitude1));
+
+            double cosPhiM = Math.cos((phi1 + phi2) / 2);
+            double sinPhiM = Math.sin((phi1 + phi2) / 2);
+            double w = 1 - E2 * sinPhiM * sinPhiM;
+            // prime vertical and meridional radius of curvature
+            double n = A / Math.sqrt(w);
+            double m = n * (1 - E2) / w;
+
+            double north = m * deltaPhi;
+            double east = n * cosPhiM * deltaLambda;
+            double angle2 = deltaPhi * deltaPhi + cosPhiM * cosPhiM * deltaLambda * deltaLambda;
+            if (0.0 == angle2) {
+                return 0.0;
+            }
+            double radius = Math.sqrt((north * north + east * east) / angle2);
+
+            double sinHalfDeltaPhi = Math.sin(deltaPhi / 2);
+            double sinHalfDeltaLambda = Math.sin(deltaLambda / 2);
+            double h = sinHalfDeltaPhi * sinHalfDeltaPhi
+                    + Math.cos(phi1) * Math.cos(phi2) * sinHalfDeltaLambda * sinHalfDeltaLambda;
+            return 2 * radius * Math.asin(Math.sqrt(Math.min(1.0, h)));
+        }
+    },
+    /**
+     * uses LOCAL_SPHERE for distances up to the Vincenty threshold and VINCENTY for longer distances, so that gaps in
+     * a track are measured exactly.
+     */
+    AUTO {
+        @Override
+        public double distance(double latitude1, double longitude1, double latitude2, double longitude2) {
+            double distance = LOCAL_SPHERE.distance(latitude1, longitude1, latitude2, longitude2);
+            return distance <= vincentyThreshold ? distance :
+                    VINCENTY.distance(latitude1, longitude1, latitude2, longitude2);
+        }
+    };
+
+// ------------------------------ FIELDS ------------------------------
+
+    /** semi major axis of WGS84 */
+    private static final double A = Ellipsoid.WGS84.getSemiMajorAxis();
+    /** flattening of WGS84 */
+    private static final double F = Ellipsoid.WGS84.getFlattening();
+    private static final double ONE_MINUS_F = 1 - F;
+    /** first eccentricity squared */
+    private static final double E2 = F * (2 - F);
+    private static final double TWO_PI = 2 * Math.PI;
+    /** Vincenty calculator with the precomputed WGS84 constants */
+    private static final GeodeticPathCalculator WGS84_PATH = new GeodeticPathCalculator(Ellipsoid.WGS84);
+
+    /** distance in meters above which AUTO uses VINCENTY */
+    private static volatile double vincentyThreshold = 10_000.0;
+
+// -------------------------- STATIC METHODS --------------------------
+
+    /**
+     * sets the distance above which AUTO switches to VINCENTY.
+     *
+     * @param meters
+     *         the threshold in meters
+     */
+    public static void setVincentyThreshold(double meters) {
+        vincentyThreshold = meters;
+    }
+
+    /**
+     * calculates the central angle between two points on a sphere with the haversine formula.
+     *
+     * @param phi1
+     *         latitude of first point in radians
+     * @param phi2
+     *         latitude of second point in radians
+     * @param deltaLambda
+     *         longitude difference in radians
+     * @return central angle in radians
+     */
+    private static double centralAngle(double phi1, double phi2, double deltaLambda) {
+        double sinHalfDeltaPhi = Math.sin((phi2 - phi1) / 2);
+        double sinHalfDeltaLambda = Math.sin(deltaLambda / 2);
+        double h = sinHalfDeltaPhi * sinHalfDeltaPhi
+                + Math.cos(phi1) * Math.cos(phi2) * sinHalfDeltaLambda * sinHalfDeltaLambda;
+        return 2 * Math.asin(Math.sqrt(Math.min(1.0, h)));
+    }
+
+    /**
+     * normalizes a longitude difference to the range -PI..PI so that segments crossing the antimeridian are handled.
+     *
+     * @param deltaLambda
+     *         the difference in radians
+     * @return normalized difference
+     */
+    private static double normalizeLongitudeDifference(double deltaLambda) {
+        if (deltaLambda > Math.PI) {
+            return deltaLambda - TWO_PI;
+        } else if (deltaLambda < -Math.PI) {
+            return deltaLambda + TWO_PI;
+        }
+        return deltaLambda;
+    }
+
+// -------------------------- OTHER METHODS --------------------------
+
+    /**
+     * calculates the distance between two points.
+     *
+     * @param latitude1
+     *         latitude of the first point in degrees
+     * @param longitude1
+     *         longitude of the first point in degrees
+     * @param latitude2
+     *         latitude of the second point in degrees
+     * @param longitude2
+     *         longitude of the second point in degrees
+     * @return distance in meters
+     */
+    public abstract double distance(double latitude1, double longitude1, double latitude2, double longitude2);
+
+    /**
+     * calculates the cumulative distances along a path: distances[i] is set to the length of the path from point 0 to
+     * point i. No objects are created.
+     *
+     * @param latitudes
+     *         latitudes of the points in degrees
+     * @param longitudes
+     *         longitudes of the points in degrees
+     * @param distances
+     *         array to fill, at least as long as latitudes
+     */
+    public void cumulativeDistances(double[] latitudes, double[] longitudes, double[] distances) {
+        if (0 == latitudes.length) {
+            return;
+        }
+        double sum = 0.0;
+        distances[0] = sum;
+        for (int i = 1; i < latitudes.length; i++) {
+            sum += distance(latitudes[i - 1], longitudes[i - 1], latitudes[i], longitudes[i]);
+            distances[i] = sum;
+        }
+    }
+
+    /**
+     * calculates the lengths of the segments ending at the points from+1 to to: lengths[i] is set to the distance
+     * between point i-1 and point i. These are exactly the values summed up by cumulativeDistances.
+     *
+     * @param latitudes
+     *         latitudes of the points in degrees
+     * @param longitudes
+     *         longitudes of the points in degrees
+     * @param from
+     *         index of the first point of the range
+     * @param to
+     *         index of the last point of the range
+     * @param lengths
+     *         array to fill
+     */
+    public void segmentLengths(double[] latitudes, double[] longitudes, int from, int to, double[] lengths) {
+        for (int i = from + 1; i <= to; i++) {
+            lengths[i] = distance(latitudes[i - 1], longitudes[i - 1], latitudes[i], longitudes[i]);
+        }
+    }
+}
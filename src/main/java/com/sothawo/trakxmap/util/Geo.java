@@ -17,12 +17,14 @@ package com.sothawo.trakxmap.util;
 
 import com.sothawo.trakxmap.db.Track;
 import com.sothawo.trakxmap.db.TrackPoint;
-import org.gavaghan.geodesy.Ellipsoid;
-import org.gavaghan.geodesy.GeodeticCalculator;
-import org.gavaghan.geodesy.GlobalCoordinates;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
 
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * Geo Utilities.
@@ -30,10 +32,41 @@ import java.util.Optional;
  * @author P.J.Meisch (pj.meisch@jaroso.de)
  */
 public final class Geo {
+// ------------------------------ FIELDS ------------------------------
+
+    private static final String CONF_DISTANCE_ENGINE = "distanceEngine";
+    private static final String CONF_VINCENTY_THRESHOLD = "vincentyThreshold";
+    private static final String CONF_PARALLEL_THRESHOLD = "parallelThreshold";
+    /** number of segments computed in one fork join task */
+    private static final int SEGMENTS_PER_TASK = 16_384;
+
+    /** the configured engine for the trackpoint distances */
+    private static final DistanceEngine distanceEngine;
+    /** number of trackpoints from which on the distances are computed in parallel */
+    private static final int parallelThreshold;
+
 // -------------------------- STATIC METHODS --------------------------
 
+    static {
+        Config config = ConfigFactory.load().getConfig(Geo.class.getCanonicalName());
+        distanceEngine = DistanceEngine.valueOf(config.getString(CONF_DISTANCE_ENGINE));
+        DistanceEngine.setVincentyThreshold(config.getDouble(CONF_VINCENTY_THRESHOLD));
+        parallelThreshold = config.getInt(CONF_PARALLEL_THRESHOLD);
+    }
+
     /**
-     * updates the distance information in the trackpoints of the track object.
+     * gets the configured engine for the trackpoint distances. Tracks whose distances were calculated with a different
+     * engine are recalculated when they are loaded, so that the statistics and totals of all tracks are comparable.
+     *
+     * @return the engine
+     */
+    public static DistanceEngine getDistanceEngine() {
+        return distanceEngine;
+    }
+
+    /**
+     * updates the distance information in the trackpoints of the track object with the configured distance engine.
+     * The distance of a trackpoint is the distance from the first trackpoint along the track.
      *
      * @param track
      *         Track object to update
@@ -41,23 +74,92 @@ public final class Geo {
      *         if track is empty
      */
     public static void updateTrackDistances(Track track) {
+        updateTrackDistances(track, distanceEngine);
+    }
+
+    /**
+     * updates the distance information in the trackpoints of the track object and records the engine in the track.
+     *
+     * @param track
+     *         Track object to update
+     * @param engine
+     *         the engine to calculate the distances between the trackpoints
+     * @throws java.lang.NullPointerException
+     *         if track or engine is empty
+     */
+    public static void updateTrackDistances(Track track, DistanceEngine engine) {
+        Objects.requireNonNull(engine);
         Optional.ofNullable(Objects.requireNonNull(track).getTrackPoints()).ifPresent(trackPoints -> {
-            GeodeticCalculator geoCalc = new GeodeticCalculator();
-            Double distance = 0.0;
-            GlobalCoordinates lastCoordinate = null;
-            for (TrackPoint trackPoint : trackPoints) {
-                trackPoint.setDistance(distance);
-                GlobalCoordinates thisCoordinate =
-                        new GlobalCoordinates(trackPoint.getLatitude(), trackPoint.getLongitude());
-                if (null != lastCoordinate) {
-                    distance += geoCalc.calculateGeodeticCurve(Ellipsoid.WGS84, lastCoordinate, thisCoordinate)
-                            .getEllipsoidalDistance();
-                }
-                lastCoordinate = thisCoordinate;
+            // the coordinates are copied once, the engines work on the primitive arrays
+            int count = trackPoints.size();
+            double[] latitudes = new double[count];
+            double[] longitudes = new double[count];
+            for (int i = 0; i < count; i++) {
+                TrackPoint trackPoint = trackPoints.get(i);
+                latitudes[i] = trackPoint.getLatitude();
+                longitudes[i] = trackPoint.getLongitude();
+            }
+            double[] distances = new double[count];
+            if (count >= parallelThreshold) {
+                cumulativeDistancesParallel(engine, latitudes, longitudes, distances);
+            } else {
+                engine.cumulativeDistances(latitudes, longitudes, distances);
             }
+            for (int i = 0; i < count; i++) {
+                trackPoints.get(i).setDistance(distances[i]);
+            }
+            track.setDistanceEngine(engine.name());
+            track.resetTrackColumns();
         });
     }
 
+    /**
+     * updates the geohash cells of the track from the trackpoints.
+     *
+     * @param track
+     *         Track object to update
+     * @throws java.lang.NullPointerException
+     *         if track is empty
+     */
+    public static void updateTrackCells(Track track) {
+        TrackColumns columns = Objects.requireNonNull(track).getTrackColumns();
+        // the collection may be a managed one, so it is updated and not replaced
+        Set<String> cells = track.getCells();
+        cells.clear();
+        cells.addAll(GeoHash.cellsOfPath(columns.getLatitudes(), columns.getLongitudes(), GeoHash.INDEX_PRECISION));
+    }
+
+    /**
+     * calculates the cumulative distances with the segment lengths computed in parallel chunks. The prefix sum is
+     * done serially afterwards: a parallel scan would add the values in a different order and by that change the
+     * rounding, but the results must be bit-identical to the serial calculation. The sum is cheap compared to the
+     * segment lengths.
+     *
+     * @param engine
+     *         the distance engine
+     * @param latitudes
+     *         latitudes of the points in degrees
+     * @param longitudes
+     *         longitudes of the points in degrees
+     * @param distances
+     *         array to fill with the cumulative distances
+     */
+    private static void cumulativeDistancesParallel(DistanceEngine engine, double[] latitudes, double[] longitudes,
+                                                    double[] distances) {
+        int count = latitudes.length;
+        if (0 == count) {
+            return;
+        }
+        ForkJoinPool.commonPool().invoke(new SegmentLengthsTask(engine, latitudes, longitudes, 0, count - 1,
+                distances));
+        double sum = 0.0;
+        distances[0] = sum;
+        for (int i = 1; i < count; i++) {
+            sum += distances[i];
+            distances[i] = sum;
+        }
+    }
+
 // --------------------------- CONSTRUCTORS ---------------------------
 
     /**
@@ -65,4 +167,42 @@ public final class Geo {
      */
     private Geo() {
     }
+
+// -------------------------- INNER CLASSES --------------------------
+
+    /**
+     * Fork join task computing the segment lengths for a range of points; ranges are split in halves until they are
+     * small enough. Neighbouring ranges share their boundary point.
+     */
+    private static class SegmentLengthsTask extends RecursiveAction {
+        private final DistanceEngine engine;
+        private final double[] latitudes;
+        private final double[] longitudes;
+        /** index of the first point */
+        private final int from;
+        /** index of the last point */
+        private final int to;
+        private final double[] lengths;
+
+        SegmentLengthsTask(DistanceEngine engine, double[] latitudes, double[] longitudes, int from, int to,
+                           double[] lengths) {
+            this.engine = engine;
+            this.latitudes = latitudes;
+            this.longitudes = longitudes;
+            this.from = from;
+            this.to = to;
+            this.lengths = lengths;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= SEGMENTS_PER_TASK) {
+                engine.segmentLengths(latitudes, longitudes, from, to, lengths);
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new SegmentLengthsTask(engine, latitudes, longitudes, from, middle, lengths),
+                        new SegmentLengthsTask(engine, latitudes, longitudes, middle, to, lengths));
+            }
+        }
+    }
 }
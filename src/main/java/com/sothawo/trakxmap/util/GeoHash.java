@@ -0,0 +1,382 @@
+/*
+ Copyright 2015 Peter-Josef Meisch (pj.meisch@sothawo.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.sothawo.trakxmap.util;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Geohash cells. A geohash of precision p divides the longitude range in 2^ceil(5p/2) and the latitude range in
+ * 2^floor(5p/2) equal parts; the hash interleaves the bits of the column and the row, starting with the longitude, and
+ * encodes them in base 32. A cell with a hash that is a prefix of another hash contains that cell, so a set of cells
+ * of mixed precision can describe an area with few cells.
+ *
+ * The lines between points are taken as straight lines in latitude and longitude like on the map, which for the short
+ * segments of a track is the same as the geodesic.
+ *
+ * @author P.J. Meisch (pj.meisch@sothawo.com).
+ */
+public final class GeoHash {
+// ------------------------------ FIELDS ------------------------------
+
+    /**
+     * the precision of the cells that are stored for the tracks. A cell of precision 6 is about 1.2 km by 0.6 km, a
+     * track of 100 km passes through about 150 of them.
+     */
+    public static final int INDEX_PRECISION = 6;
+    /** the maximum precision, the bits of the column and row must fit in a long */
+    public static final int MAX_PRECISION = 12;
+
+    private static final char[] BASE32 = "0123456789bcdefghjkmnpqrstuvwxyz".toCharArray();
+    private static final int[] BASE32_VALUES = new int[128];
+
+// -------------------------- STATIC METHODS --------------------------
+
+    static {
+        Arrays.fill(BASE32_VALUES, -1);
+        for (int i = 0; i < BASE32.length; i++) {
+            BASE32_VALUES[BASE32[i]] = i;
+        }
+    }
+
+    /**
+     * computes the geohash of a position.
+     *
+     * @param latitude
+     *         latitude in degrees
+     * @param longitude
+     *         longitude in degrees
+     * @param precision
+     *         number of characters of the hash, 1 to MAX_PRECISION
+     * @return the geohash
+     */
+    public static String encode(double latitude, double longitude, int precision) {
+        Grid grid = new Grid(precision);
+        return grid.hash(grid.column(longitude), grid.row(latitude));
+    }
+
+    /**
+     * computes the bounds of a cell.
+     *
+     * @param hash
+     *         the geohash
+     * @return {minLatitude, minLongitude, maxLatitude, maxLongitude} in degrees
+     * @throws java.lang.IllegalArgumentException
+     *         if the hash is empty, too long or contains invalid characters
+     */
+    public static double[] bounds(String hash) {
+        if (hash.isEmpty() || hash.length() > MAX_PRECISION) {
+            throw new IllegalArgumentException("invalid geohash length: " + hash);
+        }
+        long column = 0;
+        long row = 0;
+        int bit = 0;
+        for (int i = 0; i < hash.length(); i++) {
+            char c = hash.charAt(i);
+            int value = c < BASE32_VALUES.length ? BASE32_VALUES[c] : -1;
+            if (value < 0) {
+                throw new IllegalArgumentException("invalid geohash: " + hash);
+            }
+            for (int shift = 4; shift >= 0; shift--, bit++) {
+                long b = (value >> shift) & 1;
+                if (bit % 2 == 0) {
+                    column = (column << 1) | b;
+                } else {
+                    row = (row << 1) | b;
+                }
+            }
+        }
+        Grid grid = new Grid(hash.length());
+        return new double[]{row * grid.height - 90, column * grid.width - 180, (row + 1) * grid.height - 90,
+                (column + 1) * grid.width - 180};
+    }
+
+    /**
+     * normalizes a set of cells for a search in cells of a given precision: longer hashes are cut to the precision,
+     * cells that are contained in other cells of the set are dropped.
+     *
+     * @param cells
+     *         the geohash cells
+     * @param precision
+     *         the maximum precision
+     * @return the sorted normalized cells
+     */
+    public static SortedSet<String> normalize(Collection<String> cells, int precision) {
+        SortedSet<String> normalized = new TreeSet<>();
+        for (String cell : cells) {
+            normalized.add(cell.length() > precision ? cell.substring(0, precision) : cell);
+        }
+        // in the sorted set the cells contained in a cell directly follow that cell
+        SortedSet<String> result = new TreeSet<>();
+        String container = null;
+        for (String cell : normalized) {
+            if (null == container || !cell.startsWith(container)) {
+                result.add(cell);
+                container = cell;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * computes the cells a path passes through, including the cells that are only crossed by a line between two
+     * points.
+     *
+     * @param latitudes
+     *         latitudes of the points in degrees
+     * @param longitudes
+     *         longitudes of the points in degrees
+     * @param precision
+     *         precision of the cells
+     * @return the sorted geohashes of the cells
+     */
+    public static SortedSet<String> cellsOfPath(double[] latitudes, double[] longitudes, int precision) {
+        Grid grid = new Grid(precision);
+        SortedSet<String> cells = new TreeSet<>();
+        int count = latitudes.length;
+        if (1 == count) {
+            cells.add(grid.hash(grid.column(longitudes[0]), grid.row(latitudes[0])));
+        }
+        for (int i = 1; i < count; i++) {
+            double latitude0 = latitudes[i - 1];
+            double longitude0 = longitudes[i - 1];
+            double latitude1 = latitudes[i];
+            double longitude1 = longitudes[i];
+            double deltaLongitude = longitude1 - longitude0;
+            if (Math.abs(deltaLongitude) > 180) {
+                // the segment crosses the antimeridian, split it there
+                double edge = deltaLongitude > 0 ? -180 : 180;
+                double unwrapped = deltaLongitude > 0 ? longitude1 - 360 : longitude1 + 360;
+                double t = (edge - longitude0) / (unwrapped - longitude0);
+                double latitudeAtEdge = latitude0 + t * (latitude1 - latitude0);
+                grid.walk(latitude0, longitude0, latitudeAtEdge, edge, cells);
+                grid.walk(latitudeAtEdge, -edge, latitude1, longitude1, cells);
+            } else {
+                grid.walk(latitude0, longitude0, latitude1, longitude1, cells);
+            }
+        }
+        return cells;
+    }
+
+    /**
+     * computes a set of cells covering a polygon. Cells that are completely inside the polygon are returned with the
+     * lowest possible precision, cells on the border of the polygon with the given precision. The polygon must not
+     * cross the antimeridian.
+     *
+     * @param latitudes
+     *         latitudes of the polygon vertices in degrees
+     * @param longitudes
+     *         longitudes of the polygon vertices in degrees; the polygon is closed implicitly
+     * @param precision
+     *         precision of the cells on the border
+     * @return the sorted geohashes of the cells
+     */
+    public static SortedSet<String> coverPolygon(double[] latitudes, double[] longitudes, int precision) {
+        SortedSet<String> cells = new TreeSet<>();
+        if (latitudes.length < 3) {
+            return cells;
+        }
+        double[] box = {Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY,
+                Double.NEGATIVE_INFINITY};
+        for (int i = 0; i < latitudes.length; i++) {
+            box[0] = Math.min(box[0], latitudes[i]);
+            box[1] = Math.min(box[1], longitudes[i]);
+            box[2] = Math.max(box[2], latitudes[i]);
+            box[3] = Math.max(box[3], longitudes[i]);
+        }
+        for (char c : BASE32) {
+            cover(String.valueOf(c), latitudes, longitudes, box, precision, cells);
+        }
+        return cells;
+    }
+
+    /**
+     * adds the cell or its children intersecting the polygon to the cover.
+     */
+    private static void cover(String cell, double[] latitudes, double[] longitudes, double[] box, int precision,
+                              SortedSet<String> cells) {
+        double[] bounds = bounds(cell);
+        if (bounds[0] > box[2] || bounds[2] < box[0] || bounds[1] > box[3] || bounds[3] < box[1]) {
+            return;
+        }
+        int count = latitudes.length;
+        boolean border = false;
+        for (int i = 0; i < count && !border; i++) {
+            int j = (i + 1) % count;
+            border = segmentIntersectsBox(latitudes[i], longitudes[i], latitudes[j], longitudes[j], bounds);
+        }
+        if (!border) {
+            // the cell is either completely inside or completely outside
+            if (contains(latitudes, longitudes, (bounds[0] + bounds[2]) / 2, (bounds[1] + bounds[3]) / 2)) {
+                cells.add(cell);
+            }
+        } else if (cell.length() >= precision) {
+            cells.add(cell);
+        } else {
+            for (char c : BASE32) {
+                cover(cell + c, latitudes, longitudes, box, precision, cells);
+            }
+        }
+    }
+
+    /**
+     * checks with the Liang-Barsky clipping wether a line segment intersects a box.
+     *
+     * @param bounds
+     *         {minLatitude, minLongitude, maxLatitude, maxLongitude}
+     * @return true if any part of the segment is in the box
+     */
+    private static boolean segmentIntersectsBox(double latitude0, double longitude0, double latitude1,
+                                                double longitude1, double[] bounds) {
+        double dx = longitude1 - longitude0;
+        double dy = latitude1 - latitude0;
+        double[] p = {-dx, dx, -dy, dy};
+        double[] q = {longitude0 - bounds[1], bounds[3] - longitude0, latitude0 - bounds[0], bounds[2] - latitude0};
+        double t0 = 0.0;
+        double t1 = 1.0;
+        for (int i = 0; i < 4; i++) {
+            if (0.0 == p[i]) {
+                if (q[i] < 0) {
+                    return false;
+                }
+            } else {
+                double t = q[i] / p[i];
+                if (p[i] < 0) {
+                    t0 = Math.max(t0, t);
+                } else {
+                    t1 = Math.min(t1, t);
+                }
+                if (t0 > t1) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * checks with the even-odd rule wether a position is inside a polygon.
+     *
+     * @return true if the position is inside
+     */
+    public static boolean contains(double[] latitudes, double[] longitudes, double latitude, double longitude) {
+        boolean inside = false;
+        for (int i = 0, j = latitudes.length - 1; i < latitudes.length; j = i++) {
+            if ((latitudes[i] > latitude) != (latitudes[j] > latitude) &&
+                    longitude < (longitudes[j] - longitudes[i]) * (latitude - latitudes[i]) /
+                            (latitudes[j] - latitudes[i]) + longitudes[i]) {
+                inside = !inside;
+            }
+        }
+        return inside;
+    }
+
+// --------------------------- CONSTRUCTORS ---------------------------
+
+    /**
+     * private ctor, only utility functions.
+     */
+    private GeoHash() {
+    }
+
+// -------------------------- INNER CLASSES --------------------------
+
+    /**
+     * the grid of the cells of one precision with columns and rows counted from -180° and -90°.
+     */
+    private static final class Grid {
+        private final int precision;
+        private final long columns;
+        private final long rows;
+        /** cell width in degrees */
+        private final double width;
+        /** cell height in degrees */
+        private final double height;
+
+        Grid(int precision) {
+            if (precision < 1 || precision > MAX_PRECISION) {
+                throw new IllegalArgumentException("invalid geohash precision: " + precision);
+            }
+            this.precision = precision;
+            int bits = 5 * precision;
+            columns = 1L << ((bits + 1) / 2);
+            rows = 1L << (bits / 2);
+            width = 360.0 / columns;
+            height = 180.0 / rows;
+        }
+
+        long column(double longitude) {
+            return Math.max(0, Math.min(columns - 1, (long) Math.floor((longitude + 180) / width)));
+        }
+
+        long row(double latitude) {
+            return Math.max(0, Math.min(rows - 1, (long) Math.floor((latitude + 90) / height)));
+        }
+
+        String hash(long column, long row) {
+            char[] chars = new char[precision];
+            int columnBit = Long.numberOfTrailingZeros(columns) - 1;
+            int rowBit = Long.numberOfTrailingZeros(rows) - 1;
+            int bit = 0;
+            for (int i = 0; i < precision; i++) {
+                int value = 0;
+                for (int j = 0; j < 5; j++, bit++) {
+                    long b = bit % 2 == 0 ? (column >> columnBit--) & 1 : (row >> rowBit--) & 1;
+                    value = (value << 1) | (int) b;
+                }
+                chars[i] = BASE32[value];
+            }
+            return new String(chars);
+        }
+
+        /**
+         * adds the cells crossed by the straight line between two positions, traversing the grid cell by cell.
+         */
+        void walk(double latitude0, double longitude0, double latitude1, double longitude1, SortedSet<String> cells) {
+            double x0 = (longitude0 + 180) / width;
+            double y0 = (latitude0 + 90) / height;
+            double dx = (longitude1 + 180) / width - x0;
+            double dy = (latitude1 + 90) / height - y0;
+            long column = column(longitude0);
+            long row = row(latitude0);
+            long endColumn = column(longitude1);
+            long endRow = row(latitude1);
+            long stepColumn = dx > 0 ? 1 : -1;
+            long stepRow = dy > 0 ? 1 : -1;
+            // the line parameter at which the next column or row border is crossed
+            double tColumn = 0.0 == dx ? Double.POSITIVE_INFINITY :
+                    (dx > 0 ? column + 1 - x0 : x0 - column) / Math.abs(dx);
+            double tRow = 0.0 == dy ? Double.POSITIVE_INFINITY : (dy > 0 ? row + 1 - y0 : y0 - row) / Math.abs(dy);
+            double tDeltaColumn = 0.0 == dx ? Double.POSITIVE_INFINITY : 1 / Math.abs(dx);
+            double tDeltaRow = 0.0 == dy ? Double.POSITIVE_INFINITY : 1 / Math.abs(dy);
+
+            cells.add(hash(column, row));
+            long steps = Math.abs(endColumn - column) + Math.abs(endRow - row);
+            for (long i = 0; i < steps; i++) {
+                if ((tColumn < tRow && column != endColumn) || row == endRow) {
+                    column += stepColumn;
+                    tColumn += tDeltaColumn;
+                } else {
+                    row += stepRow;
+                    tRow += tDeltaRow;
+                }
+                cells.add(hash(column, row));
+            }
+        }
+    }
+}
@@ -60,14 +60,27 @@ public class I18N {
     public static final String TRACK_NAME_DEFAULT = "track.name.default";
     public static final String ERROR_LOADING_TRACK = "error.loading.track";
     public static final String ERROR_DELETING_TRACK = "error.deleting.track";
+    public static final String ERROR_STORING_TRACK = "error.storing.track";
+    public static final String ERROR_LOADING_ROLLUPS = "error.loading.rollups";
     public static final String ERROR_NO_TRACKLOADER_FOR_FILE = "error.no.trackloader.for.file";
     public static final String LOG_DB_UPDATE_NECESSARY = "log.db.update.necessary";
+    public static final String LOG_DB_SCHEMA_CURRENT = "log.db.schema.current";
     public static final String LOG_DB_UPDATE_ERROR = "log.db.update.error";
     public static final String LOG_DB_INIT_FINISHED = "log.db.init.finished";
     public static final String LOG_STOP_PROGRAM = "log.stop.program";
     public static final String LABEL_TRACKLISTCELL_DURATIONLENGTH = "label.tracklistcell.durationLength";
     public static final String LOG_DELETE_TRACK = "log.delete.track";
     public static final String ASK_DELETE_TRACK = "ask.delete.track";
+    public static final String LABEL_DB_MAINTENANCE = "label.db.maintenance";
+    public static final String TOOLTIP_DB_MAINTENANCE = "tooltip.db.maintenance";
+    public static final String INFO_DB_MAINTENANCE = "info.db.maintenance";
+    public static final String LABEL_TRACKPOINT_INFO = "label.trackpoint.info";
+    public static final String LABEL_FIND_DUPLICATES = "label.find.duplicates";
+    public static final String TOOLTIP_FIND_DUPLICATES = "tooltip.find.duplicates";
+    public static final String INFO_DUPLICATES = "info.duplicates";
+    public static final String LABEL_PROFILE_ELEVATION = "label.profile.elevation";
+    public static final String LABEL_PROFILE_SPEED = "label.profile.speed";
+    public static final String INFO_TRACKS_NEAR = "info.tracks.near";
 
     public static final String CONTEXT_MENU_DELETE_TRACK = "context.menu.delete.track";
     private static final Logger logger = LoggerFactory.getLogger(I18N.class);
@@ -0,0 +1,243 @@
+/*
+ Copyright 2015 Peter-Josef Meisch (pj.meisch@sothawo.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.sothawo.trakxmap.util;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+/**
+ * Level of detail pyramid for a line of points, built with the Douglas-Peucker algorithm. The points are projected to
+ * Web Mercator, the projection of the map tiles, so that a tolerance in pixels translates to the same tolerance in
+ * meters of the projection at every latitude.
+ *
+ * One run of Douglas-Peucker assigns every point its significance: the tolerance up to which the point is kept. The
+ * significance is capped at the significance of the point that caused the split, so the levels are nested and a level
+ * for a zoom is just the points with a significance not lower than the tolerance of that zoom. The index arrays for all
+ * zoom levels are computed in the constructor; zoom levels with the same points share the array.
+ *
+ * @author P.J. Meisch (pj.meisch@sothawo.com).
+ */
+public class LevelOfDetail {
+// ------------------------------ FIELDS ------------------------------
+
+    /** earth radius used by Web Mercator */
+    private static final double MERCATOR_RADIUS = 6378137.0;
+    /** Web Mercator meters per pixel at zoom 0 for 256 pixel tiles */
+    private static final double METERS_PER_PIXEL_ZOOM_0 = 2 * Math.PI * MERCATOR_RADIUS / 256;
+    /** maximum latitude of Web Mercator */
+    private static final double MAX_LATITUDE = 85.05112878;
+
+    /** the point indices for each zoom level, ascending */
+    private final int[][] levels;
+
+// --------------------------- CONSTRUCTORS ---------------------------
+
+    /**
+     * builds the pyramid for the trackpoints of a track. The columns are read once in order to project the points.
+     *
+     * @param columns
+     *         the trackpoint columns
+     * @param maxZoom
+     *         the highest zoom level
+     * @param tolerancePixels
+     *         the tolerance in pixels on the screen
+     */
+    public LevelOfDetail(TrackColumns columns, int maxZoom, double tolerancePixels) {
+        int size = columns.size();
+        TrackColumns.Reader reader = columns.reader();
+        double[] x = new double[size];
+        double[] y = new double[size];
+        for (int i = 0; i < size; i++) {
+            x[i] = mercatorX(reader.longitude(i));
+            y[i] = mercatorY(reader.latitude(i));
+        }
+        double[] significance = significance(x, y);
+        levels = new int[maxZoom + 1][];
+        int[] previous = null;
+        for (int zoom = 0; zoom <= maxZoom; zoom++) {
+            double tolerance = tolerancePixels * METERS_PER_PIXEL_ZOOM_0 / (1L << zoom);
+            int count = 0;
+            for (double s : significance) {
+                if (s >= tolerance) {
+                    count++;
+                }
+            }
+            if (null != previous && previous.length == count) {
+                // nested levels with the same size contain the same points
+                levels[zoom] = previous;
+            } else {
+                int[] indices = new int[count];
+                int n = 0;
+                for (int i = 0; i < significance.length; i++) {
+                    if (significance[i] >= tolerance) {
+                        indices[n++] = i;
+                    }
+                }
+                levels[zoom] = indices;
+                previous = indices;
+            }
+        }
+    }
+
+// -------------------------- STATIC METHODS --------------------------
+
+    /**
+     * the Web Mercator x coordinate of a longitude.
+     *
+     * @return x in meters
+     */
+    private static double mercatorX(double longitude) {
+        return MERCATOR_RADIUS * Math.toRadians(longitude);
+    }
+
+    /**
+     * the Web Mercator y coordinate of a latitude, latitudes beyond the limit of the projection are clamped.
+     *
+     * @return y in meters
+     */
+    private static double mercatorY(double latitude) {
+        double phi = Math.toRadians(Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, latitude)));
+        return MERCATOR_RADIUS * Math.log(Math.tan(Math.PI / 4 + phi / 2));
+    }
+
+    /**
+     * computes the Douglas-Peucker significance of the points in Web Mercator meters. The first and last points have
+     * infinite significance.
+     *
+     * @param x
+     *         the x coordinates of the points in Web Mercator meters
+     * @param y
+     *         the y coordinates of the points in Web Mercator meters
+     * @return the significance for each point
+     */
+    private static double[] significance(double[] x, double[] y) {
+        int count = x.length;
+        double[] significance = new double[count];
+        if (count == 0) {
+            return significance;
+        }
+        significance[0] = Double.POSITIVE_INFINITY;
+        significance[count - 1] = Double.POSITIVE_INFINITY;
+
+        // explicit stack of ranges {first, last} instead of recursion, tracks can have hundreds of thousands of points
+        Deque<int[]> ranges = new ArrayDeque<>();
+        ranges.push(new int[]{0, count - 1});
+        while (!ranges.isEmpty()) {
+            int[] range = ranges.pop();
+            int first = range[0];
+            int last = range[1];
+            if (last - first < 2) {
+                continue;
+            }
+            int index = first + 1;
+            double maxDistance = -1;
+            for (int i = first + 1; i < last; i++) {
+                double distance = segmentDistance(x[i], y[i], x[first], y[first], x[last], y[last]);
+                if (distance > maxDistance) {
+                    maxDistance = distance;
+                    index = i;
+                }
+            }
+            // one of the end points split the parent range, the other one is an ancestor with a higher significance
+            significance[index] = Math.min(maxDistance, Math.min(significance[first], significance[last]));
+            ranges.push(new int[]{first, index});
+            ranges.push(new int[]{index, last});
+        }
+        return significance;
+    }
+
+    /**
+     * distance of a point to a line segment in the plane.
+     *
+     * @return the distance
+     */
+    private static double segmentDistance(double px, double py, double ax, double ay, double bx, double by) {
+        double dx = bx - ax;
+        double dy = by - ay;
+        double length2 = dx * dx + dy * dy;
+        double t = 0.0 == length2 ? 0.0 : ((px - ax) * dx + (py - ay) * dy) / length2;
+        t = Math.max(0.0, Math.min(1.0, t));
+        double ex = px - (ax + t * dx);
+        double ey = py - (ay + t * dy);
+        return Math.sqrt(ex * ex + ey * ey);
+    }
+
+// -------------------------- OTHER METHODS --------------------------
+
+    /**
+     * gets the indices of the points for a zoom level.
+     *
+     * @param zoom
+     *         the zoom level, values out of range are clamped
+     * @return the point indices in ascending order; the array must not be modified
+     */
+    public int[] indicesForZoom(double zoom) {
+        return levels[levelIndex(zoom)];
+    }
+
+    /**
+     * the approximate number of bytes used by the point indices; levels that share their points are counted once.
+     *
+     * @return size in bytes
+     */
+    public long memorySize() {
+        long size = 0;
+        int[] previous = null;
+        for (int[] indices : levels) {
+            if (indices != previous) {
+                size += 4L * indices.length;
+                previous = indices;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * gets the number of the level for a zoom value. Different zoom values may be mapped to the same level, so this
+     * can be used to check wether the displayed points have to change.
+     *
+     * @param zoom
+     *         the zoom level
+     * @return the lowest integral zoom level that has the same points
+     */
+    public int levelForZoom(double zoom) {
+        int index = levelIndex(zoom);
+        int[] indices = levels[index];
+        while (index > 0 && levels[index - 1] == indices) {
+            index--;
+        }
+        return index;
+    }
+
+    /**
+     * clamps the zoom and rounds it up, so that fractional zooms get the finer level.
+     *
+     * @param zoom
+     *         the zoom
+     * @return index into levels
+     */
+    private int levelIndex(double zoom) {
+        return (int) Math.max(0, Math.min(levels.length - 1, Math.ceil(zoom)));
+    }
+
+    @Override
+    public String toString() {
+        return "LevelOfDetail{" +
+                "points per zoom=" + Arrays.toString(Arrays.stream(levels).mapToInt(l -> l.length).toArray()) +
+                '}';
+    }
+}
@@ -0,0 +1,393 @@
+/*
+ Copyright 2015 Peter-Josef Meisch (pj.meisch@sothawo.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.sothawo.trakxmap.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Store for the TrackColumns of tracks outside of the Java heap. The columns of each track are written to a file in
+ * the store directory which is then memory mapped, so the point values are held in the page cache of the operating
+ * system and do not add to the heap or to the work of the garbage collector. The files are kept when the application
+ * ends, on the next start the columns are read from the file when a track is first displayed (read-through cache).
+ *
+ * The mapped columns of a track stay open until they are released with {@link #release(long)} or {@link
+ * #remove(long)}, or the store is closed. {@link #remove(long)} deletes the file as well, this must be done when the
+ * track is deleted or its points change. The columns may still be in use in other threads, for example in a snapshot
+ * or a background search, and reading an unmapped buffer crashes the JVM; so the mappings that were handed out are
+ * never unmapped explicitly, they are unmapped when their buffers are garbage collected.
+ *
+ * As a mapped file cannot be replaced and in Windows not even deleted, new columns of a track are written to a new
+ * file with the next generation number of the track, the file of the previous generation is deleted. A file whose
+ * deletion failed because it was still mapped is deleted on the next start when the directory is read, only the file
+ * with the highest generation of a track is kept then.
+ *
+ * File format: a header with magic number, version and point count, followed by the latitude, longitude, elevation,
+ * distance and time columns, 8 bytes per value in little endian order. The file name is the track id followed by the
+ * generation.
+ *
+ * @author P.J. Meisch (pj.meisch@sothawo.com).
+ */
+public class OffHeapPointStore implements AutoCloseable {
+// ------------------------------ FIELDS ------------------------------
+
+    /** the Logger */
+    private final static Logger logger = LoggerFactory.getLogger(OffHeapPointStore.class);
+
+    private static final int MAGIC = 0x54585053;
+    private static final int VERSION = 1;
+    /** size of the header in bytes, keeps the columns 8 byte aligned */
+    private static final int HEADER_SIZE = 16;
+    private static final int COLUMNS = 5;
+    private static final String EXTENSION = ".points";
+
+    /** unmaps a buffer that was not handed out, does nothing if the JVM does not allow it */
+    private static final Consumer<MappedByteBuffer> unmapper = createUnmapper();
+
+    /** the directory with the files */
+    private final Path directory;
+    /** the open mappings by track id */
+    private final Map<Long, TrackColumns> open = new ConcurrentHashMap<>();
+    /** the generation of the current file of each track, null until the directory is read */
+    private Map<Long, Long> generations = null;
+
+// -------------------------- STATIC METHODS --------------------------
+
+    /**
+     * creates the function to unmap a buffer. From Java 9 on this is sun.misc.Unsafe.invokeCleaner(), in Java 8 the
+     * cleaner of the buffer is called. Both are accessed by reflection as they are not public API.
+     *
+     * @return the function
+     */
+    private static Consumer<MappedByteBuffer> createUnmapper() {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            Object unsafe = theUnsafe.get(null);
+            return buffer -> invoke(invokeCleaner, unsafe, buffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            logger.trace("no invokeCleaner, using the cleaner of the buffer", e);
+        }
+        try {
+            Method cleanerMethod = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+            Method cleanMethod = Class.forName("sun.misc.Cleaner").getMethod("clean");
+            return buffer -> {
+                Object cleaner = invoke(cleanerMethod, buffer);
+                if (null != cleaner) {
+                    invoke(cleanMethod, cleaner);
+                }
+            };
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            logger.warn("mapped files cannot be unmapped explicitly, they are unmapped by the garbage collector", e);
+        }
+        return buffer -> {
+        };
+    }
+
+    /**
+     * invokes a method, errors are logged.
+     *
+     * @return the result of the method, null on errors
+     */
+    private static Object invoke(Method method, Object target, Object... arguments) {
+        try {
+            return method.invoke(target, arguments);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            logger.warn("could not unmap a point store file", e);
+            return null;
+        }
+    }
+
+// --------------------------- CONSTRUCTORS ---------------------------
+
+    /**
+     * creates the store in the application's data directory.
+     */
+    public OffHeapPointStore() {
+        this(PathTools.getDatabaseDirectory().resolveSibling("points"));
+    }
+
+    /**
+     * creates the store.
+     *
+     * @param directory
+     *         the directory for the files, it is created if it does not exist
+     */
+    public OffHeapPointStore(Path directory) {
+        this.directory = directory;
+    }
+
+// ------------------------ INTERFACE METHODS ------------------------
+
+
+// --------------------- Interface AutoCloseable ---------------------
+
+    /**
+     * releases all open mappings, the files are kept.
+     */
+    @Override
+    public void close() {
+        open.clear();
+    }
+
+// -------------------------- OTHER METHODS --------------------------
+
+    /**
+     * gets the columns of a track. If they are not open, the file of the track is mapped.
+     *
+     * @param trackId
+     *         the id of the track
+     * @return the off-heap columns, empty if the track is not in the store
+     */
+    public Optional<TrackColumns> get(long trackId) {
+        TrackColumns columns = open.get(trackId);
+        Long generation = null == columns ? generations().get(trackId) : null;
+        if (null != generation) {
+            Path file = fileFor(trackId, generation);
+            if (Files.isRegularFile(file)) {
+                try {
+                    columns = map(file);
+                    open.put(trackId, columns);
+                } catch (IOException | IllegalArgumentException e) {
+                    logger.warn("invalid point store file {}", file, e);
+                    remove(trackId);
+                }
+            }
+        }
+        return Optional.ofNullable(columns);
+    }
+
+    /**
+     * writes the columns of a track to the store and maps them.
+     *
+     * @param trackId
+     *         the id of the track
+     * @param columns
+     *         the columns to store
+     * @return the off-heap columns, or the given columns if they could not be written
+     */
+    public TrackColumns put(long trackId, TrackColumns columns) {
+        Long previous;
+        long generation;
+        synchronized (this) {
+            previous = generations().get(trackId);
+            generation = null == previous ? 1 : previous + 1;
+            generations().put(trackId, generation);
+        }
+        Path file = fileFor(trackId, generation);
+        Path tempFile = null;
+        try {
+            int size = columns.size();
+            long fileSize = fileSize(size);
+            if (fileSize > Integer.MAX_VALUE) {
+                throw new IOException("too many points for one mapping: " + size);
+            }
+            Files.createDirectories(directory);
+            // write to a temporary file so that a crash does not leave a partial file
+            tempFile = Files.createTempFile(directory, trackId + "-", ".tmp");
+            try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE)) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+                try {
+                    buffer.order(ByteOrder.LITTLE_ENDIAN);
+                    buffer.putInt(MAGIC).putInt(VERSION).putInt(size).putInt(0);
+                    columns.copyTo(column(buffer, size, 0).asDoubleBuffer(),
+                            column(buffer, size, 1).asDoubleBuffer(), column(buffer, size, 2).asDoubleBuffer(),
+                            column(buffer, size, 3).asDoubleBuffer(), column(buffer, size, 4).asLongBuffer());
+                    buffer.force();
+                } finally {
+                    // the temporary file cannot be moved on Windows while it is mapped
+                    unmapper.accept(buffer);
+                }
+            }
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            TrackColumns mapped = map(file);
+            // the previous mapping is unmapped by the garbage collector when its columns are no longer used
+            open.put(trackId, mapped);
+            if (null != previous) {
+                delete(fileFor(trackId, previous));
+            }
+            return mapped;
+        } catch (IOException | IllegalArgumentException e) {
+            logger.warn("could not write point store file {}", file, e);
+            return columns;
+        } finally {
+            if (null != tempFile) {
+                try {
+                    // does nothing when the file was moved
+                    Files.deleteIfExists(tempFile);
+                } catch (IOException e) {
+                    logger.warn("could not delete temporary point store file {}", tempFile, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * releases the mapping of a track, the file is kept. The mapping is unmapped when the columns are garbage
+     * collected.
+     *
+     * @param trackId
+     *         the id of the track
+     */
+    public void release(long trackId) {
+        open.remove(trackId);
+    }
+
+    /**
+     * releases the mapping of a track and deletes its file.
+     *
+     * @param trackId
+     *         the id of the track
+     */
+    public void remove(long trackId) {
+        open.remove(trackId);
+        Long generation = generations().remove(trackId);
+        if (null != generation) {
+            delete(fileFor(trackId, generation));
+        }
+    }
+
+    /**
+     * the number of tracks with open mappings.
+     *
+     * @return count
+     */
+    public int openCount() {
+        return open.size();
+    }
+
+    /**
+     * gets the generations of the track files, on the first call the directory is read. When there are several files
+     * for a track, the ones with the lower generations are deleted.
+     *
+     * @return the generation of the current file by track id
+     */
+    private synchronized Map<Long, Long> generations() {
+        if (null == generations) {
+            generations = new ConcurrentHashMap<>();
+            if (Files.isDirectory(directory)) {
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + EXTENSION)) {
+                    for (Path file : files) {
+                        String name = file.getFileName().toString();
+                        String[] parts = name.substring(0, name.length() - EXTENSION.length()).split("\\.");
+                        try {
+                            long trackId = Long.parseLong(parts[0]);
+                            long generation = parts.length > 1 ? Long.parseLong(parts[1]) : 0;
+                            Long other = generations.get(trackId);
+                            if (null == other || other < generation) {
+                                generations.put(trackId, generation);
+                                if (null != other) {
+                                    delete(fileFor(trackId, other));
+                                }
+                            } else {
+                                delete(file);
+                            }
+                        } catch (NumberFormatException e) {
+                            logger.warn("unknown file {} in the point store", file);
+                        }
+                    }
+                } catch (IOException e) {
+                    logger.warn("could not read the point store directory {}", directory, e);
+                }
+            }
+        }
+        return generations;
+    }
+
+    /**
+     * deletes a file, errors are logged.
+     */
+    private static void delete(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            logger.warn("could not delete point store file {}, it is deleted on the next start", file, e);
+        }
+    }
+
+    /**
+     * maps a file read only.
+     */
+    private TrackColumns map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            if (fileSize < HEADER_SIZE) {
+                throw new IOException("file too short");
+            }
+            // the mapping stays valid after the channel is closed
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            int magic = buffer.getInt();
+            int version = buffer.getInt();
+            int size = buffer.getInt();
+            if (MAGIC != magic || VERSION != version || size < 0 || fileSize(size) != fileSize) {
+                unmapper.accept(buffer);
+                throw new IOException("wrong header");
+            }
+            return new TrackColumns(column(buffer, size, 0).asDoubleBuffer(), column(buffer, size, 1).asDoubleBuffer(),
+                    column(buffer, size, 2).asDoubleBuffer(), column(buffer, size, 3).asDoubleBuffer(),
+                    column(buffer, size, 4).asLongBuffer());
+        }
+    }
+
+    /**
+     * gets the part of the file buffer with one column. The offsets are computed as long values, so that a large point
+     * count does not overflow into a wrong position.
+     *
+     * @throws IOException
+     *         if the column does not fit into the buffer
+     */
+    private static ByteBuffer column(ByteBuffer buffer, int size, int column) throws IOException {
+        long start = HEADER_SIZE + (long) column * size * 8;
+        long end = start + (long) size * 8;
+        if (end > buffer.capacity()) {
+            throw new IOException("column " + column + " exceeds the buffer");
+        }
+        ByteBuffer slice = buffer.duplicate();
+        slice.position((int) start);
+        slice.limit((int) end);
+        return slice.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static long fileSize(int size) {
+        return HEADER_SIZE + (long) COLUMNS * size * 8;
+    }
+
+    private Path fileFor(long trackId, long generation) {
+        // generation 0 is the file name without generation of the first version of the store
+        return directory.resolve(0 == generation ? trackId + EXTENSION : trackId + "." + generation + EXTENSION);
+    }
+}
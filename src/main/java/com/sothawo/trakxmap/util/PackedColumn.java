@@ -0,0 +1,234 @@
+/*
+ Copyright 2015 Peter-Josef Meisch (pj.meisch@sothawo.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.sothawo.trakxmap.util;
+
+import java.util.Arrays;
+
+/**
+ * A column of long values compressed in fixed size blocks. Each block stores its first value as base and the
+ * differences between consecutive values as shorts, so a value takes 2 bytes instead of 8. A block in which a
+ * difference does not fit into a short is stored uncompressed. The values of the trackpoints are quantized before they
+ * are packed (see TrackColumns.pack()), neighbouring points then mostly differ by small amounts.
+ *
+ * Sequential decoding adds up the differences; random access starts at the base of the block and needs at most
+ * BLOCK_SIZE - 1 additions. A {@link Cursor} continues from the value it read last, so reading ascending indices
+ * takes one addition per value.
+ *
+ * @author P.J. Meisch (pj.meisch@sothawo.com).
+ */
+final class PackedColumn {
+// ------------------------------ FIELDS ------------------------------
+
+    /** the marker for a missing value */
+    static final long MISSING = Long.MIN_VALUE;
+
+    /** number of values in a block, a power of 2 */
+    private static final int BLOCK_SHIFT = 6;
+    private static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+    private static final int BLOCK_MASK = BLOCK_SIZE - 1;
+
+    /** number of values */
+    private final int size;
+    /** the first value of each block */
+    private final long[] bases;
+    /** difference of each value to its predecessor, 0 for the first value of a block */
+    private final short[] deltas;
+    /** offset of an uncompressed block in wideValues, -1 for compressed blocks */
+    private final int[] wideOffsets;
+    /** the values of the uncompressed blocks */
+    private final long[] wideValues;
+
+// --------------------------- CONSTRUCTORS ---------------------------
+
+    private PackedColumn(int size, long[] bases, short[] deltas, int[] wideOffsets, long[] wideValues) {
+        this.size = size;
+        this.bases = bases;
+        this.deltas = deltas;
+        this.wideOffsets = wideOffsets;
+        this.wideValues = wideValues;
+    }
+
+// -------------------------- STATIC METHODS --------------------------
+
+    /**
+     * packs values.
+     *
+     * @param values
+     *         the values, MISSING for missing values
+     * @return the packed column
+     */
+    static PackedColumn of(long[] values) {
+        int size = values.length;
+        int blocks = (size + BLOCK_MASK) >>> BLOCK_SHIFT;
+        long[] bases = new long[blocks];
+        short[] deltas = new short[size];
+        int[] wideOffsets = new int[blocks];
+        long[] wideValues = new long[0];
+        int wideSize = 0;
+        for (int block = 0; block < blocks; block++) {
+            int from = block << BLOCK_SHIFT;
+            int to = Math.min(from + BLOCK_SIZE, size);
+            bases[block] = values[from];
+            boolean compressed = true;
+            for (int i = from + 1; i < to && compressed; i++) {
+                long previous = values[i - 1];
+                long value = values[i];
+                if (MISSING == previous || MISSING == value) {
+                    // a run of missing values is compressed, a change from or to a missing value is not
+                    compressed = previous == value;
+                } else {
+                    long delta = value - previous;
+                    compressed = delta >= Short.MIN_VALUE && delta <= Short.MAX_VALUE;
+                }
+                deltas[i] = compressed ? (short) (value - previous) : 0;
+            }
+            if (compressed) {
+                wideOffsets[block] = -1;
+            } else {
+                Arrays.fill(deltas, from, to, (short) 0);
+                if (wideSize + BLOCK_SIZE > wideValues.length) {
+                    wideValues = Arrays.copyOf(wideValues, Math.max(wideValues.length * 2, BLOCK_SIZE * 4));
+                }
+                System.arraycopy(values, from, wideValues, wideSize, to - from);
+                wideOffsets[block] = wideSize;
+                wideSize += BLOCK_SIZE;
+            }
+        }
+        return new PackedColumn(size, bases, deltas, wideOffsets, Arrays.copyOf(wideValues, wideSize));
+    }
+
+// -------------------------- OTHER METHODS --------------------------
+
+    /**
+     * creates a cursor for reading values of this column.
+     *
+     * @return new Cursor
+     */
+    Cursor cursor() {
+        return new Cursor();
+    }
+
+    /**
+     * decodes all values.
+     *
+     * @return new array with the values
+     */
+    long[] decode() {
+        long[] values = new long[size];
+        for (int block = 0; block < bases.length; block++) {
+            int from = block << BLOCK_SHIFT;
+            int to = Math.min(from + BLOCK_SIZE, size);
+            int wideOffset = wideOffsets[block];
+            if (wideOffset >= 0) {
+                System.arraycopy(wideValues, wideOffset, values, from, to - from);
+            } else {
+                long value = bases[block];
+                values[from] = value;
+                for (int i = from + 1; i < to; i++) {
+                    value += deltas[i];
+                    values[i] = value;
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * gets a single value.
+     *
+     * @param index
+     *         index of the value
+     * @return the value
+     */
+    long get(int index) {
+        checkIndex(index);
+        int block = index >>> BLOCK_SHIFT;
+        int wideOffset = wideOffsets[block];
+        if (wideOffset >= 0) {
+            return wideValues[wideOffset + (index & BLOCK_MASK)];
+        }
+        long value = bases[block];
+        for (int i = (block << BLOCK_SHIFT) + 1; i <= index; i++) {
+            value += deltas[i];
+        }
+        return value;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("index: " + index + ", size: " + size);
+        }
+    }
+
+    /**
+     * the approximate number of bytes used by the arrays of this column.
+     *
+     * @return size in bytes
+     */
+    long memorySize() {
+        return 8L * bases.length + 2L * deltas.length + 4L * wideOffsets.length + 8L * wideValues.length;
+    }
+
+    /**
+     * the number of values.
+     *
+     * @return size
+     */
+    int size() {
+        return size;
+    }
+
+// -------------------------- INNER CLASSES --------------------------
+
+    /**
+     * Reads values of the column and keeps the position of the last value read from a compressed block. A value
+     * after it in the same block is decoded from there, any other value from the base of its block. A cursor is not
+     * thread safe.
+     */
+    final class Cursor {
+        /** the index of the last value read from a compressed block, -1 if there is none */
+        private int index = -1;
+        /** the value at index */
+        private long value;
+
+        private Cursor() {
+        }
+
+        /**
+         * gets a single value.
+         *
+         * @param index
+         *         index of the value
+         * @return the value
+         */
+        long get(int index) {
+            checkIndex(index);
+            int block = index >>> BLOCK_SHIFT;
+            int wideOffset = wideOffsets[block];
+            if (wideOffset >= 0) {
+                return wideValues[wideOffset + (index & BLOCK_MASK)];
+            }
+            if (this.index < 0 || this.index > index || (this.index >>> BLOCK_SHIFT) != block) {
+                this.index = block << BLOCK_SHIFT;
+                value = bases[block];
+            }
+            while (this.index < index) {
+                value += deltas[++this.index];
+            }
+            return value;
+        }
+    }
+}
@@ -77,6 +77,15 @@ public final class PathTools {
         return Paths.get(dir);
     }
 
+    /**
+     * gets the H2 database file.
+     *
+     * @return file Path
+     */
+    public static Path getDatabaseFile() {
+        return getDatabaseDirectory().resolve("trakxmap-db.mv.db");
+    }
+
     /**
      * returns the filanem part from a filename with path.
      *
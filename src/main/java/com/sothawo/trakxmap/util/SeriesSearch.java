@@ -0,0 +1,114 @@
+/*
+ Copyright 2015 Peter-Josef Meisch (pj.meisch@sothawo.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.sothawo.trakxmap.util;
+
+import java.util.function.IntToDoubleFunction;
+
+/**
+ * Searches in an ascending series of values, for example the distances of the trackpoints. The profile view uses it
+ * to find the shown part of the series and the point under the mouse, the trackpoint index to find the point at a
+ * distance. The values are read with a function of the point index, for example from a reader of the trackpoint
+ * columns, so they need not be copied into an array.
+ *
+ * @author P.J. Meisch (pj.meisch@sothawo.com).
+ */
+public final class SeriesSearch {
+// -------------------------- STATIC METHODS --------------------------
+
+    /**
+     * searches a value in an ascending series like Arrays.binarySearch().
+     *
+     * @param xs
+     *         the x values by index, ascending
+     * @param size
+     *         the number of values
+     * @param x
+     *         the value to search
+     * @return the index of the value if it is found, otherwise (-(insertion point) - 1)
+     */
+    public static int binarySearch(IntToDoubleFunction xs, int size, double x) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            double value = xs.applyAsDouble(middle);
+            if (value < x) {
+                low = middle + 1;
+            } else if (value > x) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -(low + 1);
+    }
+
+    /**
+     * finds the index of the point of an ascending series whose x value is nearest to a value.
+     *
+     * @param xs
+     *         the x values by index, ascending
+     * @param size
+     *         the number of values, must be greater than 0
+     * @param x
+     *         the value
+     * @return the index of the nearest point
+     */
+    public static int nearest(IntToDoubleFunction xs, int size, double x) {
+        int position = binarySearch(xs, size, x);
+        if (position >= 0) {
+            return position;
+        }
+        int insertion = -position - 1;
+        if (insertion == 0) {
+            return 0;
+        }
+        if (insertion == size) {
+            return size - 1;
+        }
+        return x - xs.applyAsDouble(insertion - 1) <= xs.applyAsDouble(insertion) - x ? insertion - 1 : insertion;
+    }
+
+    /**
+     * finds the part of an ascending series that covers a range of x values. The part includes the points just
+     * outside of the range, so that a line drawn from it reaches the borders.
+     *
+     * @param xs
+     *         the x values by index, ascending
+     * @param size
+     *         the number of values
+     * @param lower
+     *         lower bound of the range
+     * @param upper
+     *         upper bound of the range
+     * @return array with the first index, inclusive, and the last index, exclusive
+     */
+    public static int[] range(IntToDoubleFunction xs, int size, double lower, double upper) {
+        int from = binarySearch(xs, size, lower);
+        from = from < 0 ? Math.max(0, -from - 2) : from;
+        int to = binarySearch(xs, size, upper);
+        to = to < 0 ? Math.min(size, -to) : to + 1;
+        return new int[]{from, Math.max(from, to)};
+    }
+
+// --------------------------- CONSTRUCTORS ---------------------------
+
+    /**
+     * private ctor, only utility functions.
+     */
+    private SeriesSearch() {
+    }
+}
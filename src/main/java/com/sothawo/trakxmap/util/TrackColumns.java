@@ -0,0 +1,456 @@
+/*
+ Copyright 2015 Peter-Josef Meisch (pj.meisch@sothawo.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.sothawo.trakxmap.util;
+
+import com.sothawo.mapjfx.Coordinate;
+import com.sothawo.trakxmap.db.TrackPoint;
+
+import java.nio.DoubleBuffer;
+import java.nio.LongBuffer;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The trackpoints of a track as columns of primitive values, one buffer per value, which take 40 bytes per point. The
+ * display code iterates over these columns instead of the TrackPoint entities. Missing elevations and distances are
+ * NaN, missing times are TrackStatistics.NO_TIME; the times are milliseconds as returned by TrackStatistics.toMillis().
+ *
+ * The columns are either arrays on the heap, buffers outside of the heap from the {@link OffHeapPointStore} or packed
+ * columns on the heap (see {@link #pack()}); a track keeps only packed or off-heap columns. The display code reads the
+ * values with a {@link Reader}, which decodes packed columns block by block. The array getters return the backing
+ * arrays of heap columns and decoded copies of the other columns, they are meant for computations that need all
+ * values once and the arrays must not be modified. Instances are immutable and may be used from any thread.
+ *
+ * @author P.J. Meisch (pj.meisch@sothawo.com).
+ */
+public final class TrackColumns {
+// ------------------------------ FIELDS ------------------------------
+
+    /** factor for quantizing coordinates to 1e-7 degrees, about 1 cm, the precision of GPS devices */
+    private static final double DEGREE_SCALE = 1e7;
+    /** factor for quantizing elevations and distances to centimeters */
+    private static final double METER_SCALE = 100;
+
+    /** latitudes in degrees, null for packed columns */
+    private final DoubleBuffer latitudes;
+    /** longitudes in degrees */
+    private final DoubleBuffer longitudes;
+    /** elevations in meters */
+    private final DoubleBuffer elevations;
+    /** distances from the start of the track in meters */
+    private final DoubleBuffer distances;
+    /** times in milliseconds */
+    private final LongBuffer times;
+
+    /** the packed columns, null for columns in buffers */
+    private final PackedColumn packedLatitudes;
+    private final PackedColumn packedLongitudes;
+    private final PackedColumn packedElevations;
+    private final PackedColumn packedDistances;
+    private final PackedColumn packedTimes;
+
+// --------------------------- CONSTRUCTORS ---------------------------
+
+    /**
+     * creates the columns from arrays of the same length, the arrays are not copied.
+     */
+    public TrackColumns(double[] latitudes, double[] longitudes, double[] elevations, double[] distances,
+                        long[] times) {
+        this(DoubleBuffer.wrap(latitudes), DoubleBuffer.wrap(longitudes), DoubleBuffer.wrap(elevations),
+                DoubleBuffer.wrap(distances), LongBuffer.wrap(times));
+    }
+
+    /**
+     * creates the columns from buffers with the same number of remaining values, the buffers are not copied.
+     */
+    public TrackColumns(DoubleBuffer latitudes, DoubleBuffer longitudes, DoubleBuffer elevations,
+                        DoubleBuffer distances, LongBuffer times) {
+        int size = latitudes.remaining();
+        if (longitudes.remaining() != size || elevations.remaining() != size || distances.remaining() != size ||
+                times.remaining() != size) {
+            throw new IllegalArgumentException("columns must have the same length");
+        }
+        this.latitudes = latitudes.slice();
+        this.longitudes = longitudes.slice();
+        this.elevations = elevations.slice();
+        this.distances = distances.slice();
+        this.times = times.slice();
+        this.packedLatitudes = null;
+        this.packedLongitudes = null;
+        this.packedElevations = null;
+        this.packedDistances = null;
+        this.packedTimes = null;
+    }
+
+    private TrackColumns(PackedColumn latitudes, PackedColumn longitudes, PackedColumn elevations,
+                         PackedColumn distances, PackedColumn times) {
+        this.latitudes = null;
+        this.longitudes = null;
+        this.elevations = null;
+        this.distances = null;
+        this.times = null;
+        this.packedLatitudes = latitudes;
+        this.packedLongitudes = longitudes;
+        this.packedElevations = elevations;
+        this.packedDistances = distances;
+        this.packedTimes = times;
+    }
+
+// -------------------------- STATIC METHODS --------------------------
+
+    /**
+     * copies the values of trackpoints into columns.
+     *
+     * @param trackPoints
+     *         the trackpoints
+     * @return the columns
+     */
+    public static TrackColumns of(List<TrackPoint> trackPoints) {
+        int size = trackPoints.size();
+        double[] latitudes = new double[size];
+        double[] longitudes = new double[size];
+        double[] elevations = new double[size];
+        double[] distances = new double[size];
+        long[] times = new long[size];
+        for (int i = 0; i < size; i++) {
+            TrackPoint trackPoint = trackPoints.get(i);
+            latitudes[i] = trackPoint.getLatitude();
+            longitudes[i] = trackPoint.getLongitude();
+            Double elevation = trackPoint.getElevation();
+            elevations[i] = null == elevation ? Double.NaN : elevation;
+            Double distance = trackPoint.getDistance();
+            distances[i] = null == distance ? Double.NaN : distance;
+            times[i] = TrackStatistics.toMillis(trackPoint.getTimestamp());
+        }
+        return new TrackColumns(latitudes, longitudes, elevations, distances, times);
+    }
+
+    /**
+     * gets the values of a buffer or a packed column as array.
+     */
+    private static double[] toArray(DoubleBuffer buffer, PackedColumn packed, double scale) {
+        if (null == buffer) {
+            long[] quantized = packed.decode();
+            double[] values = new double[quantized.length];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = unquantize(quantized[i], scale);
+            }
+            return values;
+        }
+        if (buffer.hasArray() && 0 == buffer.arrayOffset() && buffer.array().length == buffer.capacity()) {
+            return buffer.array();
+        }
+        double[] values = new double[buffer.capacity()];
+        buffer.duplicate().get(values);
+        return values;
+    }
+
+    private static long[] quantize(double[] values, double scale) {
+        long[] quantized = new long[values.length];
+        for (int i = 0; i < values.length; i++) {
+            quantized[i] = Double.isNaN(values[i]) ? PackedColumn.MISSING : Math.round(values[i] * scale);
+        }
+        return quantized;
+    }
+
+    private static double unquantize(long value, double scale) {
+        return PackedColumn.MISSING == value ? Double.NaN : value / scale;
+    }
+
+// --------------------- GETTER / SETTER METHODS ---------------------
+
+    public double[] getDistances() {
+        return toArray(distances, packedDistances, METER_SCALE);
+    }
+
+    public double[] getElevations() {
+        return toArray(elevations, packedElevations, METER_SCALE);
+    }
+
+    public double[] getLatitudes() {
+        return toArray(latitudes, packedLatitudes, DEGREE_SCALE);
+    }
+
+    public double[] getLongitudes() {
+        return toArray(longitudes, packedLongitudes, DEGREE_SCALE);
+    }
+
+    public long[] getTimes() {
+        if (null == times) {
+            return packedTimes.decode();
+        }
+        if (times.hasArray() && 0 == times.arrayOffset() && times.array().length == times.capacity()) {
+            return times.array();
+        }
+        long[] values = new long[times.capacity()];
+        times.duplicate().get(values);
+        return values;
+    }
+
+// -------------------------- OTHER METHODS --------------------------
+
+    /**
+     * creates the Coordinate of a point.
+     *
+     * @param index
+     *         index of the point
+     * @return new Coordinate
+     */
+    public Coordinate coordinate(int index) {
+        return new Coordinate(latitude(index), longitude(index));
+    }
+
+    public double distance(int index) {
+        return null != distances ? distances.get(index) : unquantize(packedDistances.get(index), METER_SCALE);
+    }
+
+    public double elevation(int index) {
+        return null != elevations ? elevations.get(index) : unquantize(packedElevations.get(index), METER_SCALE);
+    }
+
+    /**
+     * checks if the columns are stored outside of the heap.
+     *
+     * @return true for off-heap columns
+     */
+    public boolean isDirect() {
+        return null != latitudes && latitudes.isDirect();
+    }
+
+    /**
+     * checks if the columns are packed.
+     *
+     * @return true for packed columns
+     */
+    public boolean isPacked() {
+        return null == latitudes;
+    }
+
+    public double latitude(int index) {
+        return null != latitudes ? latitudes.get(index) : unquantize(packedLatitudes.get(index), DEGREE_SCALE);
+    }
+
+    public double longitude(int index) {
+        return null != longitudes ? longitudes.get(index) : unquantize(packedLongitudes.get(index), DEGREE_SCALE);
+    }
+
+    /**
+     * the approximate number of bytes used on the heap by the values of heap or packed columns.
+     *
+     * @return size in bytes, 0 for off-heap columns
+     */
+    public long memorySize() {
+        if (isPacked()) {
+            return packedLatitudes.memorySize() + packedLongitudes.memorySize() + packedElevations.memorySize() +
+                    packedDistances.memorySize() + packedTimes.memorySize();
+        }
+        return isDirect() ? 0 : 40L * size();
+    }
+
+    /**
+     * packs the columns into blocks of small differences, this takes about a quarter of the memory of the heap
+     * columns. The coordinates are quantized to 1e-7 degrees, elevations and distances to centimeters, the times keep
+     * their milliseconds.
+     *
+     * @return packed columns, this object if it is already packed
+     */
+    public TrackColumns pack() {
+        if (isPacked()) {
+            return this;
+        }
+        return new TrackColumns(PackedColumn.of(quantize(getLatitudes(), DEGREE_SCALE)),
+                PackedColumn.of(quantize(getLongitudes(), DEGREE_SCALE)),
+                PackedColumn.of(quantize(getElevations(), METER_SCALE)),
+                PackedColumn.of(quantize(getDistances(), METER_SCALE)), PackedColumn.of(getTimes()));
+    }
+
+    /**
+     * creates a reader for the values of the columns.
+     *
+     * @return new Reader
+     */
+    public Reader reader() {
+        return new Reader();
+    }
+
+    /**
+     * the number of points.
+     *
+     * @return size
+     */
+    public int size() {
+        return null != latitudes ? latitudes.capacity() : packedLatitudes.size();
+    }
+
+    public long time(int index) {
+        return null != times ? times.get(index) : packedTimes.get(index);
+    }
+
+    /**
+     * writes the column values one column after the other.
+     *
+     * @param latitudes
+     *         target for the latitudes
+     * @param longitudes
+     *         target for the longitudes
+     * @param elevations
+     *         target for the elevations
+     * @param distances
+     *         target for the distances
+     * @param times
+     *         target for the times
+     */
+    public void copyTo(DoubleBuffer latitudes, DoubleBuffer longitudes, DoubleBuffer elevations,
+                       DoubleBuffer distances, LongBuffer times) {
+        if (isPacked()) {
+            latitudes.put(getLatitudes());
+            longitudes.put(getLongitudes());
+            elevations.put(getElevations());
+            distances.put(getDistances());
+            times.put(getTimes());
+        } else {
+            latitudes.put(this.latitudes.duplicate());
+            longitudes.put(this.longitudes.duplicate());
+            elevations.put(this.elevations.duplicate());
+            distances.put(this.distances.duplicate());
+            times.put(this.times.duplicate());
+        }
+    }
+
+// -------------------------- INNER CLASSES --------------------------
+
+    /**
+     * Reads the values of the columns by index. For packed columns the reader continues decoding from the value it
+     * read last in each column, so reading ascending indices costs one addition per value and random access at most
+     * one block. A reader is not thread safe, each thread must use its own.
+     */
+    public final class Reader {
+        private final PackedColumn.Cursor latitudeCursor;
+        private final PackedColumn.Cursor longitudeCursor;
+        private final PackedColumn.Cursor elevationCursor;
+        private final PackedColumn.Cursor distanceCursor;
+        private final PackedColumn.Cursor timeCursor;
+
+        private Reader() {
+            boolean packed = isPacked();
+            latitudeCursor = packed ? packedLatitudes.cursor() : null;
+            longitudeCursor = packed ? packedLongitudes.cursor() : null;
+            elevationCursor = packed ? packedElevations.cursor() : null;
+            distanceCursor = packed ? packedDistances.cursor() : null;
+            timeCursor = packed ? packedTimes.cursor() : null;
+        }
+
+        /**
+         * creates the Coordinate of a point.
+         *
+         * @param index
+         *         index of the point
+         * @return new Coordinate
+         */
+        public Coordinate coordinate(int index) {
+            return new Coordinate(latitude(index), longitude(index));
+        }
+
+        public double distance(int index) {
+            return null == distanceCursor ? distances.get(index) :
+                    unquantize(distanceCursor.get(index), METER_SCALE);
+        }
+
+        public double elevation(int index) {
+            return null == elevationCursor ? elevations.get(index) :
+                    unquantize(elevationCursor.get(index), METER_SCALE);
+        }
+
+        public double latitude(int index) {
+            return null == latitudeCursor ? latitudes.get(index) :
+                    unquantize(latitudeCursor.get(index), DEGREE_SCALE);
+        }
+
+        public double longitude(int index) {
+            return null == longitudeCursor ? longitudes.get(index) :
+                    unquantize(longitudeCursor.get(index), DEGREE_SCALE);
+        }
+
+        public int size() {
+            return TrackColumns.this.size();
+        }
+
+        public long time(int index) {
+            return null == timeCursor ? times.get(index) : timeCursor.get(index);
+        }
+    }
+
+    /**
+     * Collects the values of trackpoints one after the other, for example from the rows of a query, without creating
+     * TrackPoint objects. The arrays grow as needed and are trimmed when the columns are built.
+     */
+    public static final class Builder {
+        private static final int INITIAL_CAPACITY = 1024;
+
+        private double[] latitudes = new double[INITIAL_CAPACITY];
+        private double[] longitudes = new double[INITIAL_CAPACITY];
+        private double[] elevations = new double[INITIAL_CAPACITY];
+        private double[] distances = new double[INITIAL_CAPACITY];
+        private long[] times = new long[INITIAL_CAPACITY];
+        /** the number of added points */
+        private int size = 0;
+
+        /**
+         * adds the values of a trackpoint.
+         *
+         * @param latitude
+         *         latitude in degrees
+         * @param longitude
+         *         longitude in degrees
+         * @param elevation
+         *         elevation in meters, may be null
+         * @param distance
+         *         distance from the start of the track in meters, may be null
+         * @param timestamp
+         *         the time, may be null
+         * @return this object
+         */
+        public Builder add(double latitude, double longitude, Double elevation, Double distance,
+                           LocalDateTime timestamp) {
+            if (size == latitudes.length) {
+                int capacity = size * 2;
+                latitudes = Arrays.copyOf(latitudes, capacity);
+                longitudes = Arrays.copyOf(longitudes, capacity);
+                elevations = Arrays.copyOf(elevations, capacity);
+                distances = Arrays.copyOf(distances, capacity);
+                times = Arrays.copyOf(times, capacity);
+            }
+            latitudes[size] = latitude;
+            longitudes[size] = longitude;
+            elevations[size] = null == elevation ? Double.NaN : elevation;
+            distances[size] = null == distance ? Double.NaN : distance;
+            times[size] = TrackStatistics.toMillis(timestamp);
+            size++;
+            return this;
+        }
+
+        /**
+         * creates the heap columns from the added values.
+         *
+         * @return the columns
+         */
+        public TrackColumns build() {
+            return new TrackColumns(Arrays.copyOf(latitudes, size), Arrays.copyOf(longitudes, size),
+                    Arrays.copyOf(elevations, size), Arrays.copyOf(distances, size), Arrays.copyOf(times, size));
+        }
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ Copyright 2015 Peter-Josef Meisch (pj.meisch@sothawo.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.sothawo.trakxmap.util;
+
+import java.util.OptionalInt;
+
+/**
+ * Index for finding the point of a track that is nearest to a position or to a distance along the track.
+ *
+ * The positions are stored as unit vectors in a KD-tree. The chord length between unit vectors grows with the great
+ * circle distance, so the nearest point in the tree is the nearest point on the sphere, without any distortion from a
+ * map projection; compared to the ellipsoid this only decides between points whose distances differ by a few
+ * centimeters. The tree is kept in flat arrays in the order of an implicit balanced tree: the node of a range is in
+ * the middle, the subtrees are in the halves left and right of it.
+ *
+ * The search by distance is a binary search in the distance column of the trackpoint columns, which are kept by
+ * reference. Instances are immutable and may be used from any thread.
+ *
+ * @author P.J. Meisch (pj.meisch@sothawo.com).
+ */
+public final class TrackPointIndex {
+// ------------------------------ FIELDS ------------------------------
+
+    /** mean earth radius to convert chord lengths to meters */
+    private static final double EARTH_RADIUS = 6371008.8;
+
+    /** the coordinates of the tree nodes */
+    private final double[] xs;
+    private final double[] ys;
+    private final double[] zs;
+    /** the index of the point for each tree node */
+    private final int[] pointIndices;
+    /** the trackpoint columns, for the search by distance */
+    private final TrackColumns columns;
+
+// --------------------------- CONSTRUCTORS ---------------------------
+
+    /**
+     * builds the index for the trackpoints of a track.
+     *
+     * @param columns
+     *         the trackpoint columns, the distances must be ascending
+     */
+    public TrackPointIndex(TrackColumns columns) {
+        int count = columns.size();
+        TrackColumns.Reader reader = columns.reader();
+        double[][] coordinates = new double[3][count];
+        for (int i = 0; i < count; i++) {
+            double phi = Math.toRadians(reader.latitude(i));
+            double lambda = Math.toRadians(reader.longitude(i));
+            coordinates[0][i] = Math.cos(phi) * Math.cos(lambda);
+            coordinates[1][i] = Math.cos(phi) * Math.sin(lambda);
+            coordinates[2][i] = Math.sin(phi);
+        }
+        pointIndices = new int[count];
+        for (int i = 0; i < count; i++) {
+            pointIndices[i] = i;
+        }
+        build(coordinates, 0, count, 0);
+
+        xs = new double[count];
+        ys = new double[count];
+        zs = new double[count];
+        for (int i = 0; i < count; i++) {
+            xs[i] = coordinates[0][pointIndices[i]];
+            ys[i] = coordinates[1][pointIndices[i]];
+            zs[i] = coordinates[2][pointIndices[i]];
+        }
+        this.columns = columns;
+    }
+
+// -------------------------- STATIC METHODS --------------------------
+
+    /**
+     * converts a squared chord length on the unit sphere to meters on the earth.
+     *
+     * @param chord2
+     *         squared chord length
+     * @return distance in meters
+     */
+    private static double chordToMeters(double chord2) {
+        return 2 * EARTH_RADIUS * Math.asin(Math.min(1.0, Math.sqrt(chord2) / 2));
+    }
+
+// -------------------------- OTHER METHODS --------------------------
+
+    /**
+     * arranges pointIndices[from, to) so that the median by the axis of the depth is in the middle, the smaller values
+     * left and the larger values right of it, and continues with both halves.
+     */
+    private void build(double[][] coordinates, int from, int to, int depth) {
+        if (to - from < 2) {
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        select(coordinates[depth % 3], from, to - 1, middle);
+        build(coordinates, from, middle, depth + 1);
+        build(coordinates, middle + 1, to, depth + 1);
+    }
+
+    /**
+     * quickselect on pointIndices[left, right] by the given coordinate values, so that position k holds the k-th
+     * smallest value.
+     */
+    private void select(double[] values, int left, int right, int k) {
+        while (right > left) {
+            double pivot = values[pointIndices[(left + right) >>> 1]];
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (values[pointIndices[i]] < pivot) {
+                    i++;
+                }
+                while (values[pointIndices[j]] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    int swap = pointIndices[i];
+                    pointIndices[i] = pointIndices[j];
+                    pointIndices[j] = swap;
+                    i++;
+                    j--;
+                }
+            }
+            if (k <= j) {
+                right = j;
+            } else if (k >= i) {
+                left = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    /**
+     * the approximate number of bytes used by the index, without the trackpoint columns.
+     *
+     * @return size in bytes
+     */
+    public long memorySize() {
+        return 8L * (xs.length + ys.length + zs.length) + 4L * pointIndices.length;
+    }
+
+    /**
+     * finds the point nearest to a position.
+     *
+     * @param latitude
+     *         latitude in degrees
+     * @param longitude
+     *         longitude in degrees
+     * @return the index of the nearest point, empty if there are no points
+     */
+    public OptionalInt nearest(double latitude, double longitude) {
+        return nearest(latitude, longitude, Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * finds the point nearest to a position within a maximum distance.
+     *
+     * @param latitude
+     *         latitude in degrees
+     * @param longitude
+     *         longitude in degrees
+     * @param maxMeters
+     *         the maximum distance in meters
+     * @return the index of the nearest point, empty if there is no point within the distance
+     */
+    public OptionalInt nearest(double latitude, double longitude, double maxMeters) {
+        if (0 == pointIndices.length) {
+            return OptionalInt.empty();
+        }
+        double phi = Math.toRadians(latitude);
+        double lambda = Math.toRadians(longitude);
+        double[] query = {Math.cos(phi) * Math.cos(lambda), Math.cos(phi) * Math.sin(lambda), Math.sin(phi)};
+        // best[0]: squared distance, best[1]: tree position
+        double[] best = {Double.POSITIVE_INFINITY, -1};
+        search(query, 0, pointIndices.length, 0, best);
+        int node = (int) best[1];
+        return chordToMeters(best[0]) <= maxMeters ? OptionalInt.of(pointIndices[node]) : OptionalInt.empty();
+    }
+
+    /**
+     * searches the subtree in [from, to) for a point nearer than the current best one.
+     */
+    private void search(double[] query, int from, int to, int depth, double[] best) {
+        if (from >= to) {
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        double dx = xs[middle] - query[0];
+        double dy = ys[middle] - query[1];
+        double dz = zs[middle] - query[2];
+        double d2 = dx * dx + dy * dy + dz * dz;
+        if (d2 < best[0]) {
+            best[0] = d2;
+            best[1] = middle;
+        }
+        double diff;
+        switch (depth % 3) {
+            case 0:
+                diff = query[0] - xs[middle];
+                break;
+            case 1:
+                diff = query[1] - ys[middle];
+                break;
+            default:
+                diff = query[2] - zs[middle];
+        }
+        // first the half containing the query, the other one only if the splitting plane is nearer than the best
+        if (diff < 0) {
+            search(query, from, middle, depth + 1, best);
+            if (diff * diff < best[0]) {
+                search(query, middle + 1, to, depth + 1, best);
+            }
+        } else {
+            search(query, middle + 1, to, depth + 1, best);
+            if (diff * diff < best[0]) {
+                search(query, from, middle, depth + 1, best);
+            }
+        }
+    }
+
+    /**
+     * finds the point whose distance along the track is nearest to the given distance.
+     *
+     * @param distance
+     *         distance along the track in meters
+     * @return the index of the point, empty if there are no points
+     */
+    public OptionalInt nearestByDistance(double distance) {
+        int count = columns.size();
+        if (0 == count) {
+            return OptionalInt.empty();
+        }
+        return OptionalInt.of(SeriesSearch.nearest(columns.reader()::distance, count, distance));
+    }
+}
@@ -16,33 +16,252 @@
 package com.sothawo.trakxmap.util;
 
 import com.sothawo.trakxmap.db.TrackPoint;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
 
+import javax.persistence.Access;
+import javax.persistence.AccessType;
+import javax.persistence.Column;
+import javax.persistence.Embeddable;
+import java.io.Serializable;
 import java.time.Duration;
 import java.time.LocalDateTime;
+import java.util.Arrays;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collector;
+import java.util.stream.IntStream;
 
 /**
- * An object with several statistical informations about a track.
+ * An object with several statistical informations about a track. The values are computed in one pass over the
+ * trackpoint data with an {@link Accumulator} when a track is imported and stored in the TRACK table, so they are
+ * available without loading or iterating the trackpoints. Accumulators for parts of a track can be combined, so the
+ * points can be processed as a parallel stream with {@link #collector()}; the statistics of several tracks are rolled
+ * up with {@link #combine(TrackStatistics)} or {@link #summing()}.
+ *
+ * The elevation values of GPS devices are noisy, so the ascent and descent are computed from the elevation averaged
+ * over the distance, and only changes larger than the hysteresis are counted. The maximum speed is taken over an
+ * interval of some seconds so that single position jumps are ignored.
  *
  * @author P.J.Meisch (pj.meisch@jaroso.de)
  */
-public class TrackStatistics {
+@Embeddable
+@Access(AccessType.FIELD)
+public class TrackStatistics implements Serializable {
 // ------------------------------ FIELDS ------------------------------
 
+    /** value in the times array for a missing timestamp */
+    public static final long NO_TIME = Long.MIN_VALUE;
+
+    private static final String CONF_MOVING_SPEED = "movingSpeed";
+    private static final String CONF_ASCENT_HYSTERESIS = "ascentHysteresis";
+    private static final String CONF_ELEVATION_SMOOTHING = "elevationSmoothing";
+    private static final String CONF_SPEED_INTERVAL = "speedInterval";
+    private static final String CONF_PARALLEL_THRESHOLD = "parallelThreshold";
+
+    /** speed in m/s from which on a segment counts as moving */
+    private static final double movingSpeed;
+    /** minimum elevation change in meters that is counted as ascent or descent */
+    private static final double ascentHysteresis;
+    /** distance in meters over which the elevation is smoothed */
+    private static final double elevationSmoothing;
+    /** minimum interval in milliseconds for the maximum speed */
+    private static final long speedInterval;
+    /** number of trackpoints from which on the statistics are computed in parallel */
+    private static final int parallelThreshold;
+
     /** the timestamp of the first trackpoint in the track */
+    @Column(name = "START_TIME")
     private LocalDateTime trackStartTime;
     /** the timestamp of the last trackpoint in the track */
+    @Column(name = "END_TIME")
     private LocalDateTime trackEndTime;
     /** the timestamp of the first routepoint in the track */
+    @Column(name = "ROUTE_START_TIME")
     private LocalDateTime routeStartTime;
     /** the timestamp of the first waypoint in the track */
+    @Column(name = "FIRST_WAYPOINT_TIME")
     private LocalDateTime firstWaypointTime;
     /** the track's distance */
+    @Column(name = "DISTANCE")
     private Double trackDistance;
     /** minimum elevation */
+    @Column(name = "MIN_ELEVATION")
     private Double minElevation;
     /** maximum elevation */
+    @Column(name = "MAX_ELEVATION")
     private Double maxElevation;
+    /** minimum of the smoothed elevation */
+    @Column(name = "FILTERED_MIN_ELEVATION")
+    private Double filteredMinElevation;
+    /** maximum of the smoothed elevation */
+    @Column(name = "FILTERED_MAX_ELEVATION")
+    private Double filteredMaxElevation;
+    /** total ascent in meters */
+    @Column(name = "ASCENT")
+    private Double ascent;
+    /** total descent in meters */
+    @Column(name = "DESCENT")
+    private Double descent;
+    /** time in milliseconds with a speed above the moving speed */
+    @Column(name = "MOVING_TIME")
+    private Long movingMillis;
+    /** maximum speed in m/s */
+    @Column(name = "MAX_SPEED")
+    private Double maxSpeed;
+
+// -------------------------- STATIC METHODS --------------------------
+
+    static {
+        Config config = ConfigFactory.load().getConfig(TrackStatistics.class.getCanonicalName());
+        movingSpeed = config.getDouble(CONF_MOVING_SPEED);
+        ascentHysteresis = config.getDouble(CONF_ASCENT_HYSTERESIS);
+        elevationSmoothing = config.getDouble(CONF_ELEVATION_SMOOTHING);
+        speedInterval = config.getDuration(CONF_SPEED_INTERVAL, TimeUnit.MILLISECONDS);
+        parallelThreshold = config.getInt(CONF_PARALLEL_THRESHOLD);
+    }
+
+    /**
+     * computes the statistics of trackpoints. Tracks with at least parallelThreshold points are processed in parallel
+     * chunks that are combined in track order.
+     *
+     * @param times
+     *         the timestamps in milliseconds, NO_TIME for missing values
+     * @param distances
+     *         the distances from the start of the track in meters
+     * @param elevations
+     *         the elevations in meters, NaN for missing values
+     * @return the statistics; route and waypoint times are not set
+     */
+    public static TrackStatistics compute(long[] times, double[] distances, double[] elevations) {
+        IntStream indices = IntStream.range(0, times.length);
+        if (times.length >= parallelThreshold) {
+            indices = indices.parallel();
+        }
+        return indices.collect(Accumulator::new,
+                (accumulator, i) -> accumulator.accept(times[i], distances[i], elevations[i]),
+                Accumulator::combine).finish();
+    }
+
+    /**
+     * creates the statistics from the values that were stored in the TRACK table, in the order of the columns. This is
+     * used by repositories that read the columns themselves instead of loading the embeddable with JPA.
+     *
+     * @param trackStartTime
+     *         START_TIME, may be null
+     * @param trackEndTime
+     *         END_TIME, may be null
+     * @param routeStartTime
+     *         ROUTE_START_TIME, may be null
+     * @param firstWaypointTime
+     *         FIRST_WAYPOINT_TIME, may be null
+     * @param trackDistance
+     *         DISTANCE, may be null
+     * @param minElevation
+     *         MIN_ELEVATION, may be null
+     * @param maxElevation
+     *         MAX_ELEVATION, may be null
+     * @param filteredMinElevation
+     *         FILTERED_MIN_ELEVATION, may be null
+     * @param filteredMaxElevation
+     *         FILTERED_MAX_ELEVATION, may be null
+     * @param ascent
+     *         ASCENT, may be null
+     * @param descent
+     *         DESCENT, may be null
+     * @param movingMillis
+     *         MOVING_TIME in milliseconds, may be null
+     * @param maxSpeed
+     *         MAX_SPEED, may be null
+     * @return the statistics
+     */
+    public static TrackStatistics stored(LocalDateTime trackStartTime, LocalDateTime trackEndTime,
+                                         LocalDateTime routeStartTime, LocalDateTime firstWaypointTime,
+                                         Double trackDistance, Double minElevation, Double maxElevation,
+                                         Double filteredMinElevation, Double filteredMaxElevation, Double ascent,
+                                         Double descent, Long movingMillis, Double maxSpeed) {
+        TrackStatistics statistics = new TrackStatistics();
+        statistics.trackStartTime = trackStartTime;
+        statistics.trackEndTime = trackEndTime;
+        statistics.routeStartTime = routeStartTime;
+        statistics.firstWaypointTime = firstWaypointTime;
+        statistics.trackDistance = trackDistance;
+        statistics.minElevation = minElevation;
+        statistics.maxElevation = maxElevation;
+        statistics.filteredMinElevation = filteredMinElevation;
+        statistics.filteredMaxElevation = filteredMaxElevation;
+        statistics.ascent = ascent;
+        statistics.descent = descent;
+        statistics.movingMillis = movingMillis;
+        statistics.maxSpeed = maxSpeed;
+        return statistics;
+    }
+
+    /**
+     * returns a Collector that computes the statistics of the trackpoints of a stream. The stream must be in track
+     * order and the trackpoints must have their distances set; it may be parallel.
+     *
+     * @return Collector for TrackPoints
+     */
+    public static Collector<TrackPoint, Accumulator, TrackStatistics> collector() {
+        return Collector.of(Accumulator::new, Accumulator::accept, Accumulator::combine, Accumulator::finish);
+    }
+
+    /**
+     * returns a Collector that rolls up the statistics of several tracks, see {@link #combine(TrackStatistics)}.
+     *
+     * @return Collector for TrackStatistics
+     */
+    public static Collector<TrackStatistics, TrackStatistics, TrackStatistics> summing() {
+        return Collector.of(TrackStatistics::new, TrackStatistics::add, (left, right) -> {
+            left.add(right);
+            return left;
+        }, Collector.Characteristics.IDENTITY_FINISH, Collector.Characteristics.UNORDERED);
+    }
+
+    /**
+     * minimum of two nullable values.
+     */
+    private static <T extends Comparable<? super T>> T min(T a, T b) {
+        return null == a ? b : (null == b || a.compareTo(b) <= 0) ? a : b;
+    }
+
+    /**
+     * maximum of two nullable values.
+     */
+    private static <T extends Comparable<? super T>> T max(T a, T b) {
+        return null == a ? b : (null == b || a.compareTo(b) >= 0) ? a : b;
+    }
+
+    /**
+     * sum of two nullable values.
+     */
+    private static Double sum(Double a, Double b) {
+        return null == a ? b : null == b ? a : Double.valueOf(a + b);
+    }
+
+    /**
+     * converts a LocalDateTime to the milliseconds used in the times array.
+     *
+     * @param localDateTime
+     *         the value, may be null
+     * @return milliseconds or NO_TIME
+     */
+    public static long toMillis(LocalDateTime localDateTime) {
+        return null == localDateTime ? NO_TIME :
+                Duration.between(LocalDateTime.of(1970, 1, 1, 0, 0), localDateTime).toMillis();
+    }
+
+    /**
+     * converts milliseconds from the times array back to a LocalDateTime.
+     *
+     * @param millis
+     *         milliseconds as returned by toMillis(), not NO_TIME
+     * @return the LocalDateTime
+     */
+    public static LocalDateTime toLocalDateTime(long millis) {
+        return LocalDateTime.of(1970, 1, 1, 0, 0).plus(Duration.ofMillis(millis));
+    }
 
 // ------------------------ CANONICAL METHODS ------------------------
 
@@ -53,10 +272,14 @@ public class TrackStatistics {
                 "trackStartTime=" + trackStartTime +
                 ", routeStartTime=" + routeStartTime +
                 ", firstWaypointTime=" + firstWaypointTime +
-                duration.map(Duration::toString).orElse("") +
+                ", duration=" + duration.map(Duration::toString).orElse("") +
                 ", distance=" + trackDistance +
                 ", minElevation=" + minElevation +
                 ", maxElevation=" + maxElevation +
+                ", ascent=" + ascent +
+                ", descent=" + descent +
+                ", movingMillis=" + movingMillis +
+                ", maxSpeed=" + maxSpeed +
                 '}';
     }
 
@@ -75,6 +298,45 @@ public class TrackStatistics {
 
 // -------------------------- OTHER METHODS --------------------------
 
+    /**
+     * combines the statistics of two tracks, for example to get the totals of a month. Times and elevations are the
+     * minimum and maximum, the maximum speed is the maximum, distance, ascent, descent and moving time are added. The
+     * operation is associative and commutative, missing values are ignored.
+     *
+     * @param other
+     *         the other statistics
+     * @return new combined statistics
+     */
+    public TrackStatistics combine(TrackStatistics other) {
+        TrackStatistics combined = new TrackStatistics();
+        combined.add(this);
+        combined.add(other);
+        return combined;
+    }
+
+    /**
+     * adds the values of another statistics object to this one.
+     *
+     * @param other
+     *         the other statistics
+     */
+    private void add(TrackStatistics other) {
+        trackStartTime = min(trackStartTime, other.trackStartTime);
+        trackEndTime = max(trackEndTime, other.trackEndTime);
+        routeStartTime = min(routeStartTime, other.routeStartTime);
+        firstWaypointTime = min(firstWaypointTime, other.firstWaypointTime);
+        trackDistance = sum(trackDistance, other.trackDistance);
+        minElevation = min(minElevation, other.minElevation);
+        maxElevation = max(maxElevation, other.maxElevation);
+        filteredMinElevation = min(filteredMinElevation, other.filteredMinElevation);
+        filteredMaxElevation = max(filteredMaxElevation, other.filteredMaxElevation);
+        ascent = sum(ascent, other.ascent);
+        descent = sum(descent, other.descent);
+        movingMillis = null == movingMillis ? other.movingMillis :
+                null == other.movingMillis ? movingMillis : Long.valueOf(movingMillis + other.movingMillis);
+        maxSpeed = max(maxSpeed, other.maxSpeed);
+    }
+
     /**
      * if this is the first route timstamp it is kept, otherwise ignored.
      *
@@ -88,84 +350,51 @@ public class TrackStatistics {
     }
 
     /**
-     * adds a trackpoint that constiains several aspects of information.
+     * if this is the first waypoint timestamp it is kept, otherwise ignored
      *
-     * @param trackPoint
-     *         the trackpoint to add
+     * @param localDateTime
+     *         time to check
      */
-    public void addTrackPoint(TrackPoint trackPoint) {
-        if (null != trackPoint) {
-            addTrackTime(trackPoint.getTimestamp());
-            adddTrackpointDistance(trackPoint.getDistance());
-            addMinElevation(trackPoint.getElevation());
-            addMaxElevation(trackPoint.getElevation());
+    public void addWaypointTime(LocalDateTime localDateTime) {
+        if (null != localDateTime && null == firstWaypointTime) {
+            firstWaypointTime = localDateTime;
         }
     }
 
     /**
-     * adjust the minimum elevation, 0.0 is not used, this denotes an emtpy entry
+     * get the timestamp of the first trackpoint.
      *
-     * @param elevation
+     * @return start time if set
      */
-    private void addMaxElevation(Double elevation) {
-        if (null != elevation && !Double.valueOf(0.0).equals(elevation)) {
-            maxElevation = (null == maxElevation) ? elevation : Math.max(maxElevation, elevation);
-        }
+    public Optional<LocalDateTime> getTrackStartTime() {
+        return Optional.ofNullable(trackStartTime);
     }
 
     /**
-     * adjust the minimum elevation, 0.0 is not used, this denotes an emtpy entry
+     * get the latest timestamp of the trackpoints.
      *
-     * @param elevation
+     * @return end time if set
      */
-    private void addMinElevation(Double elevation) {
-        if (null != elevation && !Double.valueOf(0.0).equals(elevation)) {
-            minElevation = (null == minElevation) ? elevation : Math.min(minElevation, elevation);
-        }
+    public Optional<LocalDateTime> getTrackEndTime() {
+        return Optional.ofNullable(trackEndTime);
     }
 
     /**
-     * if this is the first trackpoint, the timestamp is kept as starttime. If it is after the start time, it is kept
-     * as
-     * end time.
+     * get the timestamp of the first routepoint.
      *
-     * @param localDateTime
-     *         time to check
+     * @return route start time if set
      */
-    private void addTrackTime(LocalDateTime localDateTime) {
-        if (null != localDateTime) {
-            if (null == trackStartTime) {
-                trackStartTime = localDateTime;
-            }
-            if (null == trackEndTime || localDateTime.isAfter(trackEndTime)) {
-                trackEndTime = localDateTime;
-            }
-        }
+    public Optional<LocalDateTime> getRouteStartTime() {
+        return Optional.ofNullable(routeStartTime);
     }
 
     /**
-     * adds a given distance to the track's distance.
+     * get the timestamp of the first waypoint.
      *
-     * @param distance
-     *         the distance to add
+     * @return waypoint time if set
      */
-    private void adddTrackpointDistance(Double distance) {
-        if (null != distance) {
-            // distance is accumulated from track start
-            trackDistance = distance;
-        }
-    }
-
-    /**
-     * if this is the first waypoint timestamp it is kept, otherwise ignored
-     *
-     * @param localDateTime
-     *         time to check
-     */
-    public void addWaypointTime(LocalDateTime localDateTime) {
-        if (null != localDateTime && null == firstWaypointTime) {
-            firstWaypointTime = localDateTime;
-        }
+    public Optional<LocalDateTime> getFirstWaypointTime() {
+        return Optional.ofNullable(firstWaypointTime);
     }
 
     /**
@@ -211,4 +440,331 @@ public class TrackStatistics {
     public Optional<Double> getMaxElevation() {
         return Optional.ofNullable(maxElevation);
     }
+
+    /**
+     * get the minimum of the smoothed elevation.
+     *
+     * @return minium elevation if set
+     */
+    public Optional<Double> getFilteredMinElevation() {
+        return Optional.ofNullable(filteredMinElevation);
+    }
+
+    /**
+     * get the maximum of the smoothed elevation.
+     *
+     * @return maximum elevation if set
+     */
+    public Optional<Double> getFilteredMaxElevation() {
+        return Optional.ofNullable(filteredMaxElevation);
+    }
+
+    /**
+     * get the total ascent.
+     *
+     * @return ascent in meters if the track has elevations
+     */
+    public Optional<Double> getAscent() {
+        return Optional.ofNullable(ascent);
+    }
+
+    /**
+     * get the total descent.
+     *
+     * @return descent in meters if the track has elevations
+     */
+    public Optional<Double> getDescent() {
+        return Optional.ofNullable(descent);
+    }
+
+    /**
+     * get the time in motion, the time of the segments with a speed of at least the configured moving speed.
+     *
+     * @return moving time if the track has timestamps
+     */
+    public Optional<Duration> getMovingTime() {
+        return Optional.ofNullable(movingMillis).map(Duration::ofMillis);
+    }
+
+    /**
+     * get the maximum speed.
+     *
+     * @return maximum speed in m/s if the track has timestamps
+     */
+    public Optional<Double> getMaxSpeed() {
+        return Optional.ofNullable(maxSpeed);
+    }
+
+    /**
+     * get the average speed in motion.
+     *
+     * @return distance divided by the moving time in m/s, if both are set and the moving time is not 0
+     */
+    public Optional<Double> getAverageSpeed() {
+        if (null == trackDistance || null == movingMillis || 0 == movingMillis) {
+            return Optional.empty();
+        }
+        return Optional.of(trackDistance / movingMillis * 1000);
+    }
+
+// -------------------------- INNER CLASSES --------------------------
+
+    /**
+     * the mutable accumulator for the statistics of a sequence of trackpoints. The values are kept in primitives and
+     * primitive arrays. Two accumulators for consecutive parts of a track are combined by adding the segment between
+     * the last point of the left and the first point of the right part, so the result does not depend on how the
+     * track was split.
+     *
+     * The values that need the neighbourhood of a point are taken from buckets: the elevation is averaged over
+     * distance buckets of elevationSmoothing meters, the speed is taken between the first points of time buckets of
+     * speedInterval. Accumulators keep the list of their buckets and the ascent, descent and maximum speed are computed
+     * from the complete lists in {@link #finish()}; the lists are much shorter than the track.
+     */
+    public static final class Accumulator {
+        /** initial size of the bucket arrays */
+        private static final int INITIAL_CAPACITY = 16;
+
+        /** number of points */
+        private long count = 0;
+        /** distance of the last point */
+        private double lastDistance = Double.NaN;
+
+        /** time of the first point with a time */
+        private long firstTime = NO_TIME;
+        /** distance of the first point with a time */
+        private double firstTimeDistance = Double.NaN;
+        /** time of the last point with a time */
+        private long lastTime = NO_TIME;
+        /** distance of the last point with a time */
+        private double lastTimeDistance = Double.NaN;
+        /** latest time */
+        private long maxTime = NO_TIME;
+        /** sum of the moving segment times */
+        private long movingMillis = 0;
+
+        /** time bucket numbers */
+        private long[] speedBuckets = new long[INITIAL_CAPACITY];
+        /** time of the first point in a time bucket */
+        private long[] speedTimes = new long[INITIAL_CAPACITY];
+        /** distance of the first point in a time bucket */
+        private double[] speedDistances = new double[INITIAL_CAPACITY];
+        /** number of time buckets */
+        private int speedCount = 0;
+
+        /** minimum elevation */
+        private double minElevation = Double.NaN;
+        /** maximum elevation */
+        private double maxElevation = Double.NaN;
+        /** distance bucket numbers */
+        private long[] elevationBuckets = new long[INITIAL_CAPACITY];
+        /** sum of the elevations in a distance bucket */
+        private double[] elevationSums = new double[INITIAL_CAPACITY];
+        /** number of elevations in a distance bucket */
+        private int[] elevationCounts = new int[INITIAL_CAPACITY];
+        /** number of distance buckets */
+        private int elevationCount = 0;
+
+        /**
+         * adds a trackpoint.
+         *
+         * @param trackPoint
+         *         the trackpoint, the distance must be set
+         */
+        public void accept(TrackPoint trackPoint) {
+            Double elevation = trackPoint.getElevation();
+            // 0.0 is written by devices without elevation data
+            accept(toMillis(trackPoint.getTimestamp()), trackPoint.getDistance(),
+                    (null == elevation || 0.0 == elevation) ? Double.NaN : elevation);
+        }
+
+        /**
+         * adds a trackpoint.
+         *
+         * @param time
+         *         the time in milliseconds or NO_TIME
+         * @param distance
+         *         the distance from the start of the track
+         * @param elevation
+         *         the elevation or NaN
+         */
+        public void accept(long time, double distance, double elevation) {
+            count++;
+            lastDistance = distance;
+            if (NO_TIME != time) {
+                if (NO_TIME == firstTime) {
+                    firstTime = time;
+                    firstTimeDistance = distance;
+                } else {
+                    addSegment(lastTime, lastTimeDistance, time, distance);
+                }
+                lastTime = time;
+                lastTimeDistance = distance;
+                maxTime = NO_TIME == maxTime ? time : Math.max(maxTime, time);
+                long bucket = Math.floorDiv(time, speedInterval);
+                if (0 == speedCount || speedBuckets[speedCount - 1] != bucket) {
+                    addSpeedBucket(bucket, time, distance);
+                }
+            }
+            if (!Double.isNaN(elevation)) {
+                minElevation = Double.isNaN(minElevation) ? elevation : Math.min(minElevation, elevation);
+                maxElevation = Double.isNaN(maxElevation) ? elevation : Math.max(maxElevation, elevation);
+                long bucket = (long) Math.floor(distance / elevationSmoothing);
+                if (0 == elevationCount || elevationBuckets[elevationCount - 1] != bucket) {
+                    addElevationBucket(bucket, elevation, 1);
+                } else {
+                    elevationSums[elevationCount - 1] += elevation;
+                    elevationCounts[elevationCount - 1]++;
+                }
+            }
+        }
+
+        /**
+         * adds the values of the accumulator for the following part of the track.
+         *
+         * @param other
+         *         the accumulator with the points after the points of this one
+         * @return this object
+         */
+        public Accumulator combine(Accumulator other) {
+            if (0 == other.count) {
+                return this;
+            }
+            count += other.count;
+            lastDistance = other.lastDistance;
+
+            if (NO_TIME != other.firstTime) {
+                if (NO_TIME == firstTime) {
+                    firstTime = other.firstTime;
+                    firstTimeDistance = other.firstTimeDistance;
+                } else {
+                    addSegment(lastTime, lastTimeDistance, other.firstTime, other.firstTimeDistance);
+                }
+                lastTime = other.lastTime;
+                lastTimeDistance = other.lastTimeDistance;
+                maxTime = NO_TIME == maxTime ? other.maxTime : Math.max(maxTime, other.maxTime);
+                movingMillis += other.movingMillis;
+                for (int i = 0; i < other.speedCount; i++) {
+                    // a bucket split between the parts starts with the point of this part
+                    if (0 != i || 0 == speedCount || speedBuckets[speedCount - 1] != other.speedBuckets[0]) {
+                        addSpeedBucket(other.speedBuckets[i], other.speedTimes[i], other.speedDistances[i]);
+                    }
+                }
+            }
+
+            if (!Double.isNaN(other.minElevation)) {
+                minElevation = Double.isNaN(minElevation) ? other.minElevation :
+                        Math.min(minElevation, other.minElevation);
+                maxElevation = Double.isNaN(maxElevation) ? other.maxElevation :
+                        Math.max(maxElevation, other.maxElevation);
+                for (int i = 0; i < other.elevationCount; i++) {
+                    if (0 == i && 0 != elevationCount &&
+                            elevationBuckets[elevationCount - 1] == other.elevationBuckets[0]) {
+                        elevationSums[elevationCount - 1] += other.elevationSums[0];
+                        elevationCounts[elevationCount - 1] += other.elevationCounts[0];
+                    } else {
+                        addElevationBucket(other.elevationBuckets[i], other.elevationSums[i],
+                                other.elevationCounts[i]);
+                    }
+                }
+            }
+            return this;
+        }
+
+        /**
+         * computes the statistics from the accumulated values.
+         *
+         * @return the statistics; route and waypoint times are not set
+         */
+        public TrackStatistics finish() {
+            TrackStatistics statistics = new TrackStatistics();
+            if (count > 0) {
+                statistics.trackDistance = lastDistance;
+            }
+            if (NO_TIME != firstTime) {
+                statistics.trackStartTime = toLocalDateTime(firstTime);
+                statistics.trackEndTime = toLocalDateTime(maxTime);
+                statistics.movingMillis = movingMillis;
+            }
+
+            // the first points of bucket i and i + 2 are at least speedInterval apart
+            double maxSpeed = Double.NaN;
+            for (int i = 0; i + 2 < speedCount; i++) {
+                long deltaTime = speedTimes[i + 2] - speedTimes[i];
+                if (deltaTime >= speedInterval) {
+                    double speed = (speedDistances[i + 2] - speedDistances[i]) / deltaTime * 1000;
+                    maxSpeed = Double.isNaN(maxSpeed) ? speed : Math.max(maxSpeed, speed);
+                }
+            }
+            statistics.maxSpeed = Double.isNaN(maxSpeed) ? null : maxSpeed;
+
+            if (!Double.isNaN(minElevation)) {
+                statistics.minElevation = minElevation;
+                statistics.maxElevation = maxElevation;
+                double reference = elevationSums[0] / elevationCounts[0];
+                double filteredMin = reference;
+                double filteredMax = reference;
+                double ascent = 0.0;
+                double descent = 0.0;
+                for (int i = 1; i < elevationCount; i++) {
+                    double smoothed = elevationSums[i] / elevationCounts[i];
+                    filteredMin = Math.min(filteredMin, smoothed);
+                    filteredMax = Math.max(filteredMax, smoothed);
+                    if (smoothed - reference >= ascentHysteresis) {
+                        ascent += smoothed - reference;
+                        reference = smoothed;
+                    } else if (reference - smoothed >= ascentHysteresis) {
+                        descent += reference - smoothed;
+                        reference = smoothed;
+                    }
+                }
+                statistics.filteredMinElevation = filteredMin;
+                statistics.filteredMaxElevation = filteredMax;
+                statistics.ascent = ascent;
+                statistics.descent = descent;
+            }
+            return statistics;
+        }
+
+        /**
+         * adds the moving time of a segment.
+         */
+        private void addSegment(long fromTime, double fromDistance, long toTime, double toDistance) {
+            long deltaTime = toTime - fromTime;
+            if (deltaTime > 0 && (toDistance - fromDistance) / deltaTime * 1000 >= movingSpeed) {
+                movingMillis += deltaTime;
+            }
+        }
+
+        /**
+         * appends a time bucket.
+         */
+        private void addSpeedBucket(long bucket, long time, double distance) {
+            if (speedCount == speedBuckets.length) {
+                int capacity = 2 * speedCount;
+                speedBuckets = Arrays.copyOf(speedBuckets, capacity);
+                speedTimes = Arrays.copyOf(speedTimes, capacity);
+                speedDistances = Arrays.copyOf(speedDistances, capacity);
+            }
+            speedBuckets[speedCount] = bucket;
+            speedTimes[speedCount] = time;
+            speedDistances[speedCount] = distance;
+            speedCount++;
+        }
+
+        /**
+         * appends a distance bucket.
+         */
+        private void addElevationBucket(long bucket, double sum, int count) {
+            if (elevationCount == elevationBuckets.length) {
+                int capacity = 2 * elevationCount;
+                elevationBuckets = Arrays.copyOf(elevationBuckets, capacity);
+                elevationSums = Arrays.copyOf(elevationSums, capacity);
+                elevationCounts = Arrays.copyOf(elevationCounts, capacity);
+            }
+            elevationBuckets[elevationCount] = bucket;
+            elevationSums[elevationCount] = sum;
+            elevationCounts[elevationCount] = count;
+            elevationCount++;
+        }
+    }
 }
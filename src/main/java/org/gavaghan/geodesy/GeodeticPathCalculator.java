@@ -0,0 +1,240 @@
+/* Geodesy by Mike Gavaghan
+ *
+ * http://www.gavaghan.org/blog/free-source-code/geodesy-library-vincentys-formula/
+ *
+ * This code may be freely used and modified on any personal or professional
+ * project.  It comes with no warranty.
+ *
+ * BitCoin tips graciously accepted at 1FB63FYQMy7hpC2ANVhZ5mSgAZEtY1aVLf
+ */
+package org.gavaghan.geodesy;
+
+/**
+ * <p>
+ * Solution of the inverse geodetic problem with Vincenty's formula for paths
+ * of many points given as arrays of latitudes and longitudes in degrees. The
+ * distances are those of
+ * {@link GeodeticCalculator#calculateGeodeticCurve(Ellipsoid, GlobalCoordinates, GlobalCoordinates)}
+ * but no objects are created per point pair: the ellipsoid constants are
+ * computed once in the constructor, and the trigonometric values of the
+ * reduced latitude of a point are shared by the two pairs the point belongs
+ * to.
+ * </p>
+ * <p>
+ * The coordinates are not canonicalized like in GlobalCoordinates, so they
+ * must be in the valid ranges; the rounding of the canonicalization is
+ * avoided, the results differ by less than 0.00001 millimeters.
+ * </p>
+ * Instances are immutable and may be shared between threads.
+ *
+ * @author Mike Gavaghan
+ */
+public class GeodeticPathCalculator
+{
+   /** Semi minor axis (meters). */
+   private final double mSemiMinorAxis;
+
+   /** Flattening. */
+   private final double mFlattening;
+
+   /** 1 - flattening. */
+   private final double mOneMinusFlattening;
+
+   /** (a^2 - b^2) / b^2 */
+   private final double mA2B2B2;
+
+   /**
+    * Construct a calculator for a reference ellipsoid.
+    *
+    * @param ellipsoid reference ellipsoid to use
+    */
+   public GeodeticPathCalculator(Ellipsoid ellipsoid)
+   {
+      double a = ellipsoid.getSemiMajorAxis();
+      double b = ellipsoid.getSemiMinorAxis();
+      mSemiMinorAxis = b;
+      mFlattening = ellipsoid.getFlattening();
+      mOneMinusFlattening = 1.0 - mFlattening;
+      mA2B2B2 = (a * a - b * b) / (b * b);
+   }
+
+   /**
+    * Calculate the ellipsoidal distance between two points.
+    *
+    * @param latitude1 latitude of the first point (degrees)
+    * @param longitude1 longitude of the first point (degrees)
+    * @param latitude2 latitude of the second point (degrees)
+    * @param longitude2 longitude of the second point (degrees)
+    * @return distance (meters)
+    */
+   public double calculateDistance(double latitude1, double longitude1, double latitude2, double longitude2)
+   {
+      double U1 = Math.atan(mOneMinusFlattening * Math.tan(Angle.toRadians(latitude1)));
+      double U2 = Math.atan(mOneMinusFlattening * Math.tan(Angle.toRadians(latitude2)));
+      return inverseDistance(Math.sin(U1), Math.cos(U1), Math.sin(U2), Math.cos(U2),
+            Angle.toRadians(longitude2) - Angle.toRadians(longitude1));
+   }
+
+   /**
+    * Calculate the cumulative distances along a path: distances[i] is set to
+    * the length of the path from point 0 to point i.
+    *
+    * @param latitudes latitudes of the points (degrees)
+    * @param longitudes longitudes of the points (degrees)
+    * @param distances array to fill, at least as long as the path
+    */
+   public void calculateCumulativeDistances(double[] latitudes, double[] longitudes, double[] distances)
+   {
+      int count = latitudes.length;
+      if (count == 0) return;
+
+      distances[0] = 0.0;
+      double sum = 0.0;
+
+      double U = Math.atan(mOneMinusFlattening * Math.tan(Angle.toRadians(latitudes[0])));
+      double sinU1 = Math.sin(U);
+      double cosU1 = Math.cos(U);
+      double lambda1 = Angle.toRadians(longitudes[0]);
+
+      for (int i = 1; i < count; i++)
+      {
+         U = Math.atan(mOneMinusFlattening * Math.tan(Angle.toRadians(latitudes[i])));
+         double sinU2 = Math.sin(U);
+         double cosU2 = Math.cos(U);
+         double lambda2 = Angle.toRadians(longitudes[i]);
+
+         sum += inverseDistance(sinU1, cosU1, sinU2, cosU2, lambda2 - lambda1);
+         distances[i] = sum;
+
+         // the end of this pair is the start of the next one
+         sinU1 = sinU2;
+         cosU1 = cosU2;
+         lambda1 = lambda2;
+      }
+   }
+
+   /**
+    * Calculate the lengths of the segments of a path ending at the points
+    * from+1 to to: lengths[i] is set to the distance between point i-1 and
+    * point i. The values are exactly those summed up by
+    * calculateCumulativeDistances, so that ranges of a path can be computed
+    * independently.
+    *
+    * @param latitudes latitudes of the points (degrees)
+    * @param longitudes longitudes of the points (degrees)
+    * @param from index of the first point of the range
+    * @param to index of the last point of the range
+    * @param lengths array to fill
+    */
+   public void calculateSegmentLengths(double[] latitudes, double[] longitudes, int from, int to, double[] lengths)
+   {
+      if (from >= to) return;
+
+      double U = Math.atan(mOneMinusFlattening * Math.tan(Angle.toRadians(latitudes[from])));
+      double sinU1 = Math.sin(U);
+      double cosU1 = Math.cos(U);
+      double lambda1 = Angle.toRadians(longitudes[from]);
+
+      for (int i = from + 1; i <= to; i++)
+      {
+         U = Math.atan(mOneMinusFlattening * Math.tan(Angle.toRadians(latitudes[i])));
+         double sinU2 = Math.sin(U);
+         double cosU2 = Math.cos(U);
+         double lambda2 = Angle.toRadians(longitudes[i]);
+
+         lengths[i] = inverseDistance(sinU1, cosU1, sinU2, cosU2, lambda2 - lambda1);
+
+         sinU1 = sinU2;
+         cosU1 = cosU2;
+         lambda1 = lambda2;
+      }
+   }
+
+   /**
+    * Vincenty's inverse formula for the distance only, with the reduced
+    * latitudes already resolved. The iteration is the same as in
+    * {@link GeodeticCalculator#calculateGeodeticCurve(Ellipsoid, GlobalCoordinates, GlobalCoordinates)}.
+    *
+    * @param sinU1 sine of the reduced latitude of the first point
+    * @param cosU1 cosine of the reduced latitude of the first point
+    * @param sinU2 sine of the reduced latitude of the second point
+    * @param cosU2 cosine of the reduced latitude of the second point
+    * @param omega longitude difference (radians)
+    * @return distance (meters)
+    */
+   private double inverseDistance(double sinU1, double cosU1, double sinU2, double cosU2, double omega)
+   {
+      // identical points, frequent in recorded tracks; the iteration would not converge on 0/0 and return 0 after
+      // running all the steps
+      if ((omega == 0.0) && (sinU1 == sinU2)) return 0.0;
+
+      double f = mFlattening;
+
+      double sinU1sinU2 = sinU1 * sinU2;
+      double cosU1sinU2 = cosU1 * sinU2;
+      double sinU1cosU2 = sinU1 * cosU2;
+      double cosU1cosU2 = cosU1 * cosU2;
+
+      // eq. 13
+      double lambda = omega;
+
+      double A = 0.0;
+      double sigma = 0.0;
+      double deltasigma = 0.0;
+      double lambda0;
+
+      for (int i = 0; i < 20; i++)
+      {
+         lambda0 = lambda;
+
+         double sinlambda = Math.sin(lambda);
+         double coslambda = Math.cos(lambda);
+
+         // eq. 14
+         double sin2sigma = (cosU2 * sinlambda * cosU2 * sinlambda) + (cosU1sinU2 - sinU1cosU2 * coslambda) * (cosU1sinU2 - sinU1cosU2 * coslambda);
+         double sinsigma = Math.sqrt(sin2sigma);
+
+         // eq. 15
+         double cossigma = sinU1sinU2 + (cosU1cosU2 * coslambda);
+
+         // eq. 16
+         sigma = Math.atan2(sinsigma, cossigma);
+
+         // eq. 17 Careful! sin2sigma might be almost 0!
+         double sinalpha = (sin2sigma == 0) ? 0.0 : cosU1cosU2 * sinlambda / sinsigma;
+         double alpha = Math.asin(sinalpha);
+         double cosalpha = Math.cos(alpha);
+         double cos2alpha = cosalpha * cosalpha;
+
+         // eq. 18 Careful! cos2alpha might be almost 0!
+         double cos2sigmam = cos2alpha == 0.0 ? 0.0 : cossigma - 2 * sinU1sinU2 / cos2alpha;
+         double u2 = cos2alpha * mA2B2B2;
+
+         double cos2sigmam2 = cos2sigmam * cos2sigmam;
+
+         // eq. 3
+         A = 1.0 + u2 / 16384 * (4096 + u2 * (-768 + u2 * (320 - 175 * u2)));
+
+         // eq. 4
+         double B = u2 / 1024 * (256 + u2 * (-128 + u2 * (74 - 47 * u2)));
+
+         // eq. 6
+         deltasigma = B * sinsigma
+               * (cos2sigmam + B / 4 * (cossigma * (-1 + 2 * cos2sigmam2) - B / 6 * cos2sigmam * (-3 + 4 * sin2sigma) * (-3 + 4 * cos2sigmam2)));
+
+         // eq. 10
+         double C = f / 16 * cos2alpha * (4 + f * (4 - 3 * cos2alpha));
+
+         // eq. 11 (modified)
+         lambda = omega + (1 - C) * f * sinalpha * (sigma + C * sinsigma * (cos2sigmam + C * cossigma * (-1 + 2 * cos2sigmam2)));
+
+         // see how much improvement we got
+         double change = Math.abs((lambda - lambda0) / lambda);
+
+         if ((i > 1) && (change < 0.0000000000001)) break;
+      }
+
+      // eq. 19
+      return mSemiMinorAxis * A * (sigma - deltasigma);
+   }
+}
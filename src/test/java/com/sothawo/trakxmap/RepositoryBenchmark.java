@@ -0,0 +1,134 @@
+/*
+ Copyright 2015 Peter-Josef Meisch (pj.meisch@sothawo.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.sothawo.trakxmap;
+
+import com.sothawo.trakxmap.db.DB;
+import com.sothawo.trakxmap.db.JdbcTrackRepository;
+import com.sothawo.trakxmap.db.Track;
+import com.sothawo.trakxmap.db.TrackPoint;
+import com.sothawo.trakxmap.db.TrackRepository;
+import com.sothawo.trakxmap.db.WayPoint;
+import com.sothawo.trakxmap.util.Geo;
+import liquibase.Contexts;
+import liquibase.Liquibase;
+import liquibase.database.jvm.JdbcConnection;
+import liquibase.resource.ClassLoaderResourceAccessor;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.DriverManager;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * compares the JPA and the JDBC TrackRepository implementations when storing and loading tracks. Each implementation
+ * works on its own temporary database.
+ *
+ * @author P.J. Meisch (pj.meisch@sothawo.com).
+ */
+public class RepositoryBenchmark {
+// -------------------------- STATIC METHODS --------------------------
+
+    /**
+     * creates a track with the given number of trackpoints and some waypoints.
+     *
+     * @param number
+     *         number of the track, used in the name
+     * @param numPoints
+     *         number of trackpoints
+     * @return the track
+     */
+    private static Track createTrack(int number, int numPoints) {
+        Track track = new Track("benchmark track " + number);
+        track.setFilename("benchmark-" + number + ".gpx");
+        LocalDateTime start = LocalDateTime.of(2015, 6, 1, 10, 0);
+        for (int i = 0; i < numPoints; i++) {
+            track.addTrackPoint(new TrackPoint(50.0 + i * 0.00003, 7.0 + i * 0.00004, 100.0 + (i % 50),
+                    start.plusSeconds(i)));
+            if (i % 1000 == 0) {
+                track.addWayPoint(new WayPoint(50.0 + i * 0.00003, 7.0 + i * 0.00004, 100.0, start.plusSeconds(i),
+                        "wp " + i));
+            }
+        }
+        Geo.updateTrackDistances(track);
+        return track;
+    }
+
+    /**
+     * runs the benchmark for one repository.
+     *
+     * @param name
+     *         name of the implementation
+     * @param repositoryFactory
+     *         creates the repository for a JDBC URL
+     * @param numTracks
+     *         number of tracks to store and load
+     * @param numPoints
+     *         number of trackpoints per track
+     * @throws Exception
+     *         on errors
+     */
+    private static void benchmark(String name, Function<String, TrackRepository> repositoryFactory, int numTracks,
+                                  int numPoints) throws Exception {
+        Path dir = Files.createTempDirectory("trakxmap-benchmark");
+        String jdbcUrl = "jdbc:h2:" + dir.toString() + "/benchmark-db";
+        try (Liquibase liquibase = new Liquibase("db/db-changelog.xml", new ClassLoaderResourceAccessor(),
+                new JdbcConnection(DriverManager.getConnection(jdbcUrl)))) {
+            liquibase.update(new Contexts());
+        }
+
+        long startMillis = System.currentTimeMillis();
+        try (TrackRepository repository = repositoryFactory.apply(jdbcUrl)) {
+            long setupMillis = System.currentTimeMillis() - startMillis;
+
+            long storeNanos = 0;
+            for (int i = 0; i < numTracks; i++) {
+                Track track = createTrack(i, numPoints);
+                long start = System.nanoTime();
+                repository.store(track).ifPresent(failure -> {
+                    throw new IllegalStateException(failure.getMessage(), failure.getCause().orElse(null));
+                });
+                storeNanos += System.nanoTime() - start;
+            }
+
+            List<Long> ids = repository.loadTrackIds();
+            // two rounds, the second one shows the effect of caches
+            long[] loadNanos = new long[2];
+            for (int round = 0; round < loadNanos.length; round++) {
+                long start = System.nanoTime();
+                for (Long id : ids) {
+                    repository.loadTrackWithId(id).orElseThrow(() -> new IllegalStateException("track not found"));
+                }
+                loadNanos[round] = System.nanoTime() - start;
+            }
+
+            System.out.println(String.format("%-5s setup: %6d ms, store: %6d ms, load: %6d ms, reload: %6d ms", name,
+                    setupMillis, storeNanos / 1_000_000, loadNanos[0] / 1_000_000, loadNanos[1] / 1_000_000));
+        }
+    }
+
+// --------------------------- main() method ---------------------------
+
+    public static void main(String[] args) throws Exception {
+        int numTracks = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        int numPoints = args.length > 1 ? Integer.parseInt(args[1]) : 10_000;
+        System.out.println(String.format("%d tracks with %d trackpoints each", numTracks, numPoints));
+
+        benchmark("jpa", DB::new, numTracks, numPoints);
+        benchmark("jdbc", JdbcTrackRepository::new, numTracks, numPoints);
+    }
+}
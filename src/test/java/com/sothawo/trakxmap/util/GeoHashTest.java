@@ -0,0 +1,136 @@
+/*
+ Copyright 2015 Peter-Josef Meisch (pj.meisch@sothawo.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.sothawo.trakxmap.util;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.SortedSet;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the GeoHash class.
+ */
+public class GeoHashTest {
+// ------------------------------ FIELDS ------------------------------
+
+    private static final int PRECISION = 5;
+    /** precision of the polygon cover, fine enough for cells inside the polygon */
+    private static final int COVER_PRECISION = 6;
+
+    /** a polygon around Cologne, not convex */
+    private static final double[] POLYGON_LATITUDES = {50.80, 50.85, 51.05, 51.10, 50.95, 50.90};
+    private static final double[] POLYGON_LONGITUDES = {6.80, 7.20, 7.15, 6.85, 6.95, 6.85};
+
+// -------------------------- STATIC METHODS --------------------------
+
+    /**
+     * checks whether one of the cells contains the position.
+     */
+    private static boolean covered(SortedSet<String> cells, double latitude, double longitude) {
+        String hash = GeoHash.encode(latitude, longitude, GeoHash.MAX_PRECISION);
+        return cells.stream().anyMatch(hash::startsWith);
+    }
+
+// -------------------------- OTHER METHODS --------------------------
+
+    @Test
+    public void encodeKnownPositions() throws Exception {
+        assertEquals("u4pruydqqvj", GeoHash.encode(57.64911, 10.40744, 11));
+        assertEquals("ezs42", GeoHash.encode(42.6, -5.6, 5));
+        assertEquals("u", GeoHash.encode(57.64911, 10.40744, 1));
+    }
+
+    @Test
+    public void boundsContainTheEncodedPosition() throws Exception {
+        Random random = new Random(42);
+        for (int i = 0; i < 1_000; i++) {
+            double latitude = -90 + random.nextDouble() * 180;
+            double longitude = -180 + random.nextDouble() * 360;
+            int precision = 1 + random.nextInt(GeoHash.MAX_PRECISION);
+            double[] bounds = GeoHash.bounds(GeoHash.encode(latitude, longitude, precision));
+            assertTrue(bounds[0] <= latitude && latitude <= bounds[2]);
+            assertTrue(bounds[1] <= longitude && longitude <= bounds[3]);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void boundsRejectInvalidHash() throws Exception {
+        GeoHash.bounds("ua");
+    }
+
+    @Test
+    public void normalizeDropsContainedCells() throws Exception {
+        SortedSet<String> normalized = GeoHash.normalize(Arrays.asList("u1hc", "u1hcy", "u1hd7z", "u0"), 3);
+        assertEquals(Arrays.asList("u0", "u1h"), Arrays.asList(normalized.toArray()));
+    }
+
+    @Test
+    public void cellsOfPathIncludeCrossedCells() throws Exception {
+        double[] latitudes = {50.0, 50.3};
+        double[] longitudes = {7.0, 8.0};
+        SortedSet<String> cells = GeoHash.cellsOfPath(latitudes, longitudes, PRECISION);
+        for (int i = 0; i <= 1_000; i++) {
+            double t = i / 1_000.0;
+            assertTrue(covered(cells, 50.0 + t * 0.3, 7.0 + t));
+        }
+        assertTrue(cells.stream().allMatch(cell -> cell.length() == PRECISION));
+    }
+
+    @Test
+    public void cellsOfPathAcrossTheAntimeridian() throws Exception {
+        double[] latitudes = {10.0, 10.01};
+        double[] longitudes = {179.99, -179.99};
+        SortedSet<String> cells = GeoHash.cellsOfPath(latitudes, longitudes, PRECISION);
+        assertTrue(covered(cells, 10.0, 179.99));
+        assertTrue(covered(cells, 10.01, -179.99));
+        // the segment is short and does not go around the world
+        assertTrue(cells.size() <= 4);
+    }
+
+    @Test
+    public void coverPolygonCoversTheInside() throws Exception {
+        SortedSet<String> cells = GeoHash.coverPolygon(POLYGON_LATITUDES, POLYGON_LONGITUDES, COVER_PRECISION);
+        assertFalse(cells.isEmpty());
+        assertTrue(cells.stream().allMatch(cell -> cell.length() <= COVER_PRECISION));
+        // the inner cells are merged to larger ones
+        assertTrue(cells.stream().anyMatch(cell -> cell.length() < COVER_PRECISION));
+        assertEquals(cells, GeoHash.normalize(cells, COVER_PRECISION));
+
+        Random random = new Random(42);
+        int inside = 0;
+        for (int i = 0; i < 10_000; i++) {
+            double latitude = 50.75 + random.nextDouble() * 0.4;
+            double longitude = 6.75 + random.nextDouble() * 0.5;
+            if (GeoHash.contains(POLYGON_LATITUDES, POLYGON_LONGITUDES, latitude, longitude)) {
+                inside++;
+                assertTrue(covered(cells, latitude, longitude));
+            }
+        }
+        assertTrue(inside > 0);
+        assertFalse(covered(cells, 52.0, 7.0));
+    }
+
+    @Test
+    public void containsUsesEvenOddRule() throws Exception {
+        assertTrue(GeoHash.contains(POLYGON_LATITUDES, POLYGON_LONGITUDES, 50.95, 7.1));
+        // inside the notch of the polygon
+        assertFalse(GeoHash.contains(POLYGON_LATITUDES, POLYGON_LONGITUDES, 50.95, 6.85));
+        assertFalse(GeoHash.contains(POLYGON_LATITUDES, POLYGON_LONGITUDES, 50.0, 7.0));
+    }
+}
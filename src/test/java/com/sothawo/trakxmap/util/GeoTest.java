@@ -0,0 +1,73 @@
+/*
+ Copyright 2015 Peter-Josef Meisch (pj.meisch@sothawo.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.sothawo.trakxmap.util;
+
+import com.sothawo.trakxmap.db.Track;
+import com.sothawo.trakxmap.db.TrackPoint;
+import org.junit.Test;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the Geo class.
+ */
+public class GeoTest {
+// ------------------------------ FIELDS ------------------------------
+
+    /** number of trackpoints, above the configured parallel threshold and split into several tasks */
+    private static final int PARALLEL_COUNT = 200_000;
+
+// -------------------------- OTHER METHODS --------------------------
+
+    @Test
+    public void parallelDistancesAreIdenticalToSerialDistances() throws Exception {
+        Random random = new Random(42);
+        double[] latitudes = new double[PARALLEL_COUNT];
+        double[] longitudes = new double[PARALLEL_COUNT];
+        double latitude = 50.0;
+        double longitude = 7.0;
+        for (int i = 0; i < PARALLEL_COUNT; i++) {
+            // mostly short steps with some gaps that are longer than the Vincenty threshold of AUTO
+            double step = random.nextInt(1000) == 0 ? 0.5 : 0.0005;
+            latitude = Math.max(-80, Math.min(80, latitude + (random.nextDouble() - 0.5) * step));
+            longitude += (random.nextDouble() - 0.5) * step;
+            latitudes[i] = latitude;
+            longitudes[i] = longitude;
+        }
+
+        for (DistanceEngine engine : DistanceEngine.values()) {
+            Track track = new Track("parallel");
+            LocalDateTime start = LocalDateTime.of(2015, 6, 1, 8, 0);
+            for (int i = 0; i < PARALLEL_COUNT; i++) {
+                track.addTrackPoint(new TrackPoint(latitudes[i], longitudes[i], 100.0, start.plusSeconds(i)));
+            }
+            Geo.updateTrackDistances(track, engine);
+
+            double[] expected = new double[PARALLEL_COUNT];
+            engine.cumulativeDistances(latitudes, longitudes, expected);
+            List<TrackPoint> trackPoints = track.getTrackPoints();
+            for (int i = 0; i < PARALLEL_COUNT; i++) {
+                assertEquals(engine + " distance " + i, Double.doubleToLongBits(expected[i]),
+                        Double.doubleToLongBits(trackPoints.get(i).getDistance()));
+            }
+            assertEquals(engine.name(), track.getDistanceEngine());
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ Copyright 2015 Peter-Josef Meisch (pj.meisch@sothawo.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.sothawo.trakxmap.util;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the PackedColumn class. Every value must be read back unchanged with decode(), get() and a Cursor, for
+ * blocks stored as short differences as well as for the blocks stored uncompressed.
+ */
+public class PackedColumnTest {
+// ------------------------------ FIELDS ------------------------------
+
+    /** not a multiple of the block size, so the last block is a partial one */
+    private static final int COUNT = 1_000;
+
+// -------------------------- STATIC METHODS --------------------------
+
+    private static void assertRoundTrip(long[] values) {
+        PackedColumn column = PackedColumn.of(values);
+        assertEquals(values.length, column.size());
+        assertArrayEquals(values, column.decode());
+        PackedColumn.Cursor cursor = column.cursor();
+        for (int i = 0; i < values.length; i++) {
+            assertEquals(values[i], column.get(i));
+            assertEquals(values[i], cursor.get(i));
+        }
+        // backwards and in random order the cursor restarts at the block base
+        PackedColumn.Cursor backwards = column.cursor();
+        for (int i = values.length - 1; i >= 0; i--) {
+            assertEquals(values[i], backwards.get(i));
+        }
+        Random random = new Random(42);
+        for (int n = 0; n < values.length; n++) {
+            int i = random.nextInt(values.length);
+            assertEquals(values[i], cursor.get(i));
+        }
+    }
+
+// -------------------------- OTHER METHODS --------------------------
+
+    @Test
+    public void shortDifferencesAreCompressed() throws Exception {
+        Random random = new Random(42);
+        long[] values = new long[COUNT];
+        long value = 50_000_000_000L;
+        for (int i = 0; i < COUNT; i++) {
+            value += random.nextInt(2_001) - 1_000;
+            values[i] = value;
+        }
+        assertRoundTrip(values);
+        // two bytes per value and the block data
+        assertTrue(PackedColumn.of(values).memorySize() < 3L * COUNT);
+    }
+
+    @Test
+    public void differencesAtTheLimitsOfShort() throws Exception {
+        long[] values = new long[COUNT];
+        for (int i = 1; i < COUNT; i++) {
+            values[i] = values[i - 1] + (i % 2 == 0 ? Short.MAX_VALUE : Short.MIN_VALUE);
+        }
+        assertRoundTrip(values);
+        assertTrue(PackedColumn.of(values).memorySize() < 3L * COUNT);
+    }
+
+    @Test
+    public void largeDifferencesAreStoredUncompressed() throws Exception {
+        Random random = new Random(42);
+        long[] values = new long[COUNT];
+        for (int i = 0; i < COUNT; i++) {
+            values[i] = 1_000L * i;
+        }
+        // one difference just outside the short range and some random jumps
+        values[70] = values[69] + Short.MAX_VALUE + 1;
+        values[300] = random.nextLong();
+        values[COUNT - 1] = Long.MAX_VALUE;
+        assertRoundTrip(values);
+
+        long[] wide = new long[COUNT];
+        for (int i = 0; i < COUNT; i++) {
+            wide[i] = random.nextLong();
+        }
+        assertRoundTrip(wide);
+    }
+
+    @Test
+    public void missingValues() throws Exception {
+        long[] values = new long[COUNT];
+        for (int i = 0; i < COUNT; i++) {
+            values[i] = i;
+        }
+        // a run of missing values in a compressed block, a change to missing values inside a block
+        Arrays.fill(values, 128, 192, PackedColumn.MISSING);
+        Arrays.fill(values, 200, 230, PackedColumn.MISSING);
+        values[COUNT - 1] = PackedColumn.MISSING;
+        assertRoundTrip(values);
+
+        long[] missing = new long[COUNT];
+        Arrays.fill(missing, PackedColumn.MISSING);
+        assertRoundTrip(missing);
+    }
+
+    @Test
+    public void emptyAndSingleValue() throws Exception {
+        assertRoundTrip(new long[0]);
+        assertRoundTrip(new long[]{Long.MIN_VALUE + 1});
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void indexOutOfRange() throws Exception {
+        PackedColumn.of(new long[]{1, 2, 3}).cursor().get(3);
+    }
+}
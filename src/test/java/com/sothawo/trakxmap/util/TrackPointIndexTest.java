@@ -0,0 +1,114 @@
+/*
+ Copyright 2015 Peter-Josef Meisch (pj.meisch@sothawo.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.sothawo.trakxmap.util;
+
+import org.junit.Test;
+
+import java.util.OptionalInt;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the TrackPointIndex class, the results of the tree search are compared with a search over all points.
+ */
+public class TrackPointIndexTest {
+// ------------------------------ FIELDS ------------------------------
+
+    private static final int COUNT = 5_000;
+
+    private final double[] latitudes = new double[COUNT];
+    private final double[] longitudes = new double[COUNT];
+    private final double[] distances = new double[COUNT];
+    private final TrackPointIndex index;
+
+// --------------------------- CONSTRUCTORS ---------------------------
+
+    public TrackPointIndexTest() {
+        Random random = new Random(4711);
+        for (int i = 0; i < COUNT; i++) {
+            latitudes[i] = 50.0 + random.nextDouble();
+            // some points on both sides of the antimeridian
+            longitudes[i] = i % 10 == 0 ? 179.5 + random.nextDouble() * 0.5 - (i % 20 == 0 ? 360 : 0) :
+                    7.0 + random.nextDouble();
+            distances[i] = 10.0 * i;
+        }
+        index = new TrackPointIndex(new TrackColumns(latitudes, longitudes, new double[COUNT], distances,
+                new long[COUNT]));
+    }
+
+// -------------------------- STATIC METHODS --------------------------
+
+    /**
+     * squared chord length between two positions on the unit sphere.
+     */
+    private static double chord2(double latitude1, double longitude1, double latitude2, double longitude2) {
+        double phi1 = Math.toRadians(latitude1);
+        double lambda1 = Math.toRadians(longitude1);
+        double phi2 = Math.toRadians(latitude2);
+        double lambda2 = Math.toRadians(longitude2);
+        double dx = Math.cos(phi1) * Math.cos(lambda1) - Math.cos(phi2) * Math.cos(lambda2);
+        double dy = Math.cos(phi1) * Math.sin(lambda1) - Math.cos(phi2) * Math.sin(lambda2);
+        double dz = Math.sin(phi1) - Math.sin(phi2);
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+// -------------------------- OTHER METHODS --------------------------
+
+    @Test
+    public void nearestEqualsLinearSearch() throws Exception {
+        Random random = new Random(815);
+        for (int query = 0; query < 1_000; query++) {
+            double latitude = 49.5 + random.nextDouble() * 2;
+            double longitude = query % 4 == 0 ? -180 + random.nextDouble() * 360 : 6.5 + random.nextDouble() * 2;
+            double best = Double.POSITIVE_INFINITY;
+            for (int i = 0; i < COUNT; i++) {
+                best = Math.min(best, chord2(latitude, longitude, latitudes[i], longitudes[i]));
+            }
+            OptionalInt nearest = index.nearest(latitude, longitude);
+            assertTrue(nearest.isPresent());
+            int found = nearest.getAsInt();
+            // compared by distance, there may be points with the same distance
+            assertEquals(best, chord2(latitude, longitude, latitudes[found], longitudes[found]), 1e-15);
+        }
+    }
+
+    @Test
+    public void nearestRespectsMaximumDistance() throws Exception {
+        int nearestPoint = index.nearest(latitudes[17], longitudes[17]).getAsInt();
+        assertEquals(17, nearestPoint);
+        // 0.01° of latitude are about 1112 m
+        assertTrue(index.nearest(latitudes[17] + 0.01, 150.0, 1_000).equals(OptionalInt.empty()));
+        assertTrue(index.nearest(latitudes[17], longitudes[17], 1.0).isPresent());
+    }
+
+    @Test
+    public void nearestByDistance() throws Exception {
+        assertEquals(0, index.nearestByDistance(-100.0).getAsInt());
+        assertEquals(42, index.nearestByDistance(421.0).getAsInt());
+        assertEquals(43, index.nearestByDistance(426.0).getAsInt());
+        assertEquals(COUNT - 1, index.nearestByDistance(1e9).getAsInt());
+    }
+
+    @Test
+    public void emptyIndexFindsNothing() throws Exception {
+        TrackPointIndex empty =
+                new TrackPointIndex(new TrackColumns(new double[0], new double[0], new double[0], new double[0],
+                        new long[0]));
+        assertFalse(empty.nearest(50.0, 7.0).isPresent());
+        assertFalse(empty.nearestByDistance(0.0).isPresent());
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ Copyright 2015 Peter-Josef Meisch (pj.meisch@sothawo.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.sothawo.trakxmap.util;
+
+import org.junit.Test;
+
+import java.time.LocalDateTime;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the combination of TrackStatistics accumulators. The statistics of a track must not depend on how the
+ * track is split into parts; the parts are split inside the speed and elevation buckets as well. The elevation sums of
+ * a split bucket are added in a different order, so the smoothed values are compared with a tolerance.
+ */
+public class TrackStatisticsTest {
+// ------------------------------ FIELDS ------------------------------
+
+    private static final int COUNT = 3_000;
+    /** tolerance for the values computed from the smoothed elevations */
+    private static final double DELTA = 1e-9;
+
+    private final long[] times = new long[COUNT];
+    private final double[] distances = new double[COUNT];
+    private final double[] elevations = new double[COUNT];
+
+// --------------------------- CONSTRUCTORS ---------------------------
+
+    public TrackStatisticsTest() {
+        Random random = new Random(42);
+        long time = TrackStatistics.toMillis(LocalDateTime.of(2015, 6, 1, 8, 0));
+        double distance = 0.0;
+        double elevation = 200.0;
+        for (int i = 0; i < COUNT; i++) {
+            // a pause now and then, some points without time or elevation
+            time += random.nextInt(100) == 0 ? 300_000 : 1_000 + random.nextInt(2_000);
+            distance += random.nextDouble() * 8;
+            elevation += (random.nextDouble() - 0.45) * 2;
+            times[i] = random.nextInt(50) == 0 ? TrackStatistics.NO_TIME : time;
+            distances[i] = distance;
+            elevations[i] = random.nextInt(50) == 0 ? Double.NaN : elevation;
+        }
+    }
+
+// -------------------------- STATIC METHODS --------------------------
+
+    private static void assertSameStatistics(TrackStatistics expected, TrackStatistics actual) {
+        assertEquals(expected.getTrackDistance(), actual.getTrackDistance());
+        assertEquals(expected.getTrackStartTime(), actual.getTrackStartTime());
+        assertEquals(expected.getTrackEndTime(), actual.getTrackEndTime());
+        assertEquals(expected.getMovingTime(), actual.getMovingTime());
+        assertEquals(expected.getMaxSpeed(), actual.getMaxSpeed());
+        assertEquals(expected.getMinElevation(), actual.getMinElevation());
+        assertEquals(expected.getMaxElevation(), actual.getMaxElevation());
+        assertEquals(expected.getFilteredMinElevation().get(), actual.getFilteredMinElevation().get(), DELTA);
+        assertEquals(expected.getFilteredMaxElevation().get(), actual.getFilteredMaxElevation().get(), DELTA);
+        assertEquals(expected.getAscent().get(), actual.getAscent().get(), DELTA);
+        assertEquals(expected.getDescent().get(), actual.getDescent().get(), DELTA);
+    }
+
+// -------------------------- OTHER METHODS --------------------------
+
+    private TrackStatistics.Accumulator accumulate(int from, int to) {
+        TrackStatistics.Accumulator accumulator = new TrackStatistics.Accumulator();
+        for (int i = from; i < to; i++) {
+            accumulator.accept(times[i], distances[i], elevations[i]);
+        }
+        return accumulator;
+    }
+
+    @Test
+    public void combinedPartsEqualTheWholeTrack() throws Exception {
+        TrackStatistics expected = accumulate(0, COUNT).finish();
+        assertTrue(expected.getMaxSpeed().isPresent());
+        assertTrue(expected.getAscent().get() > 0);
+        assertTrue(expected.getDescent().get() > 0);
+        // every split position in a range that is longer than a speed bucket and an elevation bucket
+        for (int split = 0; split <= 40; split++) {
+            assertSameStatistics(expected, accumulate(0, split).combine(accumulate(split, COUNT)).finish());
+        }
+        for (int split = 1_000; split < 1_040; split++) {
+            assertSameStatistics(expected, accumulate(0, split).combine(accumulate(split, COUNT)).finish());
+        }
+    }
+
+    @Test
+    public void combineIsAssociative() throws Exception {
+        Random random = new Random(4711);
+        for (int run = 0; run < 100; run++) {
+            int first = random.nextInt(COUNT);
+            int second = first + random.nextInt(COUNT - first + 1);
+            TrackStatistics left = accumulate(0, first)
+                    .combine(accumulate(first, second))
+                    .combine(accumulate(second, COUNT))
+                    .finish();
+            TrackStatistics right = accumulate(0, first)
+                    .combine(accumulate(first, second).combine(accumulate(second, COUNT)))
+                    .finish();
+            assertSameStatistics(left, right);
+        }
+    }
+
+    @Test
+    public void emptyPartsAreIgnored() throws Exception {
+        TrackStatistics expected = accumulate(0, COUNT).finish();
+        assertSameStatistics(expected, new TrackStatistics.Accumulator().combine(accumulate(0, COUNT)).finish());
+        assertSameStatistics(expected, accumulate(0, COUNT).combine(new TrackStatistics.Accumulator()).finish());
+    }
+
+    @Test
+    public void computeEqualsSerialAccumulation() throws Exception {
+        assertSameStatistics(accumulate(0, COUNT).finish(), TrackStatistics.compute(times, distances, elevations));
+    }
+}